@@ -32,30 +32,53 @@ package uk.ac.susx.mlcl.byblo;
 
 import uk.ac.susx.mlcl.lib.tasks.InputFileValidator;
 import uk.ac.susx.mlcl.lib.tasks.OutputFileValidator;
+import uk.ac.susx.mlcl.lib.tasks.TempFileFactoryConverter;
 import com.google.common.base.Objects.ToStringHelper;
 import uk.ac.susx.mlcl.lib.DoubleConverter;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
-import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import uk.ac.susx.mlcl.byblo.allpairs.ChunkPairJournal;
 import uk.ac.susx.mlcl.byblo.allpairs.InvertedApssTask;
+import uk.ac.susx.mlcl.byblo.allpairs.KnnSink;
+import uk.ac.susx.mlcl.byblo.allpairs.MinHashApssTask;
+import uk.ac.susx.mlcl.byblo.allpairs.NaiveApssTask;
+import uk.ac.susx.mlcl.byblo.allpairs.PairFilter;
+import uk.ac.susx.mlcl.byblo.allpairs.RecallEstimator;
+import uk.ac.susx.mlcl.byblo.allpairs.ShardedPairSink;
+import uk.ac.susx.mlcl.byblo.allpairs.SimHashApssTask;
 import uk.ac.susx.mlcl.byblo.allpairs.ThreadedApssTask;
+import uk.ac.susx.mlcl.byblo.allpairs.WorkerProcesses;
+import uk.ac.susx.mlcl.byblo.io.MappedVectorStore;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSink;
 import uk.ac.susx.mlcl.byblo.measure.AbstractMIProximity;
+import uk.ac.susx.mlcl.byblo.measure.AngularProximity;
 import uk.ac.susx.mlcl.byblo.measure.CrMi;
+import uk.ac.susx.mlcl.byblo.measure.Dice;
+import uk.ac.susx.mlcl.byblo.measure.Jaccard;
 import uk.ac.susx.mlcl.byblo.measure.KendallTau;
 import uk.ac.susx.mlcl.byblo.measure.Lee;
 import uk.ac.susx.mlcl.byblo.measure.Lp;
+import uk.ac.susx.mlcl.byblo.measure.Overlap;
 import uk.ac.susx.mlcl.byblo.measure.Proximity;
 import uk.ac.susx.mlcl.byblo.measure.ReversedProximity;
+import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.ObjectIndex;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.lib.io.Sink;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -65,9 +88,12 @@ import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
 import uk.ac.susx.mlcl.lib.io.Files;
-import uk.ac.susx.mlcl.lib.io.Lexer;
+import uk.ac.susx.mlcl.lib.io.SeekableSource;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
 import uk.ac.susx.mlcl.lib.tasks.AbstractCommand;
+import uk.ac.susx.mlcl.lib.tasks.ProgressReporter;
 
 /**
  *
@@ -108,12 +134,41 @@ public class AllPairsTask extends AbstractCommand {
                description = "Number of entries to compare per work unit. Larger value increase performance and memory usage.")
     private int chunkSize = 5000;
 
+    @Parameter(names = {"-Cnz", "--chunk-non-zeros"},
+               description = "Maximum number of non-zero features per work unit, applied in addition to --chunk-size. Gives work units of more uniform cost when entry frequencies are skewed. 0 for no limit.")
+    private long chunkNonZeros = 0;
+
+    @Parameter(names = {"-Ca", "--chunk-auto"},
+               description = "Derive the maximum non-zero features per work unit from the maximum heap size (-Xmx) and the number of threads and prefetched work units.")
+    private boolean chunkAuto = false;
+
+    @Parameter(names = {"--chunk-cache"},
+               description = "Megabytes of heap in which to keep decoded work units between passes, so they need not be decoded again. Least recently used units are evicted first. 0 to disable.")
+    private int chunkCacheMegabytes = 0;
+
+    @Parameter(names = {"--prefetch-depth"},
+               description = "Number of work units to decode ahead of the scheduler on a separate thread, so the worker threads are not left waiting while the input is parsed. 0 to decode on the scheduling thread.")
+    private int prefetchDepth = 2;
+
+    @Parameter(names = {"--split-factor"},
+               description = "Split work units whose estimated cost is more than 1/(threads * N) of the total, so a few heavy units do not hold up the end of the run. Pairs are then output in a less predictable order. 0 to disable.")
+    private int splitFactor = 0;
+
+    @Parameter(names = {"--no-vector-cache"},
+               description = "Parse the input text on every pass, rather than decoding it once to a temporary binary file.")
+    private boolean vectorCacheDisabled = false;
+
+    @Parameter(names = {"-T", "--temp-dir"},
+               description = "Temporary directory which will be used to store decoded vectors.",
+               converter = TempFileFactoryConverter.class)
+    private FileFactory tempFiles = new TempFileFactory();
+
     @Parameter(names = {"-t", "--threads"},
                description = "Number of conccurent processing threads.")
     private int nThreads = Runtime.getRuntime().availableProcessors() + 1;
 
     @Parameter(names = {"-Smn", "--similarity-min"},
-               description = "Minimum similarity threshold.",
+               description = "Minimum similarity threshold. Enables prefix filtering for Jaccard, Dice, Overlap, Cosine and Tanimoto.",
                converter = DoubleConverter.class)
     private double minSimilarity = Double.NEGATIVE_INFINITY;
 
@@ -122,6 +177,101 @@ public class AllPairsTask extends AbstractCommand {
                converter = DoubleConverter.class)
     private double maxSimilarity = Double.POSITIVE_INFINITY;
 
+    @Parameter(names = {"--top-k"},
+               description = "Retain only the k most similar neighbours of each entry, writing them in the same order as the knn command would. Disabled when 0.")
+    private int topK = 0;
+
+    @Parameter(names = {"--sharded-output"},
+               description = "Let every thread write pairs to its own temporary shard, without locking, and concatenate the shards once the search is complete. Pairs are then output in a less predictable order.")
+    private boolean shardedOutput = false;
+
+    @Parameter(names = {"--output-partitions"},
+               description = "Write sharded output to N files, named by appending the partition number to the output file, such that all pairs of an entry are in the same file. Implies --sharded-output.")
+    private int outputPartitions = 1;
+
+    @Parameter(names = {"--checkpoint-dir"},
+               description = "Directory in which to journal the output of each completed work unit, so that an interrupted run can be resumed. Deleted once the run succeeds.")
+    private File checkpointDir = null;
+
+    @Parameter(names = {"--resume"},
+               description = "Resume an interrupted run, skipping the work units already completed in the checkpoint directory; by default the output file with \".checkpoint\" appended. Settings must match the original run.")
+    private boolean resume = false;
+
+    @Parameter(names = {"--approximate"},
+               description = "Find candidate pairs approximately, rather than exactly, using the given method. Candidates are still scored exactly, but some pairs will be missed. Methods: minhash (locality sensitive hashing of MinHash signatures, for Jaccard, Dice and Overlap); simhash (random projection hashing, for Cosine and CosineMi).")
+    private String approximation = null;
+
+    @Parameter(names = {"--minhash-bands"},
+               description = "Number of bands of the MinHash signature. More bands find more pairs, at the cost of more candidates.")
+    private int minHashBands = MinHashApssTask.DEFAULT_BANDS;
+
+    @Parameter(names = {"--minhash-rows"},
+               description = "Hashes per band of the MinHash signature. More rows give fewer candidates of low similarity, but find fewer pairs.")
+    private int minHashRows = MinHashApssTask.DEFAULT_ROWS;
+
+    @Parameter(names = {"--simhash-tables"},
+               description = "Number of SimHash hash tables. More tables find more pairs, at the cost of more candidates.")
+    private int simHashTables = SimHashApssTask.DEFAULT_TABLES;
+
+    @Parameter(names = {"--simhash-bits"},
+               description = "Random hyperplanes hashed per SimHash table. More bits give fewer candidates of low similarity, but find fewer pairs.")
+    private int simHashBits = SimHashApssTask.DEFAULT_BITS;
+
+    @Parameter(names = {"--simhash-radius"},
+               description = "Hamming radius probed in each SimHash table: 0 probes only the bucket of the signature itself; 1 also probes every bucket differing by one bit, finding more pairs with fewer tables.")
+    private int simHashRadius = 0;
+
+    @Parameter(names = {"--stop-feature-frequency"},
+               description = "Leave features with at least this frequency in the features file out of candidate generation, so their long posting lists are not walked. They still count when scoring pairs found through other features, but pairs sharing only stop features are missed. Requires --input-features.",
+               converter = DoubleConverter.class)
+    private double stopFeatureFrequency = Double.POSITIVE_INFINITY;
+
+    @Parameter(names = {"--max-posting-length"},
+               description = "Leave features occurring in more than N entries of a chunk out of candidate generation, as for --stop-feature-frequency. 0 for no limit.")
+    private int maxPostingLength = 0;
+
+    @Parameter(names = {"--recall-sample"},
+               description = "Estimate the recall of an approximate search, by comparing the pairs found for a random sample of N entries with those of an exact search. The estimate is logged once the search completes.")
+    private int recallSample = 0;
+
+    @Parameter(names = {"--stats-interval"},
+               description = "Seconds between summaries of the all-pairs counters and timings in the log; 0 to summarise them only at the end of the run.")
+    private int statsInterval = 60;
+
+    @Parameter(names = {"--stats-mbean"},
+               description = "Register the all-pairs counters and timings as a JMX MBean while the search runs.")
+    private boolean statsMBean = false;
+
+    @Parameter(names = {"--status-file"},
+               description = "File to which the progress of the search, throughput, heap use and estimated time remaining are periodically written, as JSON. Each worker process writes its own file, with the worker index appended.")
+    private File statusFile = null;
+
+    @Parameter(names = {"--status-interval"},
+               description = "Seconds between writes of the status file.")
+    private int statusInterval = 10;
+
+    private ProgressReporter progress = null;
+
+    @Parameter(names = {"--worker-processes"},
+               description = "Divide the work units between N worker JVMs, started as local subprocesses, each running --threads threads. Workers that fail are restarted, carrying on from their journal, and the output of all the workers is merged once they complete.")
+    private int workerProcesses = 0;
+
+    @Parameter(names = {"--worker-index"},
+               description = "Run only the share of the work units belonging to the given worker, from 0 to --worker-processes - 1, journalling the output in --worker-dir to be merged by the coordinator. Workers can be started by hand this way, for example on other machines sharing the same storage.")
+    private int workerIndex = -1;
+
+    @Parameter(names = {"--worker-dir"},
+               description = "Directory, which must be shared by all the workers, holding their journals and logs; by default the output file with \".workers\" appended.")
+    private File workerDir = null;
+
+    @Parameter(names = {"--worker-restarts"},
+               description = "Number of times each worker process may be restarted after failing, before the run is abandoned.")
+    private int workerRestarts = 2;
+
+    @Parameter(names = {"--worker-java-options"},
+               description = "Options passed to each worker JVM, such as \"-Xmx4g\".")
+    private String workerJavaOptions = "";
+
     @Parameter(names = {"-ip", "--identity-pairs"},
                description = "Produce similarity between pair of identical entries.")
     private boolean outputIdentityPairs = false;
@@ -154,6 +304,12 @@ public class AllPairsTask extends AbstractCommand {
                converter = DoubleConverter.class)
     private double minkP = 2;
 
+    /**
+     * Ids of the features to leave out of candidate generation, found from
+     * the features file.
+     */
+    private IntSet stopFeatures = IntSets.EMPTY_SET;
+
     private Map<String, Class<? extends Proximity>> buildMeasureClassLookupTable() throws ClassNotFoundException {
 
         // Map that will store measure aliases to class
@@ -184,8 +340,19 @@ public class AllPairsTask extends AbstractCommand {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void runCommand() throws Exception {
+        progress = new ProgressReporter("allpairs", statusFile,
+                                        statusInterval * 1000L);
+        progress.start();
+        try {
+            search();
+        } finally {
+            progress.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void search() throws Exception {
 
         if (LOG.isInfoEnabled()) {
             LOG.info(
@@ -209,6 +376,48 @@ public class AllPairsTask extends AbstractCommand {
         // Instantiate the denote proxmity measure
         Proximity prox = measureClass.newInstance();
 
+        if (isSimHashEnabled()) {
+            if (!(prox instanceof AngularProximity)) {
+                throw new IllegalArgumentException(
+                        "SimHash candidates require an angular measure, such"
+                        + " as Cosine or CosineMi, but found "
+                        + measureClass.getSimpleName() + ".");
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info(MessageFormat.format(
+                        "Finding SimHash candidates with {0} tables of {1} bits, at Hamming radius {2}; pairs of cosine 0.3, 0.5 and 0.8 become candidates with probability {3,number,#.###}, {4,number,#.###} and {5,number,#.###}",
+                        simHashTables, simHashBits, simHashRadius,
+                        SimHashApssTask.candidateProbability(
+                        0.3, simHashTables, simHashBits, simHashRadius),
+                        SimHashApssTask.candidateProbability(
+                        0.5, simHashTables, simHashBits, simHashRadius),
+                        SimHashApssTask.candidateProbability(
+                        0.8, simHashTables, simHashBits, simHashRadius)));
+            }
+        }
+
+        if (isMinHashEnabled()) {
+            if (!Jaccard.class.isAssignableFrom(measureClass)
+                    && !Dice.class.isAssignableFrom(measureClass)
+                    && !Overlap.class.isAssignableFrom(measureClass)
+                    && LOG.isWarnEnabled()) {
+                LOG.warn("MinHash candidates estimate the Jaccard coefficient"
+                        + " of the feature sets, so may miss many pairs of "
+                        + measureClass.getSimpleName() + ".");
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info(MessageFormat.format(
+                        "Finding MinHash candidates with {0} bands of {1} rows; pairs of Jaccard 0.3, 0.5 and 0.8 become candidates with probability {2,number,#.###}, {3,number,#.###} and {4,number,#.###}",
+                        minHashBands, minHashRows,
+                        MinHashApssTask.candidateProbability(
+                        0.3, minHashBands, minHashRows),
+                        MinHashApssTask.candidateProbability(
+                        0.5, minHashBands, minHashRows),
+                        MinHashApssTask.candidateProbability(
+                        0.8, minHashBands, minHashRows)));
+            }
+        }
+
         // Parameterise those measures that require them
         if (prox instanceof Lp) {
             ((Lp) prox).setP(minkP);
@@ -261,6 +470,28 @@ public class AllPairsTask extends AbstractCommand {
             }
         }
 
+        // Find the stop features, which are left out of candidate generation
+        if (stopFeatureFrequency != Double.POSITIVE_INFINITY) {
+            if (featuresFile == null) {
+                throw new IllegalArgumentException(
+                        "--stop-feature-frequency requires --input-features.");
+            }
+            final Int2DoubleMap frequencies = new WeightedTokenSource(
+                    featuresFile, charset, strIndex).readAll();
+            final IntSet stops = new IntOpenHashSet();
+            for (Int2DoubleMap.Entry e : frequencies.int2DoubleEntrySet()) {
+                if (e.getDoubleValue() >= stopFeatureFrequency) {
+                    stops.add(e.getIntKey());
+                }
+            }
+            stopFeatures = stops;
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Found " + stopFeatures.size() + " stop features"
+                        + " with frequency of at least " + stopFeatureFrequency
+                        + ", out of " + frequencies.size() + ".");
+            }
+        }
+
         // Swap the proximity measure inputs if required
         if (measureReversed) {
             prox = new ReversedProximity(prox);
@@ -271,60 +502,675 @@ public class AllPairsTask extends AbstractCommand {
         // combinations of vectors, so will be looking at two differnt points
         // in the file. Also this allows for the possibility of having differnt
         // files, e.g compare fruit words with cake words
+        //
+        // Unless disabled, the text is only parsed once: the decoded vectors
+        // are written to a binary store which is memory mapped, and both
+        // sources read from that.
         final WeightedTokenPairVectorSource sourceA = new WeightedTokenPairSource(
                 entryFeaturesFile, charset, strIndex).getVectorSource();
-        final WeightedTokenPairVectorSource sourceB = new WeightedTokenPairSource(
-                entryFeaturesFile, charset, strIndex).getVectorSource();
+
+        final boolean worker = workerIndex >= 0;
+        final boolean coordinator = !worker && workerProcesses > 1;
+        if (worker && (workerProcesses < 2 || workerIndex >= workerProcesses)) {
+            throw new IllegalArgumentException(
+                    "--worker-index must be less than --worker-processes,"
+                    + " which must be at least 2.");
+        }
+        if ((worker || coordinator) && checkpointDir != null) {
+            throw new IllegalArgumentException(
+                    "--checkpoint-dir cannot be used with worker processes;"
+                    + " workers journal to --worker-dir.");
+        }
+        if (workerDir == null) {
+            workerDir = new File(outputFile.getPath() + ".workers");
+        }
+
+        // Resolve the chunk limit before any work is divided, so that every
+        // worker chunks the input identically.
+        if (chunkAuto) {
+            final long maxMemory = Runtime.getRuntime().maxMemory();
+            chunkNonZeros = ThreadedApssTask.estimateMaxChunkNonZeros(
+                    maxMemory, nThreads, prefetchDepth);
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Limiting chunks to " + chunkNonZeros
+                        + " non-zero features, for " + nThreads
+                        + " threads, " + prefetchDepth + " prefetched chunks and "
+                        + MiscUtil.humanReadableBytes(maxMemory)
+                        + " of memory.");
+            }
+        }
+
+        final WeightedTokenPairVectorSource sourceB;
+        final MappedVectorStore store;
+        if (coordinator) {
+            sourceB = null;
+            store = null;
+        } else if (vectorCacheDisabled) {
+            sourceB = new WeightedTokenPairSource(
+                    entryFeaturesFile, charset, strIndex).getVectorSource();
+            store = null;
+        } else {
+            sourceB = null;
+            store = MappedVectorStore.write(sourceA, tempFiles.createFile());
+        }
+
+        // Strings are given ids in the order they are first seen. Workers
+        // journal pairs of ids, which the coordinator writes back out as
+        // strings, so every process must see the strings in the same order:
+        // every entry in file order, then the filtered feature. Writing the
+        // vector store reads every entry; without a store, a worker would
+        // otherwise see them in the order it searches, and the coordinator,
+        // which makes no comparisons, would not see them at all.
+        if ((worker || coordinator) && store == null) {
+            indexAll(new WeightedTokenPairSource(
+                    entryFeaturesFile, charset, strIndex).getVectorSource());
+        }
+        prox.setFilteredFeatureId(strIndex.get(FilterTask.FILTERED_STRING));
+
+        // A worker leaves its output in its journal, for the coordinator to
+        // merge, so it has no sink.
+        if (worker) {
+            final ChunkPairJournal journal = ChunkPairJournal.open(
+                    workerJournalDir(workerIndex),
+                    workerFingerprint(workerIndex), true);
+            try {
+                final ThreadedApssTask<?> apss = newApssTask(
+                        store, sourceA, sourceB, prox, null);
+                apss.setWorker(workerIndex, workerProcesses);
+                apss.setJournal(journal);
+                apss.run();
+                apss.throwException();
+            } finally {
+                journal.close();
+                deleteStore(store);
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Completed all-pairs worker " + workerIndex + " of "
+                        + workerProcesses + ".");
+            }
+            return;
+        }
 
         // Create a sink object that will act as a recipient for all pairs that
         // are produced by the algorithm.
 
-        final Sink<Weighted<TokenPair>> sink =
+        final WeightedTokenPairSink fileSink =
                 new WeightedTokenPairSink(outputFile, charset, strIndex,
                                           strIndex);
 
-        // Instantiate the all-pairs algorithm as given on the command line.
-        ThreadedApssTask<Lexer.Tell> apss = new ThreadedApssTask<Lexer.Tell>(
-                sourceA, sourceB, sink);
-        apss.setInnerAlgorithm(InvertedApssTask.class);
+        // When only the nearest neighbours are required, hold them in memory
+        // until the search is complete; rather than writing every pair and
+        // sorting the lot afterwards.
+        //
+        // Otherwise, when sharding, every thread writes to its own temporary
+        // files and the results are copied to the output files afterwards.
+        final KnnSink knnSink = topK > 0 ? new KnnSink(topK) : null;
+        final ShardedPairSink shardedSink;
+        if (knnSink == null && (shardedOutput || outputPartitions > 1)) {
+            // Entries and features share one id space, so entry ids can fall
+            // into a regular pattern that plain modulo would skew; mix the id
+            // bits (32 bit MurmurHash3 finaliser) before taking the modulo.
+            // The string index is not consulted here: partition is called
+            // from the worker threads, and the index is not thread safe.
+            shardedSink = new ShardedPairSink(tempFiles, outputPartitions) {
+
+                @Override
+                protected int partition(int entryId) {
+                    int h = entryId;
+                    h ^= h >>> 16;
+                    h *= 0x85ebca6b;
+                    h ^= h >>> 13;
+                    h *= 0xc2b2ae35;
+                    h ^= h >>> 16;
+                    return (h & Integer.MAX_VALUE) % getPartitionCount();
+                }
+            };
+        } else {
+            shardedSink = null;
+        }
+        final Sink<Weighted<TokenPair>> sink = knnSink != null ? knnSink
+                : shardedSink != null ? shardedSink : fileSink;
+
+        final List<ChunkPairJournal> journals =
+                new ArrayList<ChunkPairJournal>();
+        RecallEstimator recall = null;
+        try {
+            // Pass every pair through the recall estimator, which remembers
+            // those of the sampled entries.
+            if (recallSample > 0) {
+                recall = new RecallEstimator(sink, RecallEstimator.sample(
+                        newVectorSource(store, strIndex), recallSample,
+                        SimHashApssTask.DEFAULT_SEED));
+            }
+            final Sink<Weighted<TokenPair>> searchSink =
+                    recall != null ? recall : sink;
+
+            if (coordinator) {
+                runWorkers(journals);
+                for (ChunkPairJournal journal : journals) {
+                    journal.copyTo(searchSink);
+                }
+                if (sink == fileSink) {
+                    fileSink.flush();
+                }
+            } else {
+                // Journal every completed chunk pair, so an interrupted run
+                // can be resumed without repeating them.
+                if (resume && checkpointDir == null) {
+                    checkpointDir = new File(
+                            outputFile.getPath() + ".checkpoint");
+                }
+                if (checkpointDir != null) {
+                    journals.add(ChunkPairJournal.open(
+                            checkpointDir, checkpointFingerprint(), resume));
+                }
+
+                final ThreadedApssTask<?> apss = newApssTask(
+                        store, sourceA, sourceB, prox, searchSink);
+                apss.setJournal(journals.isEmpty() ? null : journals.get(0));
+                apss.run();
+                apss.throwException();
+            }
+            if (recall != null) {
+                reportRecall(recall, store, strIndex, prox);
+            }
+            if (shardedSink != null) {
+                shardedSink.close();
+                writeShards(shardedSink, fileSink, strIndex);
+            }
+        } finally {
+            for (ChunkPairJournal journal : journals) {
+                journal.close();
+            }
+            if (shardedSink != null) {
+                shardedSink.delete();
+            }
+            deleteStore(store);
+        }
+
+        if (knnSink != null) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Writing " + topK + " nearest neighbours of "
+                        + knnSink.getEntryCount() + " entries, from "
+                        + knnSink.getWriteCount() + " pairs.");
+            }
+            final ObjectIndex<String> entryIndex = strIndex;
+            knnSink.copyTo(fileSink, new AbstractIntComparator() {
+
+                @Override
+                public int compare(int a, int b) {
+                    return entryIndex.get(a).compareTo(entryIndex.get(b));
+                }
+            });
+            fileSink.close();
+        }
+
+        // All the output is written, so the journals are no longer needed
+        for (ChunkPairJournal journal : journals) {
+            journal.delete();
+        }
+        if (coordinator) {
+            deleteWorkerLogs();
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Completed all-pairs similarity search.");
+        }
+    }
+
+    /**
+     * Instantiate and parameterise the all-pairs algorithm as given on the
+     * command line. The sink may be null for a worker, which leaves its
+     * output in its journal.
+     */
+    private ThreadedApssTask<?> newApssTask(
+            MappedVectorStore store,
+            WeightedTokenPairVectorSource sourceA,
+            WeightedTokenPairVectorSource sourceB,
+            Proximity prox, Sink<Weighted<TokenPair>> sink)
+            throws IOException {
+        final ThreadedApssTask<?> apss = store == null
+                ? newThreadedApssTask(sourceA, sourceB)
+                : newThreadedApssTask(store.newSource(), store.newSource());
+        apss.setInnerAlgorithm(isMinHashEnabled()
+                ? MinHashApssTask.class
+                : isSimHashEnabled()
+                ? SimHashApssTask.class
+                : InvertedApssTask.class);
+        apss.setSourcesIdentical(true);
 
         // Parameterise the all-pairs algorithm
         apss.setNumThreads(nThreads);
-        apss.setSink(sink);
-
-        prox.setFilteredFeatureId(strIndex.get(FilterTask.FILTERED_STRING));
+        if (sink != null) {
+            apss.setSink(sink);
+        }
 
         apss.setMeasure(prox);
         apss.setMaxChunkSize(chunkSize);
+        if (chunkNonZeros > 0) {
+            apss.setMaxChunkNonZeros(chunkNonZeros);
+        }
+        apss.setSplitFactor(splitFactor);
+        apss.setChunkCacheBytes(chunkCacheMegabytes * (1L << 20));
+        apss.setPrefetchDepth(prefetchDepth);
+        apss.setMinSimilarity(minSimilarity);
+        apss.setStatsLogInterval(statsInterval * 1000L);
+        apss.setStatsMBeanEnabled(statsMBean);
+        if (progress != null) {
+            apss.setProgress(progress.stage("allpairs"));
+        }
+
+        final PairFilter producePair = newPairFilter();
+        if (producePair != null) {
+            apss.setProducatePair(producePair);
+        }
+        return apss;
+    }
 
-        List<Predicate<Weighted<TokenPair>>> pairFilters =
-                new ArrayList<Predicate<Weighted<TokenPair>>>();
+    /**
+     * @return filter accepting the pairs to be output, or null if all
+     *         pairs are to be output
+     */
+    private PairFilter newPairFilter() {
+        List<PairFilter> pairFilters = new ArrayList<PairFilter>();
 
         if (minSimilarity != Double.NEGATIVE_INFINITY) {
-            pairFilters.add(Weighted.<TokenPair>greaterThanOrEqualTo(
-                    minSimilarity));
+            pairFilters.add(PairFilter.greaterThanOrEqualTo(minSimilarity));
         }
 
         if (maxSimilarity != Double.POSITIVE_INFINITY) {
-            pairFilters.add(Weighted.<TokenPair>lessThanOrEqualTo(maxSimilarity));
+            pairFilters.add(PairFilter.lessThanOrEqualTo(maxSimilarity));
         }
 
         if (!outputIdentityPairs) {
-            pairFilters.add(Predicates.not(Predicates.compose(
-                    TokenPair.identity(), Weighted.<TokenPair>recordFunction())));
+            pairFilters.add(PairFilter.notIdentity());
         }
 
-        if (pairFilters.size() == 1) {
-            apss.setProducatePair(pairFilters.get(0));
-        } else if (pairFilters.size() > 1) {
-            apss.setProducatePair(Predicates.<Weighted<TokenPair>>and(
-                    pairFilters));
+        if (pairFilters.isEmpty()) {
+            return null;
+        } else {
+            return PairFilter.and(pairFilters);
         }
+    }
 
-        apss.run();
+    /**
+     * Open a new source over every vector; from the vector store if there is
+     * one, otherwise by reading the input file again.
+     */
+    private SeekableSource<Indexed<SparseDoubleVector>, ?> newVectorSource(
+            MappedVectorStore store, ObjectIndex<String> strIndex)
+            throws IOException {
+        return store != null
+                ? store.newSource()
+                : new WeightedTokenPairSource(
+                entryFeaturesFile, charset, strIndex).getVectorSource();
+    }
 
+    /**
+     * Search the sampled entries exactly, and log the fraction of their
+     * pairs that were found.
+     */
+    private void reportRecall(RecallEstimator recall, MappedVectorStore store,
+                              ObjectIndex<String> strIndex, Proximity prox)
+            throws Exception {
+        final PairFilter producePair = newPairFilter();
+        recall.computeExact(newVectorSource(store, strIndex), prox,
+                            producePair != null ? producePair
+                            : PairFilter.alwaysTrue(),
+                            minSimilarity, chunkSize);
         if (LOG.isInfoEnabled()) {
-            LOG.info("Completed all-pairs similarity search.");
+            LOG.info(MessageFormat.format(
+                    "Estimated recall {0,number,#.###}: found {1} of {2} exact pairs for {3} sampled entries.",
+                    recall.getRecall(), recall.getMatchedCount(),
+                    recall.getExpectedCount(), recall.getSample().size()));
+        }
+    }
+
+    private <S> ThreadedApssTask<S> newThreadedApssTask(
+            SeekableSource<Indexed<SparseDoubleVector>, S> sourceA,
+            SeekableSource<Indexed<SparseDoubleVector>, S> sourceB) {
+        final IntSet stops = stopFeatures;
+        final int postingLength = maxPostingLength;
+        if (approximation == null && stops.isEmpty() && postingLength == 0) {
+            return new ThreadedApssTask<S>(sourceA, sourceB);
+        }
+        final int bands = minHashBands;
+        final int rows = minHashRows;
+        final int tables = simHashTables;
+        final int bits = simHashBits;
+        final int radius = simHashRadius;
+        return new ThreadedApssTask<S>(sourceA, sourceB) {
+
+            @Override
+            protected void configureInnerTask(NaiveApssTask<Integer> task) {
+                if (task instanceof InvertedApssTask) {
+                    ((InvertedApssTask<Integer>) task).setStopFeatures(stops);
+                    ((InvertedApssTask<Integer>) task).setMaxPostingLength(
+                            postingLength);
+                } else if (task instanceof MinHashApssTask) {
+                    ((MinHashApssTask<Integer>) task).setBands(bands);
+                    ((MinHashApssTask<Integer>) task).setRows(rows);
+                } else if (task instanceof SimHashApssTask) {
+                    ((SimHashApssTask<Integer>) task).setTables(tables);
+                    ((SimHashApssTask<Integer>) task).setBits(bits);
+                    ((SimHashApssTask<Integer>) task).setHammingRadius(radius);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return true if candidates are to be found with MinHash signatures
+     * @throws IllegalArgumentException if the approximation is not known
+     */
+    private boolean isMinHashEnabled() {
+        return "minhash".equals(getApproximation());
+    }
+
+    /**
+     * @return true if candidates are to be found with SimHash signatures
+     * @throws IllegalArgumentException if the approximation is not known
+     */
+    private boolean isSimHashEnabled() {
+        return "simhash".equals(getApproximation());
+    }
+
+    /**
+     * @return the lower-cased approximation method, or null if the search
+     *         is exact
+     * @throws IllegalArgumentException if the approximation is not known
+     */
+    private String getApproximation() {
+        if (approximation == null) {
+            return null;
+        }
+        final String method = approximation.trim().toLowerCase();
+        if (!method.equals("minhash") && !method.equals("simhash")) {
+            throw new IllegalArgumentException(
+                    "Unknown approximation: " + approximation);
+        }
+        return method;
+    }
+
+    private static void deleteStore(MappedVectorStore store)
+            throws IOException {
+        if (store != null) {
+            store.close();
+            if (!store.getFile().delete() && LOG.isWarnEnabled()) {
+                LOG.warn("Failed to delete vector store file \""
+                        + store.getFile() + "\".");
+            }
+        }
+    }
+
+    /**
+     * Read through the whole source, so that every string is indexed.
+     */
+    private static void indexAll(WeightedTokenPairVectorSource source)
+            throws IOException {
+        while (source.hasNext()) {
+            source.read();
+        }
+    }
+
+    /**
+     * Start the worker processes, restarting any that fail, and wait for all
+     * of them to complete. The journal of every worker is added to the given
+     * list. Unless resuming, any journals left by a previous run are
+     * discarded first.
+     */
+    private void runWorkers(List<ChunkPairJournal> journals)
+            throws IOException, InterruptedException {
+        if (!resume) {
+            for (int i = 0; i < workerProcesses; i++) {
+                if (workerJournalDir(i).exists()) {
+                    ChunkPairJournal.open(workerJournalDir(i),
+                                          workerFingerprint(i), false).delete();
+                }
+            }
+        }
+
+        final List<List<String>> arguments = new ArrayList<List<String>>();
+        for (int i = 0; i < workerProcesses; i++) {
+            arguments.add(workerArguments(i));
+        }
+        final WorkerProcesses processes = new WorkerProcesses(
+                Main.class.getName(), arguments, workerDir);
+        if (workerJavaOptions.trim().length() > 0) {
+            processes.setJavaOptions(new ArrayList<String>(Arrays.asList(
+                    workerJavaOptions.trim().split("\\s+"))));
+        }
+        processes.setMaxRestarts(workerRestarts);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Starting " + workerProcesses + " worker processes,"
+                    + " logging to \"" + workerDir + "\".");
+        }
+        processes.run();
+
+        for (int i = 0; i < workerProcesses; i++) {
+            journals.add(ChunkPairJournal.open(
+                    workerJournalDir(i), workerFingerprint(i), true));
+        }
+        if (LOG.isInfoEnabled()) {
+            long count = 0;
+            for (ChunkPairJournal journal : journals) {
+                count += journal.getRecordCount();
+            }
+            LOG.info("Merging " + count + " pairs from " + workerProcesses
+                    + " workers, with " + processes.getRestartCount()
+                    + " restarts.");
+        }
+    }
+
+    /**
+     * Build the command line arguments of the given worker, repeating the
+     * settings of this run.
+     */
+    private List<String> workerArguments(int worker) {
+        final List<String> args = new ArrayList<String>();
+        args.add("allpairs");
+        args.add("--input");
+        args.add(entryFeaturesFile.getAbsolutePath());
+        if (featuresFile != null) {
+            args.add("--input-features");
+            args.add(featuresFile.getAbsolutePath());
+        }
+        if (entriesFile != null) {
+            args.add("--input-entries");
+            args.add(entriesFile.getAbsolutePath());
+        }
+        args.add("--output");
+        args.add(outputFile.getAbsolutePath());
+        args.add("--charset");
+        args.add(charset.name());
+        args.add("--chunk-size");
+        args.add(Integer.toString(chunkSize));
+        if (chunkNonZeros > 0) {
+            args.add("--chunk-non-zeros");
+            args.add(Long.toString(chunkNonZeros));
+        }
+        args.add("--split-factor");
+        args.add(Integer.toString(splitFactor));
+        args.add("--chunk-cache");
+        args.add(Integer.toString(chunkCacheMegabytes));
+        args.add("--prefetch-depth");
+        args.add(Integer.toString(prefetchDepth));
+        if (vectorCacheDisabled) {
+            args.add("--no-vector-cache");
+        }
+        args.add("--threads");
+        args.add(Integer.toString(nThreads));
+        if (minSimilarity != Double.NEGATIVE_INFINITY) {
+            args.add("--similarity-min");
+            args.add(Double.toString(minSimilarity));
+        }
+        if (maxSimilarity != Double.POSITIVE_INFINITY) {
+            args.add("--similarity-max");
+            args.add(Double.toString(maxSimilarity));
+        }
+        if (outputIdentityPairs) {
+            args.add("--identity-pairs");
+        }
+        args.add("--measure");
+        args.add(measureName);
+        if (measureReversed) {
+            args.add("--measure-reversed");
+        }
+        args.add("--lee-alpha");
+        args.add(Double.toString(leeAlpha));
+        args.add("--crmi-beta");
+        args.add(Double.toString(crmiBeta));
+        args.add("--crmi-gamma");
+        args.add(Double.toString(crmiGamma));
+        args.add("--mink-p");
+        args.add(Double.toString(minkP));
+        if (isMinHashEnabled()) {
+            args.add("--approximate");
+            args.add(approximation);
+            args.add("--minhash-bands");
+            args.add(Integer.toString(minHashBands));
+            args.add("--minhash-rows");
+            args.add(Integer.toString(minHashRows));
+        }
+        if (stopFeatureFrequency != Double.POSITIVE_INFINITY) {
+            args.add("--stop-feature-frequency");
+            args.add(Double.toString(stopFeatureFrequency));
+        }
+        if (maxPostingLength > 0) {
+            args.add("--max-posting-length");
+            args.add(Integer.toString(maxPostingLength));
+        }
+        if (isSimHashEnabled()) {
+            args.add("--approximate");
+            args.add(approximation);
+            args.add("--simhash-tables");
+            args.add(Integer.toString(simHashTables));
+            args.add("--simhash-bits");
+            args.add(Integer.toString(simHashBits));
+            args.add("--simhash-radius");
+            args.add(Integer.toString(simHashRadius));
+        }
+        if (statusFile != null) {
+            args.add("--status-file");
+            args.add(statusFile.getAbsolutePath() + "." + worker);
+            args.add("--status-interval");
+            args.add(Integer.toString(statusInterval));
+        }
+        args.add("--stats-interval");
+        args.add(Integer.toString(statsInterval));
+        if (statsMBean) {
+            args.add("--stats-mbean");
+        }
+        args.add("--worker-processes");
+        args.add(Integer.toString(workerProcesses));
+        args.add("--worker-index");
+        args.add(Integer.toString(worker));
+        args.add("--worker-dir");
+        args.add(workerDir.getAbsolutePath());
+        return args;
+    }
+
+    private File workerJournalDir(int worker) {
+        return new File(workerDir, "part-" + worker);
+    }
+
+    private String workerFingerprint(int worker) {
+        return checkpointFingerprint() + " worker=" + worker + "/"
+                + workerProcesses;
+    }
+
+    private void deleteWorkerLogs() {
+        final File[] files = workerDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".log") && !file.delete()
+                        && LOG.isWarnEnabled()) {
+                    LOG.warn("Failed to delete worker log \"" + file + "\".");
+                }
+            }
+        }
+        if (!workerDir.delete() && LOG.isWarnEnabled()) {
+            LOG.warn("Failed to delete worker directory \"" + workerDir
+                    + "\".");
+        }
+    }
+
+    /**
+     * Describe the settings that determine how the work is divided into
+     * chunk pairs, and what each pair outputs, so a run can only be resumed
+     * with the same settings.
+     */
+    private String checkpointFingerprint() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("input=").append(entryFeaturesFile.getAbsolutePath());
+        sb.append(" length=").append(entryFeaturesFile.length());
+        sb.append(" modified=").append(entryFeaturesFile.lastModified());
+        sb.append(" chunkSize=").append(chunkSize);
+        sb.append(" chunkNonZeros=").append(chunkNonZeros);
+        sb.append(" splitFactor=").append(splitFactor);
+        if (splitFactor > 0) {
+            // The split threshold depends on the number of threads
+            sb.append(" threads=").append(nThreads);
+        }
+        sb.append(" measure=").append(measureName);
+        sb.append(" reversed=").append(measureReversed);
+        sb.append(" leeAlpha=").append(leeAlpha);
+        sb.append(" crmiBeta=").append(crmiBeta);
+        sb.append(" crmiGamma=").append(crmiGamma);
+        sb.append(" minkP=").append(minkP);
+        sb.append(" minSimilarity=").append(minSimilarity);
+        sb.append(" maxSimilarity=").append(maxSimilarity);
+        sb.append(" identityPairs=").append(outputIdentityPairs);
+        if (isMinHashEnabled()) {
+            sb.append(" minhash=").append(minHashBands).append('x').
+                    append(minHashRows);
+        }
+        if (stopFeatureFrequency != Double.POSITIVE_INFINITY) {
+            sb.append(" stopFeatures=").append(featuresFile.getAbsolutePath()).
+                    append('@').append(stopFeatureFrequency);
+        }
+        if (maxPostingLength > 0) {
+            sb.append(" maxPostingLength=").append(maxPostingLength);
+        }
+        if (isSimHashEnabled()) {
+            sb.append(" simhash=").append(simHashTables).append('x').
+                    append(simHashBits).append('r').append(simHashRadius);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copy the pairs held by the sharded sink to the output file; or, when
+     * the output is partitioned, to one file per partition.
+     */
+    private void writeShards(ShardedPairSink shardedSink,
+                             WeightedTokenPairSink fileSink,
+                             ObjectIndex<String> strIndex)
+            throws IOException {
+        if (outputPartitions <= 1) {
+            final long count = shardedSink.copyTo(fileSink);
+            fileSink.close();
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Concatenated " + count + " pairs from "
+                        + shardedSink.getShardCount() + " shards.");
+            }
+            return;
+        }
+        fileSink.close();
+        for (int p = 0; p < outputPartitions; p++) {
+            final File partitionFile = new File(outputFile.getPath() + "." + p);
+            final WeightedTokenPairSink partitionSink =
+                    new WeightedTokenPairSink(partitionFile, charset, strIndex,
+                                              strIndex);
+            try {
+                final long count = shardedSink.copyPartitionTo(p, partitionSink);
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Wrote " + count + " pairs to partition file \""
+                            + partitionFile + "\".");
+                }
+            } finally {
+                partitionSink.close();
+            }
         }
     }
 
@@ -337,9 +1183,39 @@ public class AllPairsTask extends AbstractCommand {
                 add("simsOut", outputFile).
                 add("charset", charset).
                 add("chunkSize", chunkSize).
+                add("chunkNonZeros", chunkNonZeros).
+                add("chunkAuto", chunkAuto).
                 add("threads", nThreads).
+                add("splitFactor", splitFactor).
+                add("chunkCacheMegabytes", chunkCacheMegabytes).
+                add("prefetchDepth", prefetchDepth).
+                add("vectorCacheDisabled", vectorCacheDisabled).
+                add("tmp", tempFiles).
                 add("minSimilarity", minSimilarity).
                 add("maxSimilarity", maxSimilarity).
+                add("topK", topK).
+                add("shardedOutput", shardedOutput).
+                add("outputPartitions", outputPartitions).
+                add("checkpointDir", checkpointDir).
+                add("resume", resume).
+                add("approximation", approximation).
+                add("minHashBands", minHashBands).
+                add("minHashRows", minHashRows).
+                add("simHashTables", simHashTables).
+                add("simHashBits", simHashBits).
+                add("simHashRadius", simHashRadius).
+                add("stopFeatureFrequency", stopFeatureFrequency).
+                add("maxPostingLength", maxPostingLength).
+                add("recallSample", recallSample).
+                add("statsInterval", statsInterval).
+                add("statsMBean", statsMBean).
+                add("statusFile", statusFile).
+                add("statusInterval", statusInterval).
+                add("workerProcesses", workerProcesses).
+                add("workerIndex", workerIndex).
+                add("workerDir", workerDir).
+                add("workerRestarts", workerRestarts).
+                add("workerJavaOptions", workerJavaOptions).
                 add("outputIdentityPairs", outputIdentityPairs).
                 add("measure", measureName).
                 add("measureReversed", measureReversed).
@@ -37,6 +37,7 @@ import uk.ac.susx.mlcl.byblo.MergeTask.Formatter;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.io.TempFileFactory;
 import uk.ac.susx.mlcl.lib.tasks.AbstractParallelCommandTask;
+import uk.ac.susx.mlcl.lib.tasks.ProgressReporter;
 import uk.ac.susx.mlcl.lib.tasks.Task;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -148,12 +149,22 @@ public class ExternalCountTask extends AbstractParallelCommandTask {
 
     private static final String ENTRIES_FILE_SUFFIX = "_e";
 
+    private static final String COUNT_STAGE = "count";
+
+    private static final String MERGE_STAGE = "merge";
+
     private Queue<File> mergeEntryQueue;
 
     private Queue<File> mergeFeaturesQueue;
 
     private Queue<File> mergeEntryFeatureQueue;
 
+    private int chunkCount;
+
+    private int countedCount;
+
+    private boolean chunkingComplete;
+
     public ExternalCountTask(final File instancesFile, final File featuresFile,
             final File entriesFile, final File contextsFile, Charset charset,
             int maxChunkSize) {
@@ -263,6 +274,11 @@ public class ExternalCountTask extends AbstractParallelCommandTask {
         mergeEntryQueue = new ArrayDeque<File>();
         mergeFeaturesQueue = new ArrayDeque<File>();
         mergeEntryFeatureQueue = new ArrayDeque<File>();
+        chunkCount = 0;
+        countedCount = 0;
+        chunkingComplete = false;
+        getProgress().stage(COUNT_STAGE).setTotal(getInputFile().length());
+        getProgress().stage(MERGE_STAGE);
 
         BlockingQueue<File> chunkQueue = new ArrayBlockingQueue<File>(2);
 
@@ -280,7 +296,9 @@ public class ExternalCountTask extends AbstractParallelCommandTask {
         while (!chunkFuture.isDone() || !chunkQueue.isEmpty()) {
             if (!getFutureQueue().isEmpty() && getFutureQueue().peek().isDone()) {
 
-                handleCompletedTask(getFutureQueue().poll().get());
+                Task task = getFutureQueue().poll().get();
+                recordProgress(task);
+                handleCompletedTask(task);
 
             } else if (!chunkQueue.isEmpty()) {
 
@@ -297,21 +315,53 @@ public class ExternalCountTask extends AbstractParallelCommandTask {
 
                 submitTask(new CountTask(chunk, chunk_entryFeaturesFile,
                         chunk_entriesFile, chunk_featuresFile, getCharset()));
+                ++chunkCount;
             }
 
             // XXX: Nasty hack to stop it tight looping when both queues are empty
             Thread.sleep(1);
         }
         chunkTask.throwException();
+
+        // Each of the three outputs is merged from one file per chunk
+        chunkingComplete = true;
+        getProgress().stage(MERGE_STAGE).setTotal(
+                3L * Math.max(0, chunkCount - 1));
+        if (countedCount == chunkCount)
+            getProgress().stage(COUNT_STAGE).finish();
     }
 
     protected void reduce() throws Exception {
         while (!getFutureQueue().isEmpty()) {
             Task task = getFutureQueue().poll().get();
+            recordProgress(task);
             handleCompletedTask(task);
         }
     }
 
+    /**
+     * Update the progress of the count and merge stages with a completed
+     * task. The count stage is measured in bytes of the input counted, and
+     * the merge stage in merges.
+     */
+    protected void recordProgress(Task task) {
+        if (task.getClass().equals(CountTask.class)) {
+            final long length = ((CountTask) task).getInputFile().length();
+            final ProgressReporter.Stage count =
+                    getProgress().stage(COUNT_STAGE);
+            count.addCompleted(length);
+            count.addBytes(length);
+            count.addItems(1);
+            if (++countedCount == chunkCount && chunkingComplete)
+                count.finish();
+        } else if (task.getClass().equals(MergeTask.class)) {
+            final ProgressReporter.Stage merge =
+                    getProgress().stage(MERGE_STAGE);
+            merge.addCompleted(1);
+            merge.addBytes(((MergeTask) task).getDestFile().length());
+        }
+    }
+
     protected void handleCompletedTask(Task task) throws Exception {
         task.throwException();
 
@@ -397,6 +447,7 @@ public class ExternalCountTask extends AbstractParallelCommandTask {
                     "The feature merge queue is empty but final copy has not been completed.");
         new CopyTask(finalMerge, getFeaturesFile()).runTask();
         new DeleteTask(finalMerge).runTask();
+        getProgress().stage(MERGE_STAGE).finish();
     }
 
     protected Future<MergeTask> queueMergeTask(File file, Queue<File> q) throws IOException {
@@ -38,6 +38,7 @@ import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.io.FileFactory;
 import uk.ac.susx.mlcl.lib.io.TempFileFactory;
 import uk.ac.susx.mlcl.lib.tasks.AbstractParallelCommandTask;
+import uk.ac.susx.mlcl.lib.tasks.ProgressReporter;
 import uk.ac.susx.mlcl.lib.tasks.Task;
 import java.io.File;
 import java.io.IOException;
@@ -65,6 +66,10 @@ public class ExternalSortTask extends AbstractParallelCommandTask {
 
     private static final int DEFAULT_MAX_CHUNK_SIZE = ChunkTask.DEFAULT_MAX_CHUNK_SIZE;
 
+    protected static final String SORT_STAGE = "sort";
+
+    protected static final String MERGE_STAGE = "merge";
+
     @Parameter(names = {"-C", "--chunk-size"},
                description = "Number of lines that will be read and sorted in RAM at one time (per thread). Larger values increase memory usage and performace.")
     private int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
@@ -94,6 +99,12 @@ public class ExternalSortTask extends AbstractParallelCommandTask {
 
     private Queue<File> mergeQueue;
 
+    private int chunkCount;
+
+    private int sortedCount;
+
+    private boolean chunkingComplete;
+
     public ExternalSortTask(File src, File dst, Charset charset,
                             Comparator<String> comparator,
                             int maxChunkSize) {
@@ -193,6 +204,11 @@ public class ExternalSortTask extends AbstractParallelCommandTask {
     protected void map() throws Exception {
 
         mergeQueue = new ArrayDeque<File>();
+        chunkCount = 0;
+        sortedCount = 0;
+        chunkingComplete = false;
+        getProgress().stage(SORT_STAGE).setTotal(getSrcFile().length());
+        getProgress().stage(MERGE_STAGE);
 
         BlockingQueue<File> chunkQueue = new ArrayBlockingQueue<File>(2);
 
@@ -211,13 +227,16 @@ public class ExternalSortTask extends AbstractParallelCommandTask {
         while (!chunkFuture.isDone() || !chunkQueue.isEmpty()) {
             if (!getFutureQueue().isEmpty() && getFutureQueue().peek().isDone()) {
 
-                handleCompletedTask(getFutureQueue().poll().get());
+                Task task = getFutureQueue().poll().get();
+                recordProgress(task);
+                handleCompletedTask(task);
 
             } else if (!chunkQueue.isEmpty()) {
 
                 File chunk = chunkQueue.take();
                 submitTask(new SortTask(chunk, chunk, getCharset(),
                                         getComparator()));
+                ++chunkCount;
 
             }
 
@@ -225,15 +244,47 @@ public class ExternalSortTask extends AbstractParallelCommandTask {
             Thread.sleep(1);
         }
         chunkTask.throwException();
+
+        // Every chunk is merged into one, so the number of merges is now known
+        chunkingComplete = true;
+        getProgress().stage(MERGE_STAGE).setTotal(Math.max(0, chunkCount - 1));
+        if (sortedCount == chunkCount) {
+            getProgress().stage(SORT_STAGE).finish();
+        }
     }
 
     protected void reduce() throws Exception {
         while (!getFutureQueue().isEmpty()) {
             Task task = getFutureQueue().poll().get();
+            recordProgress(task);
             handleCompletedTask(task);
         }
     }
 
+    /**
+     * Update the progress of the sort and merge stages with a completed task.
+     * The sort stage is measured in bytes of the input sorted, and the merge
+     * stage in merges.
+     */
+    protected void recordProgress(Task task) {
+        if (task.getClass().equals(SortTask.class)) {
+            final long length = ((SortTask) task).getDstFile().length();
+            final ProgressReporter.Stage sort =
+                    getProgress().stage(SORT_STAGE);
+            sort.addCompleted(length);
+            sort.addBytes(length);
+            sort.addItems(1);
+            if (++sortedCount == chunkCount && chunkingComplete) {
+                sort.finish();
+            }
+        } else if (task.getClass().equals(MergeTask.class)) {
+            final ProgressReporter.Stage merge =
+                    getProgress().stage(MERGE_STAGE);
+            merge.addCompleted(1);
+            merge.addBytes(((MergeTask) task).getDestFile().length());
+        }
+    }
+
     protected void handleCompletedTask(Task task) throws Exception {
         task.throwException();
 
@@ -263,6 +314,7 @@ public class ExternalSortTask extends AbstractParallelCommandTask {
         File finalMerge = mergeQueue.poll();
         new CopyTask(finalMerge, getDestFile()).runTask();
         new DeleteTask(finalMerge).runTask();
+        getProgress().stage(MERGE_STAGE).finish();
     }
 
     protected Future<MergeTask> queueMergeTask(File file) throws IOException {
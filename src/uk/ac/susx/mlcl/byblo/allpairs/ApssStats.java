@@ -41,15 +41,59 @@ import java.util.concurrent.atomic.AtomicLong;
  * An instance of ApssStats collects various bits of information about an an
  * All-Pairs process, that can be used for debugging and performance evaluation.
  *
+ * <p>The counters are updated by every candidate and comparison, so sharing
+ * one instance between many worker threads makes them a point of contention.
+ * Instead each task should be given its own instance, which is then added to
+ * the shared one with {@link #add(ApssStats)} when the task completes.</p>
+ *
+ * <p>Tasks also record the time spent in each {@link Phase}. When the stats of
+ * a task are added to another instance, the task's time in each phase is
+ * recorded as one sample of a {@link TimingHistogram}, giving the
+ * distribution of phase times over the tasks of a run. The counters and
+ * timings can be watched over JMX through {@link ApssStatsMBean}.</p>
+ *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class ApssStats implements Serializable {
+public class ApssStats implements Serializable, ApssStatsMBean {
+
+    /**
+     * The stages of an all-pairs task that are timed.
+     */
+    public enum Phase {
+
+        /**
+         * Preparing vectors, and building precalculations and indices.
+         */
+        INDEX,
+        /**
+         * Finding the candidates of each vector.
+         */
+        CANDIDATES,
+        /**
+         * Calculating the similarity of candidates.
+         */
+        SCORING,
+        /**
+         * Waiting for and writing to the sink.
+         */
+        SINK
+    }
 
-    private static final long serialVersionUID = 4248533084667228992L;
+    private static final long serialVersionUID = -3196472270468339543L;
     private final AtomicLong candidates;
     private final AtomicLong comparisons;
     private final AtomicLong productions;
     private final AtomicLong srcReads;
+    private final AtomicLong stopFeatureSkips;
+    private final AtomicLong skippedPostings;
+    private final AtomicLong chunkPairSkips;
+    private final AtomicLong tasks;
+    private final AtomicLong chunkCacheHits;
+    private final AtomicLong chunkCacheMisses;
+    private final AtomicLong prefetchProducerStallNanos;
+    private final AtomicLong prefetchConsumerStallNanos;
+    private final AtomicLong[] phaseNanos;
+    private transient TimingHistogram[] phaseHistograms;
 
     /**
      * Dependency injection constructor.
@@ -58,13 +102,30 @@ public class ApssStats implements Serializable {
      * @param comparisons   Count of "slow" comparisons (e.g dot products).
      * @param productions   Count of unique pairs found.
      * @param srcReads      Count of records read.
+     * @param stopFeatureSkips Count of stop features left out of candidate
+     *                      generation.
+     * @param skippedPostings Count of postings of the stop features skipped.
+     * @param chunkPairSkips Count of chunk pairs skipped because no pair
+     *                      between them could be output.
      */
     protected ApssStats(AtomicLong candidates, AtomicLong comparisons,
-            AtomicLong productions, AtomicLong srcReads) {
+            AtomicLong productions, AtomicLong srcReads,
+            AtomicLong stopFeatureSkips, AtomicLong skippedPostings,
+            AtomicLong chunkPairSkips) {
         this.candidates = candidates;
         this.comparisons = comparisons;
         this.productions = productions;
         this.srcReads = srcReads;
+        this.stopFeatureSkips = stopFeatureSkips;
+        this.skippedPostings = skippedPostings;
+        this.chunkPairSkips = chunkPairSkips;
+        this.tasks = new AtomicLong(0);
+        this.chunkCacheHits = new AtomicLong(0);
+        this.chunkCacheMisses = new AtomicLong(0);
+        this.prefetchProducerStallNanos = new AtomicLong(0);
+        this.prefetchConsumerStallNanos = new AtomicLong(0);
+        this.phaseNanos = newPhaseNanos();
+        this.phaseHistograms = newPhaseHistograms();
     }
 
     /**
@@ -75,6 +136,33 @@ public class ApssStats implements Serializable {
         productions = new AtomicLong(0);
         comparisons = new AtomicLong(0);
         candidates = new AtomicLong(0);
+        stopFeatureSkips = new AtomicLong(0);
+        skippedPostings = new AtomicLong(0);
+        chunkPairSkips = new AtomicLong(0);
+        tasks = new AtomicLong(0);
+        chunkCacheHits = new AtomicLong(0);
+        chunkCacheMisses = new AtomicLong(0);
+        prefetchProducerStallNanos = new AtomicLong(0);
+        prefetchConsumerStallNanos = new AtomicLong(0);
+        phaseNanos = newPhaseNanos();
+        phaseHistograms = newPhaseHistograms();
+    }
+
+    private static AtomicLong[] newPhaseNanos() {
+        final AtomicLong[] result = new AtomicLong[Phase.values().length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new AtomicLong(0);
+        }
+        return result;
+    }
+
+    private static TimingHistogram[] newPhaseHistograms() {
+        final TimingHistogram[] result =
+                new TimingHistogram[Phase.values().length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new TimingHistogram();
+        }
+        return result;
     }
 
     private void writeObject(final ObjectOutputStream out)
@@ -83,6 +171,17 @@ public class ApssStats implements Serializable {
         out.writeLong(comparisons.get());
         out.writeLong(productions.get());
         out.writeLong(srcReads.get());
+        out.writeLong(stopFeatureSkips.get());
+        out.writeLong(skippedPostings.get());
+        out.writeLong(chunkPairSkips.get());
+        out.writeLong(tasks.get());
+        out.writeLong(chunkCacheHits.get());
+        out.writeLong(chunkCacheMisses.get());
+        out.writeLong(prefetchProducerStallNanos.get());
+        out.writeLong(prefetchConsumerStallNanos.get());
+        for (AtomicLong nanos : phaseNanos) {
+            out.writeLong(nanos.get());
+        }
     }
 
     private void readObject(final ObjectInputStream in)
@@ -91,6 +190,19 @@ public class ApssStats implements Serializable {
         comparisons.set(in.readLong());
         productions.set(in.readLong());
         srcReads.set(in.readLong());
+        stopFeatureSkips.set(in.readLong());
+        skippedPostings.set(in.readLong());
+        chunkPairSkips.set(in.readLong());
+        tasks.set(in.readLong());
+        chunkCacheHits.set(in.readLong());
+        chunkCacheMisses.set(in.readLong());
+        prefetchProducerStallNanos.set(in.readLong());
+        prefetchConsumerStallNanos.set(in.readLong());
+        for (AtomicLong nanos : phaseNanos) {
+            nanos.set(in.readLong());
+        }
+        // The histograms are not serialized
+        phaseHistograms = newPhaseHistograms();
     }
 
     public long getCandidatesCount() {
@@ -141,6 +253,210 @@ public class ApssStats implements Serializable {
         srcReads.addAndGet(delta);
     }
 
+    public long getStopFeatureSkips() {
+        return stopFeatureSkips.get();
+    }
+
+    public void incrementStopFeatureSkips() {
+        stopFeatureSkips.incrementAndGet();
+    }
+
+    /**
+     * Each skipped posting is a pair that was not made a candidate through
+     * that feature, so the count bounds from above the number of pairs that
+     * could have been missed.
+     */
+    public long getSkippedPostingsCount() {
+        return skippedPostings.get();
+    }
+
+    public void addSkippedPostingsCount(long delta) {
+        skippedPostings.addAndGet(delta);
+    }
+
+    /**
+     * Chunk pairs are skipped when their feature bitmaps show they share no
+     * feature, or the bounds of the measure show that no pair between them
+     * can reach the minimum similarity, so no output is lost.
+     */
+    public long getChunkPairSkips() {
+        return chunkPairSkips.get();
+    }
+
+    public void incrementChunkPairSkips() {
+        chunkPairSkips.incrementAndGet();
+    }
+
+    /**
+     * @return number of chunks read from the decoded chunk cache rather than
+     *         from the source
+     */
+    @Override
+    public long getChunkCacheHits() {
+        return chunkCacheHits.get();
+    }
+
+    public void incrementChunkCacheHits() {
+        chunkCacheHits.incrementAndGet();
+    }
+
+    /**
+     * @return number of chunks that had to be read from the source because
+     *         they were not in the decoded chunk cache
+     */
+    @Override
+    public long getChunkCacheMisses() {
+        return chunkCacheMisses.get();
+    }
+
+    public void incrementChunkCacheMisses() {
+        chunkCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * @return time the chunk prefetch thread spent waiting for the scheduler
+     *         to make room in its queue
+     */
+    public long getPrefetchProducerStallNanos() {
+        return prefetchProducerStallNanos.get();
+    }
+
+    public void addPrefetchProducerStallNanos(long nanos) {
+        prefetchProducerStallNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return time the scheduler spent waiting for the chunk prefetch thread
+     *         to decode the next chunk
+     */
+    public long getPrefetchConsumerStallNanos() {
+        return prefetchConsumerStallNanos.get();
+    }
+
+    public void addPrefetchConsumerStallNanos(long nanos) {
+        prefetchConsumerStallNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public long getPrefetchProducerStallMillis() {
+        return getPrefetchProducerStallNanos() / 1000000;
+    }
+
+    @Override
+    public long getPrefetchConsumerStallMillis() {
+        return getPrefetchConsumerStallNanos() / 1000000;
+    }
+
+    /**
+     * @return number of task stats added to this instance
+     */
+    @Override
+    public long getTaskCount() {
+        return tasks.get();
+    }
+
+    /**
+     * @param phase stage of the task
+     * @param nanos time spent in the phase
+     */
+    public void addTime(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].addAndGet(nanos);
+    }
+
+    /**
+     * @return total time spent in the given phase, over all tasks
+     */
+    public long getTimeNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].get();
+    }
+
+    /**
+     * @return distribution of the time spent in the given phase by each task
+     *         added to this instance
+     */
+    public TimingHistogram getHistogram(Phase phase) {
+        return phaseHistograms[phase.ordinal()];
+    }
+
+    /**
+     * Add the counts and times of a completed task to this instance. The time
+     * the task spent in each phase is also recorded in the histogram of that
+     * phase.
+     *
+     * @param task stats of the task, which should no longer be updated
+     */
+    public void add(ApssStats task) {
+        candidates.addAndGet(task.getCandidatesCount());
+        comparisons.addAndGet(task.getComparisonCount());
+        productions.addAndGet(task.getProductionCount());
+        srcReads.addAndGet(task.getSourceReads());
+        stopFeatureSkips.addAndGet(task.getStopFeatureSkips());
+        skippedPostings.addAndGet(task.getSkippedPostingsCount());
+        chunkPairSkips.addAndGet(task.getChunkPairSkips());
+        chunkCacheHits.addAndGet(task.getChunkCacheHits());
+        chunkCacheMisses.addAndGet(task.getChunkCacheMisses());
+        prefetchProducerStallNanos.addAndGet(
+                task.getPrefetchProducerStallNanos());
+        prefetchConsumerStallNanos.addAndGet(
+                task.getPrefetchConsumerStallNanos());
+        tasks.incrementAndGet();
+        for (Phase phase : Phase.values()) {
+            final long nanos = task.getTimeNanos(phase);
+            addTime(phase, nanos);
+            getHistogram(phase).record(nanos);
+        }
+    }
+
+    @Override
+    public long getIndexMillis() {
+        return getTimeNanos(Phase.INDEX) / 1000000;
+    }
+
+    @Override
+    public long getCandidatesMillis() {
+        return getTimeNanos(Phase.CANDIDATES) / 1000000;
+    }
+
+    @Override
+    public long getScoringMillis() {
+        return getTimeNanos(Phase.SCORING) / 1000000;
+    }
+
+    @Override
+    public long getSinkMillis() {
+        return getTimeNanos(Phase.SINK) / 1000000;
+    }
+
+    /**
+     * @return a multi-line summary of the counters, and of the time spent in
+     *         each phase per task
+     */
+    @Override
+    public String getSummary() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(
+                "%d tasks: %d candidates, %d comparisons, %d productions",
+                getTaskCount(), getCandidatesCount(), getComparisonCount(),
+                getProductionCount()));
+        if (getChunkCacheHits() + getChunkCacheMisses() > 0) {
+            sb.append(String.format(", %d chunk cache hits, %d misses",
+                                    getChunkCacheHits(),
+                                    getChunkCacheMisses()));
+        }
+        if (getPrefetchProducerStallNanos() + getPrefetchConsumerStallNanos()
+                > 0) {
+            sb.append(String.format(
+                    ", prefetch stalls %.3fs producing, %.3fs consuming",
+                    getPrefetchProducerStallNanos() / 1e9,
+                    getPrefetchConsumerStallNanos() / 1e9));
+        }
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format("%n  %-10s ", phase)).
+                    append(getHistogram(phase).summary());
+        }
+        return sb.toString();
+    }
+
     @Override
     public String toString() {
         return toStringHelper().toString();
@@ -151,6 +467,14 @@ public class ApssStats implements Serializable {
                 add("candidates", candidates).
                 add("comparisons", comparisons).
                 add("productions", productions).
-                add("srcReads", srcReads);
+                add("srcReads", srcReads).
+                add("stopFeatureSkips", stopFeatureSkips).
+                add("skippedPostings", skippedPostings).
+                add("chunkPairSkips", chunkPairSkips).
+                add("tasks", tasks).
+                add("chunkCacheHits", chunkCacheHits).
+                add("chunkCacheMisses", chunkCacheMisses).
+                add("prefetchProducerStallNanos", prefetchProducerStallNanos).
+                add("prefetchConsumerStallNanos", prefetchConsumerStallNanos);
     }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * A least-recently-used cache of decoded chunks, keyed by the position in
+ * the source at which each chunk starts, and bounded by the estimated number
+ * of bytes of heap the cached chunks occupy. When adding a chunk would take
+ * the cache over its budget, the least recently used chunks are evicted until
+ * it fits; a chunk larger than the whole budget is never cached.
+ *
+ * <p>Every lookup is counted as a hit or a miss in the given
+ * {@link ApssStats}. All methods are synchronized.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ * @param <T> The atomic data type
+ * @param <P> Data offset type for seeking
+ */
+public class ChunkCache<T, P> {
+
+    private final long maxBytes;
+
+    private final Function<? super T, Integer> weigher;
+
+    private final ApssStats stats;
+
+    private final LinkedHashMap<P, Entry<T, P>> entries =
+            new LinkedHashMap<P, Entry<T, P>>(16, 0.75f, true);
+
+    private long bytes = 0;
+
+    private long evictionCount = 0;
+
+    /**
+     * @param maxBytes budget for the cached chunks
+     * @param weigher  function giving the estimated bytes of heap of each item
+     * @param stats    counter of hits and misses
+     */
+    public ChunkCache(long maxBytes, Function<? super T, Integer> weigher,
+                      ApssStats stats) {
+        if (maxBytes < 1)
+            throw new IllegalArgumentException("maxBytes < 1");
+        Checks.checkNotNull("weigher is null", weigher);
+        Checks.checkNotNull("stats is null", stats);
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+        this.stats = stats;
+    }
+
+    public final long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return estimated bytes of heap occupied by the cached chunks
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @param start position of the start of a chunk
+     * @return the cached chunk starting at that position, or null if it is
+     *         not cached
+     */
+    public synchronized Entry<T, P> get(P start) {
+        final Entry<T, P> entry = entries.get(start);
+        if (entry == null) {
+            stats.incrementChunkCacheMisses();
+        } else {
+            stats.incrementChunkCacheHits();
+        }
+        return entry;
+    }
+
+    /**
+     * Cache a chunk, evicting others as needed.
+     *
+     * @param start position of the start of the chunk
+     * @param chunk the items of the chunk, which must not be modified
+     * @param end   position just past the end of the chunk
+     * @return true if the chunk was cached; false if it exceeds the budget
+     */
+    public synchronized boolean put(P start, Chunk<T> chunk, P end) {
+        long size = 0;
+        for (T item : chunk) {
+            size += weigher.apply(item);
+        }
+        if (size > maxBytes) {
+            return false;
+        }
+        final Entry<T, P> previous = entries.remove(start);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        final Iterator<Entry<T, P>> it = entries.values().iterator();
+        while (bytes + size > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+            ++evictionCount;
+        }
+        entries.put(start, new Entry<T, P>(chunk, end, size));
+        bytes += size;
+        return true;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this).
+                add("maxBytes", maxBytes).
+                add("bytes", bytes).
+                add("size", entries.size()).
+                add("evictionCount", evictionCount).
+                toString();
+    }
+
+    /**
+     * A cached chunk, and the position at which the next chunk starts.
+     */
+    public static final class Entry<T, P> {
+
+        private final Chunk<T> chunk;
+
+        private final P end;
+
+        private final long bytes;
+
+        Entry(Chunk<T> chunk, P end, long bytes) {
+            this.chunk = chunk;
+            this.end = end;
+            this.bytes = bytes;
+        }
+
+        public Chunk<T> getChunk() {
+            return chunk;
+        }
+
+        public P getEnd() {
+            return end;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
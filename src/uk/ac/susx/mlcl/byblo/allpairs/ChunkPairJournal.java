@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.PairSink;
+import uk.ac.susx.mlcl.byblo.io.PairSinks;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.Sink;
+
+/**
+ * A durable record of the chunk pairs completed by a {@link ThreadedApssTask},
+ * so that a long run can be resumed after it is interrupted.
+ *
+ * <p>The output of each chunk pair is written to its own shard file in the
+ * journal directory. Shards are first written under a temporary name; on
+ * completion the file is synced, renamed into place, and a line naming the
+ * pair, the shard and its record count is appended to the journal file, which
+ * is then synced too. A pair is only counted as complete when its journal line
+ * is whole and the shard is the expected length, so a crash part way through
+ * either step causes the pair to be run again.</p>
+ *
+ * <p>The first line of the journal holds a fingerprint of the settings the run
+ * was started with. Resuming with a different fingerprint is refused, since
+ * the chunk pairs may no longer correspond.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ChunkPairJournal implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(ChunkPairJournal.class);
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    static final String JOURNAL_NAME = "journal";
+
+    private static final String SHARD_PREFIX = "pair-";
+
+    private static final String SHARD_SUFFIX = ".bin";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Bytes per record in a shard file: two int ids and a double weight.
+     */
+    static final int RECORD_BYTES = 16;
+
+    private final File directory;
+
+    private final String fingerprint;
+
+    private final Map<String, Entry> completed =
+            new LinkedHashMap<String, Entry>();
+
+    private FileOutputStream journalStream = null;
+
+    private Writer journalWriter = null;
+
+    private ChunkPairJournal(File directory, String fingerprint) {
+        this.directory = directory;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Open the journal in the given directory, creating it if required.
+     *
+     * @param directory   directory holding the journal and shard files
+     * @param fingerprint single line describing the settings of the run
+     * @param resume      true to keep the pairs completed by a previous run;
+     *                    false to discard them
+     * @return the opened journal
+     * @throws IOException           if the journal could not be read or
+     *                               written
+     * @throws IllegalStateException if resuming a journal that was written
+     *                               with a different fingerprint
+     */
+    public static ChunkPairJournal open(File directory, String fingerprint,
+                                        boolean resume) throws IOException {
+        Checks.checkNotNull("directory is null", directory);
+        Checks.checkNotNull("fingerprint is null", fingerprint);
+        if (fingerprint.indexOf('\n') >= 0 || fingerprint.indexOf('\r') >= 0)
+            throw new IllegalArgumentException(
+                    "fingerprint contains a line break");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create journal directory \""
+                    + directory + "\".");
+
+        final ChunkPairJournal journal =
+                new ChunkPairJournal(directory, fingerprint);
+        final File file = journal.getJournalFile();
+        if (resume && file.exists()) {
+            journal.load();
+        } else {
+            journal.deleteShards();
+        }
+        journal.rewrite();
+        if (LOG.isInfoEnabled()) {
+            LOG.info((resume ? "Resuming from" : "Starting") + " journal \""
+                    + file + "\" with " + journal.getCompletedCount()
+                    + " completed chunk pairs.");
+        }
+        return journal;
+    }
+
+    public final File getDirectory() {
+        return directory;
+    }
+
+    public final String getFingerprint() {
+        return fingerprint;
+    }
+
+    final File getJournalFile() {
+        return new File(directory, JOURNAL_NAME);
+    }
+
+    public synchronized boolean isCompleted(String pair) {
+        return completed.containsKey(pair);
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * @return total number of records in all the completed shards
+     */
+    public synchronized long getRecordCount() {
+        long count = 0;
+        for (Entry entry : completed.values()) {
+            count += entry.count;
+        }
+        return count;
+    }
+
+    /**
+     * Start writing the output of the given chunk pair. Any previous partial
+     * output of the pair is overwritten.
+     */
+    public Shard begin(String pair) throws IOException {
+        Checks.checkNotNull("pair is null", pair);
+        if (isCompleted(pair))
+            throw new IllegalStateException("pair " + pair
+                    + " is already completed");
+        return new Shard(pair);
+    }
+
+    /**
+     * Copy the records of every completed shard to the given sink, in the
+     * order the pairs were completed.
+     *
+     * @return number of records copied
+     */
+    public long copyTo(Sink<? super Weighted<TokenPair>> sink)
+            throws IOException {
+        Checks.checkNotNull("sink is null", sink);
+        final PairSink out = PairSinks.asPairSink(sink);
+        final List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(completed.values());
+        }
+        long count = 0;
+        for (Entry entry : entries) {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(
+                    new File(directory, entry.fileName))));
+            try {
+                for (long i = 0; i < entry.count; i++) {
+                    final int id1 = in.readInt();
+                    final int id2 = in.readInt();
+                    final double weight = in.readDouble();
+                    out.write(id1, id2, weight);
+                }
+            } finally {
+                in.close();
+            }
+            count += entry.count;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+            journalWriter = null;
+            journalStream = null;
+        }
+    }
+
+    /**
+     * Close the journal and delete it, with all the shard files and the
+     * directory if it is then empty.
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        deleteShards();
+        completed.clear();
+        deleteFile(getJournalFile());
+        final String[] remaining = directory.list();
+        if (remaining != null && remaining.length == 0)
+            deleteFile(directory);
+    }
+
+    /**
+     * Record the given shard as complete.
+     */
+    private synchronized void commit(String pair, String fileName, long count)
+            throws IOException {
+        if (journalWriter == null)
+            throw new IllegalStateException("journal is closed");
+        journalWriter.write(pair + "\t" + fileName + "\t" + count + "\n");
+        journalWriter.flush();
+        journalStream.getFD().sync();
+        completed.put(pair, new Entry(fileName, count));
+    }
+
+    /**
+     * Read the completed pairs from the journal file, ignoring any line that
+     * was not written in full or whose shard is missing or truncated.
+     */
+    private void load() throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(getJournalFile()), CHARSET));
+        try {
+            final StringBuilder text = new StringBuilder();
+            final char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, n);
+            }
+            final String[] lines = text.toString().split("\n", -1);
+            if (lines.length < 2 || !lines[0].equals(fingerprint))
+                throw new IllegalStateException("Journal \""
+                        + getJournalFile() + "\" was written by a run with"
+                        + " different settings: " + lines[0]);
+
+            // The last element follows the final line break, so is either
+            // empty or a partially written line.
+            for (int i = 1; i < lines.length - 1; i++) {
+                final String[] fields = lines[i].split("\t");
+                if (fields.length != 3)
+                    continue;
+                final long count;
+                try {
+                    count = Long.parseLong(fields[2]);
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                final File shard = new File(directory, fields[1]);
+                if (shard.length() != count * RECORD_BYTES) {
+                    if (LOG.isWarnEnabled()) {
+                        LOG.warn("Ignoring chunk pair " + fields[0]
+                                + " because shard \"" + shard
+                                + "\" is missing or truncated.");
+                    }
+                    continue;
+                }
+                completed.put(fields[0], new Entry(fields[1], count));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replace the journal file with one holding only the valid entries, then
+     * open it for appending. The new file is written aside and renamed into
+     * place so the old one remains intact until it is complete.
+     */
+    private void rewrite() throws IOException {
+        final File file = getJournalFile();
+        final File temp = new File(directory, JOURNAL_NAME + TEMP_SUFFIX);
+        final FileOutputStream stream = new FileOutputStream(temp);
+        final Writer writer = new OutputStreamWriter(stream, CHARSET);
+        try {
+            writer.write(fingerprint + "\n");
+            for (Map.Entry<String, Entry> e : completed.entrySet()) {
+                writer.write(e.getKey() + "\t" + e.getValue().fileName
+                        + "\t" + e.getValue().count + "\n");
+            }
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            writer.close();
+        }
+        rename(temp, file);
+
+        journalStream = new FileOutputStream(file, true);
+        journalWriter = new OutputStreamWriter(journalStream, CHARSET);
+    }
+
+    private void deleteShards() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith(SHARD_PREFIX))
+                deleteFile(file);
+        }
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (file.exists() && !file.delete())
+            throw new IOException("Failed to delete \"" + file + "\".");
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        // Not all platforms allow a rename to replace an existing file
+        if (!from.renameTo(to)) {
+            deleteFile(to);
+            if (!from.renameTo(to))
+                throw new IOException("Failed to rename \"" + from
+                        + "\" to \"" + to + "\".");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper().toString();
+    }
+
+    protected Objects.ToStringHelper toStringHelper() {
+        return Objects.toStringHelper(this).
+                add("directory", directory).
+                add("fingerprint", fingerprint).
+                add("completed", getCompletedCount());
+    }
+
+    /**
+     * The shard file and record count of a completed pair.
+     */
+    private static final class Entry {
+
+        final String fileName;
+
+        final long count;
+
+        Entry(String fileName, long count) {
+            this.fileName = fileName;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Sink for the output of a single chunk pair, which is only recorded in
+     * the journal once {@link #commit()} is called.
+     */
+    public final class Shard implements PairSink {
+
+        private final String pair;
+
+        private final String fileName;
+
+        private final File temp;
+
+        private final FileOutputStream stream;
+
+        private final DataOutputStream out;
+
+        private long count = 0;
+
+        private boolean finished = false;
+
+        private Shard(String pair) throws IOException {
+            this.pair = pair;
+            this.fileName = SHARD_PREFIX + pair.replaceAll("[^A-Za-z0-9_-]",
+                                                           "_") + SHARD_SUFFIX;
+            this.temp = new File(directory, fileName + TEMP_SUFFIX);
+            this.stream = new FileOutputStream(temp);
+            this.out = new DataOutputStream(new BufferedOutputStream(stream));
+        }
+
+        public String getPair() {
+            return pair;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(Weighted<TokenPair> record) throws IOException {
+            write(record.record().id1(), record.record().id2(),
+                  record.weight());
+        }
+
+        @Override
+        public synchronized void write(int id1, int id2, double weight)
+                throws IOException {
+            if (finished)
+                throw new IllegalStateException("shard is finished");
+            out.writeInt(id1);
+            out.writeInt(id2);
+            out.writeDouble(weight);
+            ++count;
+        }
+
+        /**
+         * Sync the shard to disk, move it into place and record it in the
+         * journal.
+         */
+        public synchronized void commit() throws IOException {
+            if (finished)
+                throw new IllegalStateException("shard is finished");
+            finished = true;
+            out.flush();
+            stream.getFD().sync();
+            out.close();
+            rename(temp, new File(directory, fileName));
+            ChunkPairJournal.this.commit(pair, fileName, count);
+        }
+
+        /**
+         * Discard the shard without recording it.
+         */
+        public synchronized void abort() throws IOException {
+            if (finished)
+                return;
+            finished = true;
+            out.close();
+            deleteFile(temp);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).
+                    add("pair", pair).
+                    add("file", fileName).
+                    add("count", count).
+                    toString();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * Decodes a fixed sequence of chunks ahead of the thread that consumes them.
+ * The reads are added up front, each as a chunker and the position to read
+ * from; once started, a dedicated thread seeks, decodes and queues the chunks
+ * in that order, up to the given depth ahead of the consumer, while
+ * {@link #next()} hands them out in the same order.
+ *
+ * <p>The time the producer spends waiting for room in the queue, and the time
+ * the consumer spends waiting for a chunk, are added to the given
+ * {@link ApssStats} as producer and consumer stalls respectively. With a
+ * depth of 0 no thread is started, and each chunk is decoded by the consumer
+ * when it is asked for.</p>
+ *
+ * <p>The chunkers must not be used by anything else until the prefetcher has
+ * been closed.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ * @param <T> The atomic data type
+ * @param <P> Data offset type for seeking
+ */
+public class ChunkPrefetcher<T, P> implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(ChunkPrefetcher.class);
+
+    private final int depth;
+
+    private final ApssStats stats;
+
+    private final List<Read<T, P>> reads = new ArrayList<Read<T, P>>();
+
+    private BlockingQueue<Object> queue = null;
+
+    private Thread producer = null;
+
+    private int nextRead = 0;
+
+    /**
+     * @param depth number of chunks that may be decoded ahead of the consumer,
+     *              or 0 to decode each chunk on demand
+     * @param stats counter of producer and consumer stalls
+     */
+    public ChunkPrefetcher(int depth, ApssStats stats) {
+        if (depth < 0)
+            throw new IllegalArgumentException("depth < 0");
+        Checks.checkNotNull("stats is null", stats);
+        this.depth = depth;
+        this.stats = stats;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Append a read to the sequence; must be called before {@link #start()}.
+     *
+     * @param chunker source of the chunk
+     * @param start   position at which the chunk starts
+     * @param name    name given to the chunk once it is read
+     */
+    public void add(Chunker<T, P> chunker, P start, String name) {
+        Checks.checkNotNull("chunker is null", chunker);
+        if (producer != null)
+            throw new IllegalStateException("prefetcher already started");
+        reads.add(new Read<T, P>(chunker, start, name));
+    }
+
+    /**
+     * @return number of reads in the sequence
+     */
+    public int size() {
+        return reads.size();
+    }
+
+    /**
+     * Start decoding chunks in the background, if the depth is greater than
+     * 0 and there is anything to read.
+     */
+    public synchronized void start() {
+        if (producer != null)
+            throw new IllegalStateException("prefetcher already started");
+        if (depth == 0 || reads.isEmpty()) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<Object>(depth);
+        producer = new Thread(new Producer(), "chunk-prefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * @return the next chunk in the sequence
+     * @throws IOException if the chunk could not be read
+     * @throws InterruptedException if interrupted while waiting for the chunk
+     */
+    @SuppressWarnings("unchecked")
+    public Chunk<T> next() throws IOException, InterruptedException {
+        if (nextRead >= reads.size())
+            throw new IllegalStateException("no more chunks to read");
+        final Read<T, P> read = reads.get(nextRead++);
+        if (queue == null) {
+            return read.read();
+        }
+
+        Object item = queue.poll();
+        if (item == null) {
+            final long start = System.nanoTime();
+            item = queue.take();
+            stats.addPrefetchConsumerStallNanos(System.nanoTime() - start);
+        }
+        if (item instanceof Failure) {
+            final Throwable cause = ((Failure) item).cause;
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+        return (Chunk<T>) item;
+    }
+
+    /**
+     * Stop the producer, if it is still running, and drop any chunks it has
+     * queued.
+     */
+    @Override
+    public synchronized void close() {
+        if (producer != null) {
+            producer.interrupt();
+            try {
+                producer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            producer = null;
+        }
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("depth", depth).
+                add("reads", reads.size()).
+                add("next", nextRead).
+                toString();
+    }
+
+    /**
+     * Decodes every read in turn, and queues either the chunk or the failure
+     * that stopped it.
+     */
+    private final class Producer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                for (Read<T, P> read : reads) {
+                    Object item;
+                    try {
+                        item = read.read();
+                    } catch (Throwable t) {
+                        item = new Failure(t);
+                    }
+                    if (!queue.offer(item)) {
+                        final long start = System.nanoTime();
+                        queue.put(item);
+                        stats.addPrefetchProducerStallNanos(
+                                System.nanoTime() - start);
+                    }
+                    if (item instanceof Failure) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Chunk prefetch interrupted.");
+                }
+            }
+        }
+    }
+
+    private static final class Read<T, P> {
+
+        final Chunker<T, P> chunker;
+
+        final P start;
+
+        final String name;
+
+        Read(Chunker<T, P> chunker, P start, String name) {
+            this.chunker = chunker;
+            this.start = start;
+            this.name = name;
+        }
+
+        Chunk<T> read() throws IOException {
+            chunker.position(start);
+            final Chunk<T> chunk = chunker.read();
+            chunk.setName(name);
+            return chunk;
+        }
+    }
+
+    private static final class Failure {
+
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
@@ -30,6 +30,7 @@
  */
 package uk.ac.susx.mlcl.byblo.allpairs;
 
+import com.google.common.base.Function;
 import com.google.common.base.Objects;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.io.Seekable;
@@ -43,6 +44,21 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
+ * Splits a source into chunks of consecutive items. A chunk is ended when it
+ * holds maxChunkSize items, or, if a weigher is set, when the total weight of
+ * its items reaches maxChunkWeight. Weighing items by their memory or
+ * processing cost produces chunks of roughly uniform cost, even when the
+ * items themselves vary greatly. Each item is weighed before it is added, and
+ * an item that would take the chunk over the budget is left to start the next
+ * chunk. A chunk always holds at least one item, so a single item heavier
+ * than the budget will have a chunk to itself; no other chunk exceeds the
+ * budget.
+ *
+ * <p>If the source is seekable, decoded chunks can be kept in a
+ * {@link ChunkCache}, so that reading the same chunk again only seeks past
+ * it in the source. Chunks are returned as clones of the cached instances,
+ * and should not be modified.</p>
+ *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  * @param <T> The atomic data type
  * @param <P> Data offset type for seeking
@@ -55,16 +71,35 @@ public class Chunker<T, P> implements SeekableSource<Chunk<T>, P>, Closeable {
 
     private long maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
 
+    private long maxChunkWeight = Long.MAX_VALUE;
+
+    private Function<? super T, Integer> weigher = null;
+
     private final SeekableSource<T, P> inner;
 
     private final boolean seekable;
 
+    private ChunkCache<T, P> cache = null;
+
+    /**
+     * Item read from a source that cannot seek back, which did not fit in the
+     * previous chunk; or null.
+     */
+    private T pending = null;
+
     public Chunker(SeekableSource<T, P> inner, long maxChunkSize) {
         this.inner = inner;
         this.seekable = inner instanceof Seekable;
         this.maxChunkSize = maxChunkSize;
     }
 
+    public Chunker(SeekableSource<T, P> inner, long maxChunkSize,
+                   Function<? super T, Integer> weigher, long maxChunkWeight) {
+        this(inner, maxChunkSize);
+        setWeigher(weigher);
+        setMaxChunkWeight(maxChunkWeight);
+    }
+
     public long getMaxChunkSize() {
         return maxChunkSize;
     }
@@ -74,16 +109,96 @@ public class Chunker<T, P> implements SeekableSource<Chunk<T>, P>, Closeable {
         this.maxChunkSize = maxChunkSize;
     }
 
+    public long getMaxChunkWeight() {
+        return maxChunkWeight;
+    }
+
+    public void setMaxChunkWeight(long maxChunkWeight) {
+        if (maxChunkWeight < 1)
+            throw new IllegalArgumentException("maxChunkWeight < 1");
+        this.maxChunkWeight = maxChunkWeight;
+    }
+
+    public Function<? super T, Integer> getWeigher() {
+        return weigher;
+    }
+
+    /**
+     * @param weigher function giving the cost of each item, or null if chunks
+     *                should be limited by number of items alone
+     */
+    public void setWeigher(Function<? super T, Integer> weigher) {
+        this.weigher = weigher;
+    }
+
+    public ChunkCache<T, P> getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache cache of decoded chunks, which may be shared with other
+     *              chunkers over sources with identical positions and
+     *              chunking; or null to decode every chunk read
+     */
+    public void setCache(ChunkCache<T, P> cache) {
+        if (cache != null && !seekable) {
+            throw new UnsupportedOperationException(
+                    "Caching requires a seekable wrapped instance.");
+        }
+        this.cache = cache;
+    }
+
     @Override
     public Chunk<T> read() throws IOException {
+        if (cache == null) {
+            return decode();
+        }
+        final P start = position();
+        final ChunkCache.Entry<T, P> cached = cache.get(start);
+        if (cached != null) {
+            position(cached.getEnd());
+            return cached.getChunk().clone();
+        }
+        final Chunk<T> chunk = decode();
+        cache.put(start, chunk, position());
+        return chunk.clone();
+    }
+
+    private Chunk<T> decode() throws IOException {
         P start = inner.position();
         final List<T> items = new ArrayList<T>();
         int k = 0;
-        while (k < maxChunkSize && inner.hasNext()) {
-            items.add(inner.read());
+        long weight = 0;
+        while (k < maxChunkSize && weight < maxChunkWeight && hasNext()) {
+            final P itemStart = weigher != null && seekable
+                    ? position() : null;
+            final T item;
+            if (pending != null) {
+                item = pending;
+                pending = null;
+            } else {
+                item = inner.read();
+            }
+            if (weigher != null) {
+                final int itemWeight = weigher.apply(item);
+                if (k > 0 && weight + itemWeight > maxChunkWeight) {
+                    // Leave the item to start the next chunk
+                    if (seekable) {
+                        position(itemStart);
+                    } else {
+                        pending = item;
+                    }
+                    break;
+                }
+                weight += itemWeight;
+            }
+            items.add(item);
             ++k;
         }
         P end = inner.position();
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Read chunk of " + k + " items with weight " + weight);
+        }
         return new Chunk<T>(
                 MessageFormat.format("{0} to {1}", new Object[]{start, end}),
                 items);
@@ -91,7 +206,7 @@ public class Chunker<T, P> implements SeekableSource<Chunk<T>, P>, Closeable {
 
     @Override
     public boolean hasNext() throws IOException {
-        return inner.hasNext();
+        return pending != null || inner.hasNext();
     }
 
     @Override
@@ -129,7 +244,10 @@ public class Chunker<T, P> implements SeekableSource<Chunk<T>, P>, Closeable {
     protected Objects.ToStringHelper toStringHelper() {
         return Objects.toStringHelper(this).
                 add("maxChunkSize", maxChunkSize).
+                add("maxChunkWeight", maxChunkWeight).
+                add("weigher", weigher).
                 add("inner", inner).
-                add("seekable", seekable);
+                add("seekable", seekable).
+                add("cache", cache);
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * A fixed size bitmap of the feature ids occurring in a chunk. Each feature
+ * id sets the bit given by its low order bits, so distinct features may share
+ * a bit, but a feature present in the chunk always sets its bit. Two bitmaps
+ * with no bit in common therefore prove that the chunks share no feature;
+ * bitmaps that do intersect prove nothing.
+ *
+ * <p>Feature ids are allocated densely from zero, so while there are fewer
+ * features than bits every feature has a bit of its own.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class FeatureBitmap {
+
+    public static final int DEFAULT_BITS = 1 << 14;
+
+    private final long[] words;
+
+    private final int mask;
+
+    /**
+     * @param bits number of bits in the bitmap, which must be a power of two
+     */
+    public FeatureBitmap(int bits) {
+        if (bits < 64 || Integer.bitCount(bits) != 1)
+            throw new IllegalArgumentException(
+                    "bits is not a power of two >= 64: " + bits);
+        this.words = new long[bits >>> 6];
+        this.mask = bits - 1;
+    }
+
+    public FeatureBitmap() {
+        this(DEFAULT_BITS);
+    }
+
+    public int getBits() {
+        return mask + 1;
+    }
+
+    public void add(int featureId) {
+        final int bit = featureId & mask;
+        words[bit >>> 6] |= 1L << bit;
+    }
+
+    /**
+     * Add every feature of the given vector.
+     */
+    public void addAll(SparseDoubleVector vector) {
+        for (int i = 0; i < vector.size; i++) {
+            add(vector.keys[i]);
+        }
+    }
+
+    public boolean mayContain(int featureId) {
+        final int bit = featureId & mask;
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @return false if the chunks summarised by this bitmap and the other
+     *         certainly share no feature
+     */
+    public boolean intersects(FeatureBitmap other) {
+        if (other.words.length != words.length)
+            throw new IllegalArgumentException("bitmap sizes differ");
+        for (int i = 0; i < words.length; i++) {
+            if ((words[i] & other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of bits set
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("bits", getBits()).
+                add("set", cardinality()).
+                toString();
+    }
+}
@@ -30,35 +30,106 @@
  */
 package uk.ac.susx.mlcl.byblo.allpairs;
 
+import uk.ac.susx.mlcl.byblo.measure.BoundedProximity;
+import uk.ac.susx.mlcl.byblo.measure.DecomposableProximity;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
-import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.lib.io.SeekableSource;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import java.io.Flushable;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import uk.ac.susx.mlcl.byblo.io.Weighted;
-import uk.ac.susx.mlcl.lib.io.IOUtil;
 
 /**
  * An all-pairs similarity search implementation that improves efficiency by
  * building a reverse index of one of the input sources. This allows candidate
  * pairs to be found relatively quickly given sufficient sparsity
  *
+ * <p>When the measure is a {@link BoundedProximity} and a positive minimum
+ * similarity is set, prefix filtering is used: only the prefix of each vector
+ * is indexed and probed, and candidates are pruned using the size and
+ * positional bounds of the measure (as in the PPJoin algorithm). The number of
+ * candidates then grows with the output size rather than the number of pairs
+ * that share any feature. The indexed entries are ordered by size, so the
+ * postings of entries too small or too large to reach the threshold are never
+ * visited.</p>
+ *
+ * <p>Otherwise, when the measure is a {@link DecomposableProximity}, the shared
+ * component of every candidate is accumulated while the postings are walked,
+ * so no further merge of the two vectors is required.</p>
+ *
+ * <p>Features with very long posting lists, such as those of common function
+ * words, can make almost every entry a candidate of every other. Such stop
+ * features can be left out of candidate generation: either named explicitly
+ * with {@link #setStopFeatures(IntSet)}, or found by capping the posting
+ * length with {@link #setMaxPostingLength(int)}. Stop features still count
+ * when candidates reached through other features are scored, but pairs that
+ * share only stop features are missed. The postings skipped are counted in
+ * the {@link ApssStats}, giving an upper bound on the pairs missed.</p>
+ *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public class InvertedApssTask<S> extends NaiveApssTask<S> {
     private static final Log LOG = LogFactory.getLog(InvertedApssTask.class);
 
-    private Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> index;
+    /**
+     * Value given to candidates that have been pruned during prefix filtering,
+     * so they are not reconsidered.
+     */
+    private static final int PRUNED = -1;
+
+    /**
+     * Orders vectors by increasing number of features.
+     */
+    private static final Comparator<Indexed<SparseDoubleVector>> BY_SIZE =
+            new Comparator<Indexed<SparseDoubleVector>>() {
+
+                @Override
+                public int compare(Indexed<SparseDoubleVector> a,
+                                   Indexed<SparseDoubleVector> b) {
+                    return a.value().size < b.value().size ? -1
+                            : a.value().size > b.value().size ? 1 : 0;
+                }
+            };
+
+    private InvertedIndex index;
+
+    private boolean prefixFilterEnabled = false;
+
+    private boolean scoreAccumulationEnabled = false;
+
+    private IntSet stopFeatures = IntSets.EMPTY_SET;
+
+    private int maxPostingLength = 0;
+
+    /**
+     * Overlap counts of candidates found while probing the index, accessed by
+     * entry slot; zero for entries not yet seen.
+     */
+    private int[] overlaps;
+
+    /**
+     * Slots of all entries touched while probing for the current vector, so
+     * the overlaps array can be reset without a full sweep.
+     */
+    private final IntArrayList touched = new IntArrayList();
+
+    private final IntArrayList candidates = new IntArrayList();
+
+    /**
+     * Accumulated shared component of each candidate, accessed by entry slot.
+     * Only valid for slots returned by the most recent call to
+     * {@link #accumulateCandidates(Indexed)}.
+     */
+    private double[] scores;
 
     public InvertedApssTask() {
         index = null;
@@ -66,12 +137,64 @@ public class InvertedApssTask<S> extends NaiveApssTask<S> {
 
     @Override
     protected void initialiseTask() throws Exception {
+        // The index depends on these, and may be built while initialising
+        // the shared state of source A.
+        prefixFilterEnabled = getMeasure() instanceof BoundedProximity
+                && getMinSimilarity() > 0;
+        if (prefixFilterEnabled && LOG.isDebugEnabled()) {
+            LOG.debug("Prefix filtering enabled with minimum similarity "
+                    + getMinSimilarity());
+        }
+        // Accumulated scores would leave out the stop features, so the
+        // candidates must be scored by a full merge instead.
+        scoreAccumulationEnabled = !prefixFilterEnabled
+                && !isStopPolicyEnabled()
+                && getMeasure() instanceof DecomposableProximity;
         super.initialiseTask();
         if (index == null) {
+            final long start = System.nanoTime();
             index = buildIndex();
+            getStats().addTime(ApssStats.Phase.INDEX,
+                               System.nanoTime() - start);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Built index " + index);
+        }
+        overlaps = new int[index.entryCount()];
+        if (scoreAccumulationEnabled) {
+            scores = new double[index.entryCount()];
         }
     }
 
+    /**
+     * The index is built from the prepared vectors of source A alone, so it
+     * is shared along with them.
+     */
+    @Override
+    protected void buildSharedA(SharedChunk shared) throws IOException {
+        super.buildSharedA(shared);
+        if (index == null) {
+            index = buildIndex();
+        }
+        shared.setIndex(index);
+    }
+
+    @Override
+    protected void adoptSharedA(SharedChunk shared) throws IOException {
+        super.adoptSharedA(shared);
+        if (shared.getIndex() != null) {
+            index = shared.getIndex();
+        }
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        super.finaliseTask();
+        index = null;
+        overlaps = null;
+        scores = null;
+    }
+
     @Override
     protected void runTask()
             throws IOException {
@@ -80,81 +203,270 @@ public class InvertedApssTask<S> extends NaiveApssTask<S> {
         LOG.info("Running inverted all-pairs on " + getSourceA() + " and " + getSourceB());
         
         final S startB = getSourceB().position();
-        List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        PairBuffer pairs = new PairBuffer();
+        long candidateNanos = 0;
+        long scoringNanos = 0;
 
         while (getSourceB().hasNext()) {
             Indexed<SparseDoubleVector> b = getSourceB().read();
             if (!getProcessRecord().apply(b))
                 continue;
 
-            Set<Indexed<SparseDoubleVector>> candidates = findCandidates(b);
+            final long start = System.nanoTime();
+            final IntList slots = scoreAccumulationEnabled
+                    ? accumulateCandidates(b)
+                    : findCandidates(b);
+            final long found = System.nanoTime();
+            candidateNanos += found - start;
 
-            for (Indexed<SparseDoubleVector> a : candidates) {
+            for (int c = 0; c < slots.size(); c++) {
+                final int slot = slots.getInt(c);
+                final Indexed<SparseDoubleVector> a = index.entry(slot);
                 if (!getProcessRecord().apply(a))
                     continue;
                 getStats().incrementCandidatesCount();
 
-                double sim = sim(a, b);
-                Weighted<TokenPair> pair = new Weighted<TokenPair>(
-                        new TokenPair(a.key(), b.key()), sim);
-                if (getProducatePair().apply(pair)) {
-                    pairs.add(pair);
-                    getStats().incrementProductionCount();
-                }
+                producePair(pairs, a.key(), b.key(), scoreAccumulationEnabled
+                        ? sim(a, b, scores[slot])
+                        : sim(a, b));
             }
+            scoringNanos += System.nanoTime() - found;
         }
-        synchronized (getSink()) {
-            IOUtil.copy(pairs, getSink());
-            if (getSink() instanceof Flushable)
-                ((Flushable) getSink()).flush();
-        }
+        getStats().addTime(ApssStats.Phase.CANDIDATES, candidateNanos);
+        getStats().addTime(ApssStats.Phase.SCORING, scoringNanos);
+        writePairs(pairs);
         getSourceB().position(startB);
 
         LOG.info("Completed inverted all-pairs on " + getSourceA() + " and " + getSourceB());
     
     }
 
-    protected Set<Indexed<SparseDoubleVector>> findCandidates(
-            Indexed<SparseDoubleVector> b) {
-
-        final Set<Indexed<SparseDoubleVector>> candidates =
-                new ObjectOpenHashSet<Indexed<SparseDoubleVector>>();
+    /**
+     * Find the index slots of all entries that may be similar to b. The
+     * returned list is reused, so it is only valid until the next call.
+     */
+    protected IntList findCandidates(Indexed<SparseDoubleVector> b) {
+        if (prefixFilterEnabled) {
+            return findPrefixCandidates(b);
+        }
 
+        candidates.clear();
         for (int k : b.value().keys) {
-            if (index.containsKey(k)) {
-                candidates.addAll(index.get(k));
+            if (isStopFeature(k)) {
+                continue;
             }
+            final int end = index.end(k);
+            for (int p = index.start(k); p < end; p++) {
+                final int slot = index.slot(p);
+                if (overlaps[slot] == 0) {
+                    overlaps[slot] = 1;
+                    candidates.add(slot);
+                }
+            }
+        }
+        for (int c = 0; c < candidates.size(); c++) {
+            overlaps[candidates.getInt(c)] = 0;
         }
         return candidates;
     }
 
-    protected Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> buildIndex()
+    /**
+     * Find the index slots of all entries that share a feature with b, while
+     * summing the shared component of the measure for each into the scores
+     * array. The features of b are visited in key order, so the terms are
+     * added in the same order as the measure's own merge of the vectors. The
+     * returned list is reused, so it is only valid until the next call.
+     */
+    protected IntList accumulateCandidates(Indexed<SparseDoubleVector> b) {
+        final DecomposableProximity measure =
+                (DecomposableProximity) getMeasure();
+        final SparseDoubleVector B = b.value();
+
+        candidates.clear();
+        for (int j = 0; j < B.size; j++) {
+            final int k = B.keys[j];
+            final int end = index.end(k);
+            for (int p = index.start(k); p < end; p++) {
+                final int slot = index.slot(p);
+                if (overlaps[slot] == 0) {
+                    overlaps[slot] = 1;
+                    scores[slot] = 0;
+                    candidates.add(slot);
+                }
+                scores[slot] += measure.sharedTerm(
+                        index.entry(slot).value(), index.position(p), B, j);
+            }
+        }
+        for (int c = 0; c < candidates.size(); c++) {
+            overlaps[candidates.getInt(c)] = 0;
+        }
+        return candidates;
+    }
+
+    /**
+     * Find candidates sharing a feature with the prefix of b. As both vectors
+     * are sorted in the same order, every feature they share before the
+     * current one has already been counted, so the overlap can be bounded
+     * above by the count so far plus the features remaining in either vector.
+     * Candidates whose bound falls below the measure's minimum overlap, or
+     * whose size is outside the permitted range, are pruned. When the index is
+     * size ordered, only the run of postings within the permitted range is
+     * walked. Stop features skipped in the prefix of b may have been shared,
+     * so each is added to the bound.
+     */
+    protected IntList findPrefixCandidates(Indexed<SparseDoubleVector> b) {
+        final BoundedProximity bounds = (BoundedProximity) getMeasure();
+        final double minSim = getMinSimilarity();
+        final SparseDoubleVector B = b.value();
+        final int minSize = bounds.minPartnerSize(B.size, minSim);
+        final int maxSize = bounds.maxPartnerSize(B.size, minSim);
+        final int prefixB = bounds.prefixLength(B, minSim);
+        final boolean sizeOrdered = index.isSizeOrdered();
+
+        touched.clear();
+        int skipped = 0;
+        for (int j = 0; j < prefixB; j++) {
+            final int k = B.keys[j];
+            if (isStopFeature(k)) {
+                ++skipped;
+                continue;
+            }
+            final int end = index.end(k);
+            for (int p = sizeOrdered ? index.startAtSize(k, minSize)
+                    : index.start(k); p < end; p++) {
+                final int slot = index.slot(p);
+                final int sizeA = index.size(slot);
+                if (sizeA > maxSize) {
+                    if (sizeOrdered) {
+                        break;
+                    }
+                    continue;
+                }
+                if (sizeA < minSize) {
+                    continue;
+                }
+                final int overlap = overlaps[slot];
+                if (overlap == PRUNED) {
+                    continue;
+                }
+                if (overlap == 0) {
+                    touched.add(slot);
+                }
+                final int i = index.position(p);
+                final int maxOverlap = overlap + skipped + 1
+                        + Math.min(sizeA - i - 1, B.size - j - 1);
+                overlaps[slot] =
+                        maxOverlap >= bounds.minOverlap(sizeA, B.size, minSim)
+                        ? overlap + 1 : PRUNED;
+            }
+        }
+
+        candidates.clear();
+        for (int c = 0; c < touched.size(); c++) {
+            final int slot = touched.getInt(c);
+            if (overlaps[slot] > 0) {
+                candidates.add(slot);
+            }
+            overlaps[slot] = 0;
+        }
+        return candidates;
+    }
+
+    /**
+     * @return true if feature k should be left out of candidate generation;
+     *         in which case the postings skipped are counted
+     */
+    protected final boolean isStopFeature(int k) {
+        if (!isStopPolicyEnabled()) {
+            return false;
+        }
+        final int length = index.end(k) - index.start(k);
+        if (length == 0) {
+            return false;
+        }
+        if (stopFeatures.contains(k)
+                || (maxPostingLength > 0 && length > maxPostingLength)) {
+            getStats().incrementStopFeatureSkips();
+            getStats().addSkippedPostingsCount(length);
+            return true;
+        }
+        return false;
+    }
+
+    protected InvertedIndex buildIndex()
             throws IOException {
         SeekableSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
-        final Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> result =
-                new Int2ObjectOpenHashMap<Set<Indexed<SparseDoubleVector>>>();
+        final List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        final IntArrayList lengths = new IntArrayList();
         final S startA = src.position();
         while (src.hasNext()) {
-            final Indexed<SparseDoubleVector> a = src.read();
-            for (int k : a.value().keys) {
-                if (!result.containsKey(k)) {
-                    result.put(k,
-                            new ObjectOpenHashSet<Indexed<SparseDoubleVector>>());
-                }
-                result.get(k).add(a);
-            }
+            entries.add(src.read());
         }
         src.position(startA);
-        return result;
+        if (prefixFilterEnabled) {
+            Collections.sort(entries, BY_SIZE);
+        }
+        for (Indexed<SparseDoubleVector> a : entries) {
+            lengths.add(prefixFilterEnabled
+                    ? ((BoundedProximity) getMeasure()).prefixLength(
+                    a.value(), getMinSimilarity())
+                    : a.value().size);
+        }
+        return InvertedIndex.build(entries, lengths.toIntArray(), false);
     }
 
-    protected void setIndex(Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> index) {
+    protected void setIndex(InvertedIndex index) {
         Checks.checkNotNull("index is null", index);
         this.index = index;
     }
 
-    protected Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> getIndex() {
+    protected InvertedIndex getIndex() {
         return index;
     }
 
+    protected boolean isPrefixFilterEnabled() {
+        return prefixFilterEnabled;
+    }
+
+    protected boolean isScoreAccumulationEnabled() {
+        return scoreAccumulationEnabled;
+    }
+
+    public final IntSet getStopFeatures() {
+        return stopFeatures;
+    }
+
+    /**
+     * @param stopFeatures ids of the features to leave out of candidate
+     *                     generation
+     */
+    public final void setStopFeatures(IntSet stopFeatures) {
+        Checks.checkNotNull("stopFeatures is null", stopFeatures);
+        this.stopFeatures = stopFeatures;
+    }
+
+    public final int getMaxPostingLength() {
+        return maxPostingLength;
+    }
+
+    /**
+     * @param maxPostingLength longest posting list that is probed during
+     *                         candidate generation; features with more
+     *                         postings in this task's index are treated as
+     *                         stop features. 0 for no limit.
+     */
+    public final void setMaxPostingLength(int maxPostingLength) {
+        if (maxPostingLength < 0)
+            throw new IllegalArgumentException("maxPostingLength < 0");
+        this.maxPostingLength = maxPostingLength;
+    }
+
+    /**
+     * @return true if any features may be left out of candidate generation
+     */
+    public final boolean isStopPolicyEnabled() {
+        return maxPostingLength > 0 || !stopFeatures.isEmpty();
+    }
+
 }
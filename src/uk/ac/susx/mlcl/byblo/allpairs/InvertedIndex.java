@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact feature-major inverted index over a fixed list of vectors, stored
+ * in compressed sparse row form. The postings for feature <tt>k</tt> occupy
+ * the range <tt>[start(k), end(k))</tt> of the parallel primitive arrays,
+ * each posting recording the slot of the entry that contains the feature, the
+ * position of the feature within that entry, and optionally its weight.
+ *
+ * <p>Only the distinct features of the indexed entries are given postings
+ * ranges; they are held in a sorted array and found by binary search, so the
+ * size of the index is independent of the size of the feature vocabulary.</p>
+ *
+ * <p>Postings for each feature are held in slot order. Only the first
+ * <tt>lengths[slot]</tt> features of each entry are indexed, which allows
+ * prefix filtered indices to be built. If the entries are given in order of
+ * increasing size, the postings of every feature are also ordered by the
+ * size of their entries (see {@link #isSizeOrdered()}), so the postings of
+ * entries within a range of sizes can be found by binary search.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class InvertedIndex {
+
+    private final Indexed<SparseDoubleVector>[] entries;
+
+    /**
+     * Distinct features indexed, in increasing order.
+     */
+    private final int[] features;
+
+    private final int[] offsets;
+
+    private final int[] slots;
+
+    private final int[] positions;
+
+    private final float[] weights;
+
+    private final int[] sizes;
+
+    private final boolean sizeOrdered;
+
+    private InvertedIndex(Indexed<SparseDoubleVector>[] entries,
+                          int[] sizes, boolean sizeOrdered,
+                          int[] features, int[] offsets, int[] slots, int[] positions,
+                          float[] weights) {
+        this.entries = entries;
+        this.sizes = sizes;
+        this.sizeOrdered = sizeOrdered;
+        this.features = features;
+        this.offsets = offsets;
+        this.slots = slots;
+        this.positions = positions;
+        this.weights = weights;
+    }
+
+    /**
+     * Build an index over the given entries. The distinct features are first
+     * collected and sorted, then two passes are made: the first counts the
+     * postings for each feature, and the second writes them into the space
+     * reserved.
+     *
+     * @param entries vectors to index, in slot order
+     * @param lengths number of leading features to index from each entry
+     * @param storeWeights whether the feature weights should be stored
+     * @return the new index
+     */
+    public static InvertedIndex build(
+            List<Indexed<SparseDoubleVector>> entries, int[] lengths,
+            boolean storeWeights) {
+        Checks.checkNotNull("entries is null", entries);
+        Checks.checkNotNull("lengths is null", lengths);
+        if (lengths.length != entries.size())
+            throw new IllegalArgumentException(
+                    "expecting one length per entry, found " + lengths.length
+                    + " lengths and " + entries.size() + " entries.");
+
+        @SuppressWarnings("unchecked")
+        final Indexed<SparseDoubleVector>[] entryArray = entries.toArray(
+                (Indexed<SparseDoubleVector>[]) new Indexed<?>[entries.size()]);
+
+        final int[] sizes = new int[entryArray.length];
+        boolean sizeOrdered = true;
+        long postingCount = 0;
+        for (int s = 0; s < entryArray.length; s++) {
+            final SparseDoubleVector v = entryArray[s].value();
+            sizes[s] = v.size;
+            if (s > 0 && sizes[s] < sizes[s - 1])
+                sizeOrdered = false;
+            if (lengths[s] < 0 || lengths[s] > v.size)
+                throw new IllegalArgumentException(
+                        "length " + lengths[s] + " of entry " + s
+                        + " is outside the range 0 to " + v.size);
+            postingCount += lengths[s];
+        }
+        if (postingCount > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(
+                    "too many postings to index: " + postingCount);
+
+        final int[] features = distinctFeatures(
+                entryArray, lengths, (int) postingCount);
+
+        final int[] offsets = new int[features.length + 1];
+        for (int s = 0; s < entryArray.length; s++) {
+            final int[] keys = entryArray[s].value().keys;
+            for (int i = 0; i < lengths[s]; i++)
+                ++offsets[Arrays.binarySearch(features, keys[i]) + 1];
+        }
+        for (int k = 1; k < offsets.length; k++)
+            offsets[k] += offsets[k - 1];
+
+        final int[] slots = new int[(int) postingCount];
+        final int[] positions = new int[(int) postingCount];
+        final float[] weights = storeWeights ? new float[(int) postingCount] : null;
+        final int[] cursor = new int[offsets.length - 1];
+        System.arraycopy(offsets, 0, cursor, 0, cursor.length);
+        for (int s = 0; s < entryArray.length; s++) {
+            final SparseDoubleVector v = entryArray[s].value();
+            for (int i = 0; i < lengths[s]; i++) {
+                final int p =
+                        cursor[Arrays.binarySearch(features, v.keys[i])]++;
+                slots[p] = s;
+                positions[p] = i;
+                if (storeWeights)
+                    weights[p] = (float) v.values[i];
+            }
+        }
+
+        return new InvertedIndex(entryArray, sizes, sizeOrdered,
+                                 features, offsets, slots, positions, weights);
+    }
+
+    private static int[] distinctFeatures(
+            Indexed<SparseDoubleVector>[] entryArray, int[] lengths,
+            int postingCount) {
+        final int[] keys = new int[postingCount];
+        int n = 0;
+        for (int s = 0; s < entryArray.length; s++) {
+            System.arraycopy(entryArray[s].value().keys, 0,
+                             keys, n, lengths[s]);
+            n += lengths[s];
+        }
+        Arrays.sort(keys);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || keys[i] != keys[distinct - 1])
+                keys[distinct++] = keys[i];
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    /**
+     * @return number of entries indexed
+     */
+    public int entryCount() {
+        return entries.length;
+    }
+
+    /**
+     * @return number of distinct features indexed
+     */
+    public int featureCount() {
+        return features.length;
+    }
+
+    /**
+     * @return total number of postings across all features
+     */
+    public int postingCount() {
+        return slots.length;
+    }
+
+    public Indexed<SparseDoubleVector> entry(int slot) {
+        return entries[slot];
+    }
+
+    /**
+     * @return number of features in the entry at the given slot
+     */
+    public int size(int slot) {
+        return sizes[slot];
+    }
+
+    /**
+     * @return true if the entries were indexed in order of increasing size
+     */
+    public boolean isSizeOrdered() {
+        return sizeOrdered;
+    }
+
+    /**
+     * Find the first posting of feature k whose entry has at least minSize
+     * features. The index must be size ordered.
+     *
+     * @return index of the posting, or end(k) if there is none
+     */
+    public int startAtSize(int k, int minSize) {
+        if (!sizeOrdered)
+            throw new IllegalStateException("index is not size ordered");
+        int lo = start(k);
+        int hi = end(k);
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (sizes[slots[mid]] < minSize)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return index of the first posting for feature k
+     */
+    public int start(int k) {
+        final int f = Arrays.binarySearch(features, k);
+        return f >= 0 ? offsets[f] : 0;
+    }
+
+    /**
+     * @return index one past the last posting for feature k
+     */
+    public int end(int k) {
+        final int f = Arrays.binarySearch(features, k);
+        return f >= 0 ? offsets[f + 1] : 0;
+    }
+
+    public int slot(int posting) {
+        return slots[posting];
+    }
+
+    public int position(int posting) {
+        return positions[posting];
+    }
+
+    public boolean hasWeights() {
+        return weights != null;
+    }
+
+    public float weight(int posting) {
+        if (weights == null)
+            throw new IllegalStateException("weights have not been stored");
+        return weights[posting];
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper().toString();
+    }
+
+    protected Objects.ToStringHelper toStringHelper() {
+        return Objects.toStringHelper(this).
+                add("entries", entries.length).
+                add("features", features.length).
+                add("postings", slots.length).
+                add("weights", hasWeights()).
+                add("sizeOrdered", sizeOrdered);
+    }
+}
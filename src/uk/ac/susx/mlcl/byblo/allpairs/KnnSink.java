@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.doubles.DoubleArrays;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import java.io.IOException;
+import uk.ac.susx.mlcl.byblo.io.PairSink;
+import uk.ac.susx.mlcl.byblo.io.PairSinks;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.Sink;
+
+/**
+ * A sink that retains only the k highest weighted pairs for each base entry
+ * (the first id of each pair). Every entry has a bounded min-heap of
+ * neighbour ids and weights, so memory is proportional to the number of
+ * entries times k, regardless of how many pairs are written.
+ *
+ * <p>Writes are synchronized, so a single instance can be shared between all
+ * the workers of a {@link ThreadedApssTask}. Once the search is complete the
+ * neighbours can be written out with {@link #copyTo(Sink, IntComparator)}.</p>
+ *
+ * <p>Where neighbours have equal weights, those with the lower id are
+ * preferred, so the result does not depend on the order of writes.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class KnnSink implements PairSink {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int k;
+
+    private final Int2ObjectMap<NeighbourHeap> heaps =
+            new Int2ObjectOpenHashMap<NeighbourHeap>();
+
+    private long writeCount = 0;
+
+    public KnnSink(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k < 1");
+        this.k = k;
+    }
+
+    public final int getK() {
+        return k;
+    }
+
+    @Override
+    public void write(Weighted<TokenPair> record) throws IOException {
+        write(record.record().id1(), record.record().id2(), record.weight());
+    }
+
+    @Override
+    public synchronized void write(int id1, int id2, double weight)
+            throws IOException {
+        NeighbourHeap heap = heaps.get(id1);
+        if (heap == null) {
+            heap = new NeighbourHeap(Math.min(k, INITIAL_CAPACITY));
+            heaps.put(id1, heap);
+        }
+        heap.offer(id2, weight);
+        ++writeCount;
+    }
+
+    /**
+     * @return number of pairs written to this sink, including those discarded
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * @return number of base entries with at least one neighbour
+     */
+    public synchronized int getEntryCount() {
+        return heaps.size();
+    }
+
+    /**
+     * Write the retained neighbours to the given sink. Entries are written in
+     * the order given by the comparator, and the neighbours of each entry in
+     * descending order of weight.
+     *
+     * @param sink destination of the neighbour pairs
+     * @param entryOrder order in which base entries are written
+     * @return number of pairs written
+     * @throws IOException if the sink throws an exception
+     */
+    public synchronized long copyTo(Sink<? super Weighted<TokenPair>> sink,
+                                    IntComparator entryOrder)
+            throws IOException {
+        Checks.checkNotNull("sink is null", sink);
+        Checks.checkNotNull("entryOrder is null", entryOrder);
+        final int[] entries = heaps.keySet().toIntArray();
+        IntArrays.quickSort(entries, entryOrder);
+
+        final PairSink out = PairSinks.asPairSink(sink);
+        long count = 0;
+        for (int entry : entries) {
+            final NeighbourHeap heap = heaps.get(entry);
+            heap.sortDescending();
+            for (int i = 0; i < heap.size; i++) {
+                out.write(entry, heap.ids[i], heap.weights[i]);
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper().toString();
+    }
+
+    protected Objects.ToStringHelper toStringHelper() {
+        return Objects.toStringHelper(this).
+                add("k", k).
+                add("entries", heaps.size()).
+                add("writes", writeCount);
+    }
+
+    /**
+     * Binary min-heap of at most k neighbours, held in parallel primitive
+     * arrays, with the weakest neighbour at the root.
+     */
+    private final class NeighbourHeap {
+
+        private int[] ids;
+
+        private double[] weights;
+
+        private int size = 0;
+
+        NeighbourHeap(int capacity) {
+            ids = new int[capacity];
+            weights = new double[capacity];
+        }
+
+        void offer(int id, double weight) {
+            if (size < k) {
+                if (size == ids.length) {
+                    final int capacity = (int) Math.min(k, 2L * ids.length);
+                    ids = IntArrays.grow(ids, capacity);
+                    weights = DoubleArrays.grow(weights, capacity);
+                }
+                ids[size] = id;
+                weights[size] = weight;
+                siftUp(size++);
+            } else if (weaker(ids[0], weights[0], id, weight)) {
+                ids[0] = id;
+                weights[0] = weight;
+                siftDown(0, size);
+            }
+        }
+
+        /**
+         * Sort the neighbours strongest first, by heap-sort in place. The
+         * heap property is lost, so the heap must not be offered to again.
+         */
+        void sortDescending() {
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (!weaker(ids[i], weights[i], ids[parent], weights[parent]))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int end) {
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= end)
+                    break;
+                int child = left;
+                if (left + 1 < end && weaker(ids[left + 1], weights[left + 1],
+                                             ids[left], weights[left]))
+                    child = left + 1;
+                if (!weaker(ids[child], weights[child], ids[i], weights[i]))
+                    break;
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            final int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            final double weight = weights[i];
+            weights[i] = weights[j];
+            weights[j] = weight;
+        }
+    }
+
+    /**
+     * @return true if neighbour (idA, weightA) ranks below (idB, weightB)
+     */
+    private static boolean weaker(int idA, double weightA,
+                                  int idB, double weightB) {
+        final int c = Double.compare(weightA, weightB);
+        return c < 0 || (c == 0 && idA > idB);
+    }
+}
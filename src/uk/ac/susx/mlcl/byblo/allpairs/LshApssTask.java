@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableSource;
+
+/**
+ * Base of the approximate all-pairs similarity searches that find candidate
+ * pairs by locality sensitive hashing.
+ *
+ * <p>Every vector of source A is hashed into one bucket in each of a number
+ * of tables. Each vector of source B is then hashed in the same way, and the
+ * entries sharing any of its buckets become candidates. Candidates are scored
+ * exactly with the measure, so no false pairs are produced; only pairs that
+ * never share a bucket are missed.</p>
+ *
+ * <p>Subclasses define the hash functions, with
+ * {@link #tableKeys(SparseDoubleVector, long[])}, and may widen the search by
+ * overriding {@link #findCandidates(long[])}.</p>
+ *
+ * @param <S> type of position in the data sources
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public abstract class LshApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(LshApssTask.class);
+
+    /**
+     * Entries of source A, accessed by slot.
+     */
+    private List<Indexed<SparseDoubleVector>> entries;
+
+    /**
+     * For each table, the first slot in the bucket of each key; -1 if the
+     * bucket is empty.
+     */
+    private Long2IntOpenHashMap[] heads;
+
+    /**
+     * Next slot in the same bucket, accessed by table * entries + slot; -1 at
+     * the end of the bucket.
+     */
+    private int[] next;
+
+    /**
+     * Stamp of the probe in which each slot was last found, so candidates
+     * found in several tables are only counted once.
+     */
+    private int[] stamps;
+
+    private int stamp = 0;
+
+    private final IntArrayList candidates = new IntArrayList();
+
+    public LshApssTask() {
+    }
+
+    /**
+     * @return number of hash tables, and so keys per vector
+     */
+    protected abstract int getTableCount();
+
+    /**
+     * Prepare the hash functions; called once before any vector is hashed.
+     */
+    protected abstract void initialiseHashes();
+
+    /**
+     * Hash the given vector to a key in each table.
+     *
+     * @param vector vector to hash
+     * @param keys   destination of the keys, one for each table
+     * @return false if the vector can not be hashed, for example because it
+     *         has no features, in which case it is never a candidate
+     */
+    protected abstract boolean tableKeys(SparseDoubleVector vector,
+                                         long[] keys);
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        final long start = System.nanoTime();
+        initialiseHashes();
+        buildTables();
+        getStats().addTime(ApssStats.Phase.INDEX, System.nanoTime() - start);
+    }
+
+    /**
+     * Read source A, adding every vector to a bucket in each table.
+     */
+    private void buildTables() throws IOException {
+        final SeekableSource<? extends Indexed<SparseDoubleVector>, S> src =
+                getSourceA();
+        final S startA = src.position();
+        entries = new ArrayList<Indexed<SparseDoubleVector>>();
+        while (src.hasNext()) {
+            entries.add(src.read());
+        }
+        src.position(startA);
+
+        final int tables = getTableCount();
+        final int n = entries.size();
+        heads = new Long2IntOpenHashMap[tables];
+        for (int t = 0; t < tables; t++) {
+            heads[t] = new Long2IntOpenHashMap();
+            heads[t].defaultReturnValue(-1);
+        }
+        next = new int[tables * n];
+        Arrays.fill(next, -1);
+        stamps = new int[n];
+
+        final long[] keys = new long[tables];
+        int hashed = 0;
+        for (int slot = 0; slot < n; slot++) {
+            if (!tableKeys(entries.get(slot).value(), keys))
+                continue;
+            ++hashed;
+            for (int t = 0; t < tables; t++) {
+                next[t * n + slot] = heads[t].put(keys[t], slot);
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Hashed " + hashed + " of " + n + " entries into "
+                    + tables + " tables.");
+        }
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+        final S startB = getSourceB().position();
+        final PairBuffer pairs = new PairBuffer();
+        final long[] keys = new long[getTableCount()];
+        long candidateNanos = 0;
+        long scoringNanos = 0;
+
+        while (getSourceB().hasNext()) {
+            final Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+            final long start = System.nanoTime();
+            if (!tableKeys(b.value(), keys)) {
+                candidateNanos += System.nanoTime() - start;
+                continue;
+            }
+
+            startProbe();
+            findCandidates(keys);
+            final long found = System.nanoTime();
+            candidateNanos += found - start;
+            for (int c = 0; c < candidates.size(); c++) {
+                final Indexed<SparseDoubleVector> a =
+                        entries.get(candidates.getInt(c));
+                if (!getProcessRecord().apply(a))
+                    continue;
+                getStats().incrementCandidatesCount();
+                producePair(pairs, a.key(), b.key(), sim(a, b));
+            }
+            scoringNanos += System.nanoTime() - found;
+        }
+        getStats().addTime(ApssStats.Phase.CANDIDATES, candidateNanos);
+        getStats().addTime(ApssStats.Phase.SCORING, scoringNanos);
+        writePairs(pairs);
+        getSourceB().position(startB);
+    }
+
+    private void startProbe() {
+        candidates.clear();
+        if (++stamp == 0) {
+            // The stamp has wrapped around, so old stamps could be confused
+            // with the current one
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * Find the entries in the buckets of the given keys. Subclasses may
+     * override this to probe further buckets with {@link #probe(int, long)}.
+     */
+    protected void findCandidates(long[] keys) {
+        for (int t = 0; t < keys.length; t++) {
+            probe(t, keys[t]);
+        }
+    }
+
+    /**
+     * Add every entry in the bucket of the given key, that has not already
+     * been found, to the candidates.
+     */
+    protected final void probe(int table, long key) {
+        final int n = entries.size();
+        int slot = heads[table].get(key);
+        while (slot != -1) {
+            if (stamps[slot] != stamp) {
+                stamps[slot] = stamp;
+                candidates.add(slot);
+            }
+            slot = next[table * n + slot];
+        }
+    }
+
+    /**
+     * Finalisation step of the 64 bit MurmurHash3, which spreads every input
+     * bit over the output.
+     */
+    protected static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        super.finaliseTask();
+        entries = null;
+        heads = null;
+        next = null;
+        stamps = null;
+    }
+}
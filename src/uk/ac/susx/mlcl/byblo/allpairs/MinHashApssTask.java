@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects.ToStringHelper;
+import java.util.Arrays;
+import java.util.Random;
+import uk.ac.susx.mlcl.byblo.measure.AbstractProximity;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * An approximate all-pairs similarity search, using locality sensitive
+ * hashing of MinHash signatures to find candidate pairs.
+ *
+ * <p>The signature of each vector is the minimum, over its feature keys, of
+ * each of bands * rows hash functions. The signature is cut into bands of
+ * rows hashes; two vectors become a candidate pair if all the hashes of any
+ * band agree. For vectors whose key sets have a Jaccard coefficient of s, the
+ * probability of that is 1 - (1 - s^rows)^bands (see
+ * {@link #candidateProbability(double, int, int)}), so recall is tuned by
+ * adding bands, and precision by adding rows.</p>
+ *
+ * <p>Every candidate is scored exactly with the measure, so no false pairs
+ * are produced; only pairs that were never candidates are missed. The
+ * estimate is only meaningful for measures over the sets of features, such as
+ * Jaccard, Dice and Overlap, though any measure will work.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MinHashApssTask<S> extends LshApssTask<S> {
+
+    public static final int DEFAULT_BANDS = 20;
+
+    public static final int DEFAULT_ROWS = 5;
+
+    public static final long DEFAULT_SEED = 0x5DEECE66DL;
+
+    /**
+     * Value of every signature hash for a vector without features. Such
+     * vectors are never indexed or probed.
+     */
+    private static final int EMPTY = Integer.MAX_VALUE;
+
+    private int bands = DEFAULT_BANDS;
+
+    private int rows = DEFAULT_ROWS;
+
+    private long seed = DEFAULT_SEED;
+
+    /**
+     * Multiplier and increment of each hash function.
+     */
+    private long[] multipliers;
+
+    private long[] increments;
+
+    private int[] signature;
+
+    public MinHashApssTask() {
+    }
+
+    public int getBands() {
+        return bands;
+    }
+
+    public void setBands(int bands) {
+        if (bands < 1)
+            throw new IllegalArgumentException("bands < 1");
+        this.bands = bands;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public void setRows(int rows) {
+        if (rows < 1)
+            throw new IllegalArgumentException("rows < 1");
+        this.rows = rows;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed seed from which the hash functions are drawn; all tasks
+     *             that are to be compared must use the same seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param similarity Jaccard coefficient of two key sets
+     * @param bands      number of bands
+     * @param rows       hashes per band
+     * @return probability that vectors of the given similarity become a
+     *         candidate pair
+     */
+    public static double candidateProbability(double similarity, int bands,
+                                              int rows) {
+        return 1 - Math.pow(1 - Math.pow(similarity, rows), bands);
+    }
+
+    @Override
+    protected int getTableCount() {
+        return bands;
+    }
+
+    /**
+     * Draw the hash functions from the seed.
+     */
+    @Override
+    protected void initialiseHashes() {
+        final Random random = new Random(seed);
+        final int n = bands * rows;
+        multipliers = new long[n];
+        increments = new long[n];
+        for (int i = 0; i < n; i++) {
+            multipliers[i] = random.nextLong() | 1L;
+            increments[i] = random.nextLong();
+        }
+        signature = new int[n];
+    }
+
+    @Override
+    protected boolean tableKeys(SparseDoubleVector vector, long[] keys) {
+        if (!signature(vector, signature))
+            return false;
+        for (int band = 0; band < bands; band++) {
+            keys[band] = bandKey(signature, band);
+        }
+        return true;
+    }
+
+    /**
+     * Compute the MinHash signature of the given vector.
+     *
+     * @return false if the vector has no features, so has no signature
+     */
+    final boolean signature(SparseDoubleVector v, int[] signature) {
+        Arrays.fill(signature, EMPTY);
+        boolean any = false;
+        for (int i = 0; i < v.size; i++) {
+            final int key = v.keys[i];
+            if (getMeasure() instanceof AbstractProximity
+                    && ((AbstractProximity) getMeasure()).isFiltered(key))
+                continue;
+            any = true;
+            for (int h = 0; h < signature.length; h++) {
+                final int value = (int) (mix(multipliers[h] * key
+                        + increments[h]) >>> 33);
+                if (value < signature[h])
+                    signature[h] = value;
+            }
+        }
+        return any;
+    }
+
+    private long bandKey(int[] signature, int band) {
+        long key = band;
+        for (int r = band * rows; r < (band + 1) * rows; r++) {
+            key = key * 0x9E3779B97F4A7C15L + signature[r];
+        }
+        return mix(key);
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("bands", bands).
+                add("rows", rows).
+                add("seed", seed);
+    }
+}
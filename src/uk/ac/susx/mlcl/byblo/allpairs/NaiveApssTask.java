@@ -42,8 +42,6 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.lib.io.SeekableSource;
 import uk.ac.susx.mlcl.lib.io.Sink;
-import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
-import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.util.ArrayList;
@@ -51,7 +49,6 @@ import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
-import uk.ac.susx.mlcl.lib.io.IOUtil;
 import uk.ac.susx.mlcl.lib.tasks.AbstractTask;
 
 /**
@@ -82,16 +79,38 @@ public class NaiveApssTask<P> extends AbstractTask {
      * Filters that determine which resultant pairs are output
      */
     private Predicate<Weighted<TokenPair>> pruducePair = alwaysTrue();
+    /**
+     * {@link #pruducePair} as a filter that can be applied to a pair before
+     * it is allocated.
+     */
+    private PairFilter pairFilter = PairFilter.alwaysTrue();
+    /**
+     * Lower bound on the similarity of pairs that will be produced. It does
+     * not filter pairs itself (see {@link #pruducePair}) but may be used by
+     * sub-classes to prune candidates early.
+     */
+    private double minSimilarity = Double.NEGATIVE_INFINITY;
+    /**
+     * Whether to produce the mirror image (b,a) of every pair (a,b) as well.
+     * Only valid when the measure is symmetric, and the reverse comparison is
+     * not performed elsewhere.
+     */
+    private boolean mirrorPairs = false;
     // Stat collection
     private ApssStats stats = new ApssStats();
     // Component of the similarity calculation that depends only on the sourceA
     // feature vectorx - can be precalculated to save time during the
     // quadratic part of the algorithm
-    private Int2DoubleMap precalcA = null;
+    private PrecalcTable precalcA = null;
     // Component of the similarity calculation that depends only on the sourceB
     // feature vectors - can be precalculated to save time during the
     // quadratic part of the algorithm
-    private Int2DoubleMap precalcB = null;
+    private PrecalcTable precalcB = null;
+    /**
+     * State derived from source A, shared with other tasks over the same A
+     * chunk; null if this task builds its own.
+     */
+    private SharedChunk sharedA = null;
 
     /**
      * Constructor of minimal parameterisation, taking arguments that must be
@@ -121,10 +140,30 @@ public class NaiveApssTask<P> extends AbstractTask {
     }
     
     public void setProducatePair(Predicate<Weighted<TokenPair>> pruducePair) {
-        Checks.checkNotNull("pruducePair");
+        Checks.checkNotNull("pruducePair", pruducePair);
         this.pruducePair = pruducePair;
+        this.pairFilter = PairFilter.of(pruducePair);
     }
     
+    public double getMinSimilarity() {
+        return minSimilarity;
+    }
+
+    public void setMinSimilarity(double minSimilarity) {
+        if (Double.isNaN(minSimilarity)) {
+            throw new IllegalArgumentException("minSimilarity is NaN");
+        }
+        this.minSimilarity = minSimilarity;
+    }
+
+    public boolean isMirrorPairs() {
+        return mirrorPairs;
+    }
+
+    public void setMirrorPairs(boolean mirrorPairs) {
+        this.mirrorPairs = mirrorPairs;
+    }
+
     public Predicate<Indexed<SparseDoubleVector>> getProcessRecord() {
         return processRecord;
     }
@@ -135,6 +174,23 @@ public class NaiveApssTask<P> extends AbstractTask {
         this.processRecord = processRecord;
     }
     
+    public final SharedChunk getSharedA() {
+        return sharedA;
+    }
+
+    /**
+     * Share the state derived from source A with other tasks. The first of
+     * them to be initialised builds the state from its own source A, which
+     * must be a {@link Chunk}; the rest adopt it in place of theirs, so every
+     * task sharing the state must be given the same A chunk.
+     *
+     * @param sharedA holder of the shared state, or null to build it
+     *                privately
+     */
+    public final void setSharedA(SharedChunk sharedA) {
+        this.sharedA = sharedA;
+    }
+
     public final ApssStats getStats() {
         return stats;
     }
@@ -198,14 +254,29 @@ public class NaiveApssTask<P> extends AbstractTask {
     
     @Override
     protected void initialiseTask() throws Exception {
+        final long start = System.nanoTime();
         checkState();
+        if (sharedA != null) {
+            synchronized (sharedA) {
+                if (sharedA.isBuilt()) {
+                    adoptSharedA(sharedA);
+                    sharedA.markAdopted();
+                } else {
+                    buildSharedA(sharedA);
+                    sharedA.markBuilt();
+                }
+            }
+        }
+        prepareSources();
         buildPrecalcs();
+        stats.addTime(ApssStats.Phase.INDEX, System.nanoTime() - start);
     }
     
     @Override
     protected void runTask() throws Exception {
-        List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final PairBuffer pairs = new PairBuffer();
         final P restartB = getSourceB().position();
+        final long start = System.nanoTime();
 
         // for every vector (a) in source A
         while (getSourceA().hasNext()) {
@@ -227,21 +298,11 @@ public class NaiveApssTask<P> extends AbstractTask {
                     continue;
                 }
                 
-                double sim = sim(a, b);
-                Weighted<TokenPair> pair = new Weighted<TokenPair>(
-                        new TokenPair(a.key(), b.key()), sim);
-                if (pruducePair.apply(pair)) {
-                    pairs.add(pair);
-                    stats.incrementProductionCount();
-                }
-            }
-        }
-        synchronized (getSink()) {
-            IOUtil.copy(pairs, getSink());
-            if (getSink() instanceof Flushable) {
-                ((Flushable) getSink()).flush();
+                producePair(pairs, a.key(), b.key(), sim(a, b));
             }
         }
+        stats.addTime(ApssStats.Phase.SCORING, System.nanoTime() - start);
+        writePairs(pairs);
     }
     
     @Override
@@ -254,6 +315,15 @@ public class NaiveApssTask<P> extends AbstractTask {
         }
         precalcA = null;
         precalcB = null;
+        sharedA = null;
+    }
+
+    /**
+     * @return true if the pairs produced are written to the sink, so one
+     *         must be set before the task is run
+     */
+    protected boolean isSinkRequired() {
+        return true;
     }
 
     /**
@@ -276,7 +346,7 @@ public class NaiveApssTask<P> extends AbstractTask {
         if (sourceA == sourceB) {
             throw new IllegalArgumentException("sourceA == sourceB");
         }
-        if (sink == null) {
+        if (sink == null && isSinkRequired()) {
             throw new IllegalStateException("sink (destination) is not set");
         }
         if (measure == null) {
@@ -288,8 +358,138 @@ public class NaiveApssTask<P> extends AbstractTask {
         if (pruducePair == null) {
             throw new NullPointerException("pairFilter == null");
         }
+        if (sharedA != null && !(sourceA instanceof Chunk)) {
+            throw new IllegalStateException(
+                    "source A must be a chunk for its state to be shared");
+        }
     }
     
+    /**
+     * Replace both sources with ones that yield vectors prepared by the
+     * measure (see {@link Proximity#prepare}), so the work is done once per
+     * vector rather than once per comparison. Chunks are held in memory, so
+     * are prepared immediately; other sources are prepared as they are read.
+     */
+    protected void prepareSources() throws IOException {
+        if (sharedA == null) {
+            sourceA = prepared(sourceA);
+        }
+        sourceB = prepared(sourceB);
+    }
+
+    /**
+     * Prepare source A and calculate its left-hand components, unless they
+     * have been provided, storing them in the given holder for other tasks
+     * to adopt. Called with the lock of the holder held. Sub-classes that
+     * derive more state from source A alone can extend this, and
+     * {@link #adoptSharedA(SharedChunk)}, to share it too.
+     */
+    @SuppressWarnings("unchecked")
+    protected void buildSharedA(SharedChunk shared) throws IOException {
+        sourceA = prepared(sourceA);
+        if (precalcA == null) {
+            precalcA = buildPrecalcA();
+        }
+        shared.setPrepared(
+                ((Chunk<Indexed<SparseDoubleVector>>) sourceA).clone(),
+                precalcA);
+    }
+
+    /**
+     * Replace source A, and its left-hand components, with those built by
+     * another task. Called with the lock of the holder held.
+     */
+    @SuppressWarnings("unchecked")
+    protected void adoptSharedA(SharedChunk shared) throws IOException {
+        final Chunk<Indexed<SparseDoubleVector>> chunk =
+                shared.getPrepared().clone();
+        chunk.position(((Chunk<Indexed<SparseDoubleVector>>) sourceA).
+                position());
+        sourceA = (SeekableSource<Indexed<SparseDoubleVector>, P>) chunk;
+        precalcA = shared.getPrecalc();
+    }
+
+    @SuppressWarnings("unchecked")
+    private SeekableSource<Indexed<SparseDoubleVector>, P> prepared(
+            final SeekableSource<Indexed<SparseDoubleVector>, P> source)
+            throws IOException {
+        if (source instanceof Chunk) {
+            final Chunk<Indexed<SparseDoubleVector>> chunk =
+                    (Chunk<Indexed<SparseDoubleVector>>) source;
+            final List<Indexed<SparseDoubleVector>> items =
+                    new ArrayList<Indexed<SparseDoubleVector>>(chunk.size());
+            for (Indexed<SparseDoubleVector> v : chunk) {
+                items.add(prepare(v));
+            }
+            final Chunk<Indexed<SparseDoubleVector>> result =
+                    new Chunk<Indexed<SparseDoubleVector>>(
+                    chunk.getName(), items);
+            result.position(chunk.position());
+            return (SeekableSource<Indexed<SparseDoubleVector>, P>) result;
+        }
+        return new PreparedSource<P>(source, measure);
+    }
+
+    private Indexed<SparseDoubleVector> prepare(
+            final Indexed<SparseDoubleVector> v) {
+        final SparseDoubleVector prepared = measure.prepare(v.value());
+        return prepared == v.value()
+                ? v : new Indexed<SparseDoubleVector>(v.key(), prepared);
+    }
+
+    /**
+     * Decorates a source, preparing each vector as it is read.
+     */
+    private static final class PreparedSource<P>
+            implements SeekableSource<Indexed<SparseDoubleVector>, P>,
+                       Closeable {
+
+        private final SeekableSource<Indexed<SparseDoubleVector>, P> inner;
+
+        private final Proximity measure;
+
+        PreparedSource(SeekableSource<Indexed<SparseDoubleVector>, P> inner,
+                       Proximity measure) {
+            this.inner = inner;
+            this.measure = measure;
+        }
+
+        @Override
+        public Indexed<SparseDoubleVector> read() throws IOException {
+            final Indexed<SparseDoubleVector> v = inner.read();
+            final SparseDoubleVector prepared = measure.prepare(v.value());
+            return prepared == v.value()
+                    ? v : new Indexed<SparseDoubleVector>(v.key(), prepared);
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            return inner.hasNext();
+        }
+
+        @Override
+        public void position(P offset) throws IOException {
+            inner.position(offset);
+        }
+
+        @Override
+        public P position() throws IOException {
+            return inner.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inner instanceof Closeable) {
+                ((Closeable) inner).close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return inner.toString();
+        }
+    }
+
     protected void buildPrecalcs() throws IOException {
         // Calculate the left and right hand components if they have not been
         // provided.
@@ -302,36 +502,100 @@ public class NaiveApssTask<P> extends AbstractTask {
         
     }
     
-    protected Int2DoubleMap getPrecalcA() {
+    protected PrecalcTable getPrecalcA() {
         return precalcA;
     }
     
-    protected Int2DoubleMap getPrecalcB() {
+    protected PrecalcTable getPrecalcB() {
         return precalcB;
     }
+
+    /**
+     * Provide the left-hand components of the vectors in source A, for
+     * example calculated once for a whole run, rather than have the task
+     * calculate them during initialisation.
+     *
+     * @param precalcA left-hand component of each vector in source A, or
+     *                 null to calculate them
+     */
+    public final void setPrecalcA(PrecalcTable precalcA) {
+        this.precalcA = precalcA;
+    }
+
+    /**
+     * Provide the right-hand components of the vectors in source B, rather
+     * than have the task calculate them during initialisation.
+     *
+     * @param precalcB right-hand component of each vector in source B, or
+     *                 null to calculate them
+     */
+    public final void setPrecalcB(PrecalcTable precalcB) {
+        this.precalcB = precalcB;
+    }
     
-    protected Int2DoubleMap buildPrecalcA() throws IOException {
-        final P startA = sourceA.position();
-        Int2DoubleOpenHashMap result = new Int2DoubleOpenHashMap();
-        while (sourceA.hasNext()) {
-            Indexed<SparseDoubleVector> p = sourceA.read();
-            result.put(p.key(), getMeasure().left(p.value()));
-        }
-        sourceA.position(startA);
-        return result;
+    protected PrecalcTable buildPrecalcA() throws IOException {
+        return PrecalcTable.left(sourceA, getMeasure());
     }
     
-    protected Int2DoubleMap buildPrecalcB() throws IOException {
-        final P startB = sourceB.position();
-        Int2DoubleOpenHashMap result = new Int2DoubleOpenHashMap();
-        while (sourceB.hasNext()) {
-            Indexed<SparseDoubleVector> p = sourceB.read();
-            result.put(p.key(), getMeasure().right(p.value()));
-        }
-        sourceB.position(startB);
-        return result;
+    protected PrecalcTable buildPrecalcB() throws IOException {
+        return PrecalcTable.right(sourceB, getMeasure());
     }
     
+    /**
+     * Add the pair of entries with the given similarity to the output buffer
+     * if it is accepted by the production filter. When mirroring is enabled
+     * the reversed pair is also offered. Nothing is allocated unless the
+     * filter or the sink only accepts pair objects.
+     */
+    protected final void producePair(final PairBuffer pairs,
+            final int keyA, final int keyB, final double sim)
+            throws IOException {
+        if (pairFilter.accept(keyA, keyB, sim)) {
+            emitPair(pairs, keyA, keyB, sim);
+        }
+        if (mirrorPairs && pairFilter.accept(keyB, keyA, sim)) {
+            emitPair(pairs, keyB, keyA, sim);
+        }
+    }
+
+    /**
+     * A {@link ShardedPairSink} can be written to concurrently, so pairs are
+     * passed straight through to it; otherwise they are buffered until
+     * {@link #writePairs(PairBuffer)}.
+     */
+    private void emitPair(final PairBuffer pairs,
+            final int id1, final int id2, final double sim)
+            throws IOException {
+        if (sink instanceof ShardedPairSink) {
+            ((ShardedPairSink) sink).write(id1, id2, sim);
+        } else {
+            pairs.add(id1, id2, sim);
+        }
+        stats.incrementProductionCount();
+    }
+
+    /**
+     * Copy the buffered pairs to the sink, holding the sink's lock for the
+     * duration. Nothing is locked when there are no pairs to write. The time
+     * spent waiting for the lock and writing is recorded as
+     * {@link ApssStats.Phase#SINK}.
+     */
+    protected final void writePairs(final PairBuffer pairs)
+            throws IOException {
+        if (pairs.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        synchronized (getSink()) {
+            pairs.writeTo(getSink());
+            if (getSink() instanceof Flushable) {
+                ((Flushable) getSink()).flush();
+            }
+        }
+        stats.addTime(ApssStats.Phase.SINK, System.nanoTime() - start);
+        pairs.clear();
+    }
+
     protected final double sim(
             final Indexed<SparseDoubleVector> a,
             final Indexed<SparseDoubleVector> b) {
@@ -341,6 +605,22 @@ public class NaiveApssTask<P> extends AbstractTask {
                 precalcA.get(a.key()),
                 precalcB.get(b.key()));
     }
+
+    /**
+     * Calculate the similarity of a and b from a shared component that has
+     * already been found, for example by accumulating the terms of a
+     * {@link uk.ac.susx.mlcl.byblo.measure.DecomposableProximity}.
+     */
+    protected final double sim(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b,
+            final double shared) {
+        stats.incrementComparisonCount();
+        return measure.combine(
+                shared,
+                precalcA.get(a.key()),
+                precalcB.get(b.key()));
+    }
     
     @Override
     protected ToStringHelper toStringHelper() {
@@ -351,6 +631,8 @@ public class NaiveApssTask<P> extends AbstractTask {
                 add("sink", sink).
                 add("processRecord", processRecord).
                 add("pruducePair", pruducePair).
+                add("minSimilarity", minSimilarity).
+                add("mirrorPairs", mirrorPairs).
                 add("stats", stats);
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import java.io.IOException;
+import java.util.Arrays;
+import uk.ac.susx.mlcl.byblo.io.PairSink;
+import uk.ac.susx.mlcl.byblo.io.PairSinks;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.io.Sink;
+
+/**
+ * A growable buffer of weighted pairs held in parallel primitive arrays, so
+ * buffering a pair allocates nothing once the buffer has grown to the size
+ * of the output. The buffer can be cleared and reused.
+ *
+ * <p>Not thread-safe.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PairBuffer {
+
+    private static final int DEFAULT_CAPACITY = 1 << 6;
+
+    private int[] ids1;
+
+    private int[] ids2;
+
+    private double[] weights;
+
+    private int size = 0;
+
+    public PairBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PairBuffer(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("initialCapacity < 0");
+        ids1 = new int[initialCapacity];
+        ids2 = new int[initialCapacity];
+        weights = new double[initialCapacity];
+    }
+
+    public void add(int id1, int id2, double weight) {
+        if (size == ids1.length) {
+            grow();
+        }
+        ids1[size] = id1;
+        ids2[size] = id2;
+        weights[size] = weight;
+        ++size;
+    }
+
+    private void grow() {
+        final int capacity = Math.max(DEFAULT_CAPACITY, ids1.length * 2);
+        ids1 = Arrays.copyOf(ids1, capacity);
+        ids2 = Arrays.copyOf(ids2, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int id1(int index) {
+        checkIndex(index);
+        return ids1[index];
+    }
+
+    public int id2(int index) {
+        checkIndex(index);
+        return ids2[index];
+    }
+
+    public double weight(int index) {
+        checkIndex(index);
+        return weights[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException(
+                    "index " + index + " not in [0," + size + ")");
+    }
+
+    /**
+     * Remove all the pairs, keeping the allocated capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Write the buffered pairs to the sink, in the order they were added.
+     * Pairs are only boxed if the sink is not a {@link PairSink}.
+     *
+     * @param sink destination of the pairs
+     * @return number of pairs written
+     * @throws IOException if the sink fails
+     */
+    public long writeTo(Sink<? super Weighted<TokenPair>> sink)
+            throws IOException {
+        final PairSink out = PairSinks.asPairSink(sink);
+        for (int i = 0; i < size; i++) {
+            out.write(ids1[i], ids2[i], weights[i]);
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("size", size).
+                add("capacity", ids1.length).
+                toString();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import java.util.Arrays;
+import java.util.List;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * A predicate on weighted token pairs that can be applied to the ids and
+ * weight of a pair directly, so pairs rejected by the filter are never
+ * allocated. Applying the filter to a pair object is equivalent to calling
+ * {@link #accept(int, int, double)} with its fields.
+ *
+ * <p>Any other predicate can be adapted with {@link #of(Predicate)}, at the
+ * cost of boxing every pair it is offered.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public abstract class PairFilter implements Predicate<Weighted<TokenPair>> {
+
+    /**
+     * @param id1    id of the first token
+     * @param id2    id of the second token
+     * @param weight weight of the pair
+     * @return true if the pair should be produced
+     */
+    public abstract boolean accept(int id1, int id2, double weight);
+
+    @Override
+    public final boolean apply(Weighted<TokenPair> pair) {
+        return accept(pair.record().id1(), pair.record().id2(),
+                      pair.weight());
+    }
+
+    private static final PairFilter ALWAYS_TRUE = new PairFilter() {
+
+        @Override
+        public boolean accept(int id1, int id2, double weight) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "true";
+        }
+    };
+
+    private static final PairFilter NOT_IDENTITY = new PairFilter() {
+
+        @Override
+        public boolean accept(int id1, int id2, double weight) {
+            return id1 != id2;
+        }
+
+        @Override
+        public String toString() {
+            return "not(identity)";
+        }
+    };
+
+    /**
+     * @return filter accepting every pair
+     */
+    public static PairFilter alwaysTrue() {
+        return ALWAYS_TRUE;
+    }
+
+    /**
+     * @return filter accepting pairs of two different tokens
+     */
+    public static PairFilter notIdentity() {
+        return NOT_IDENTITY;
+    }
+
+    /**
+     * @param weight inclusive lower bound
+     * @return filter accepting pairs weighted at least the given weight
+     */
+    public static PairFilter greaterThanOrEqualTo(final double weight) {
+        return new PairFilter() {
+
+            @Override
+            public boolean accept(int id1, int id2, double w) {
+                return w >= weight;
+            }
+
+            @Override
+            public String toString() {
+                return "weight>=" + weight;
+            }
+        };
+    }
+
+    /**
+     * @param weight inclusive upper bound
+     * @return filter accepting pairs weighted at most the given weight
+     */
+    public static PairFilter lessThanOrEqualTo(final double weight) {
+        return new PairFilter() {
+
+            @Override
+            public boolean accept(int id1, int id2, double w) {
+                return w <= weight;
+            }
+
+            @Override
+            public String toString() {
+                return "weight<=" + weight;
+            }
+        };
+    }
+
+    /**
+     * @param filters filters that must all accept a pair
+     * @return filter accepting pairs accepted by every given filter
+     */
+    public static PairFilter and(List<? extends PairFilter> filters) {
+        final PairFilter[] components =
+                filters.toArray(new PairFilter[filters.size()]);
+        for (PairFilter filter : components) {
+            Checks.checkNotNull("filter is null", filter);
+        }
+        if (components.length == 1) {
+            return components[0];
+        }
+        return new PairFilter() {
+
+            @Override
+            public boolean accept(int id1, int id2, double weight) {
+                for (PairFilter filter : components) {
+                    if (!filter.accept(id1, id2, weight)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return "and(" + Joiner.on(',').join(
+                        Arrays.asList(components)) + ")";
+            }
+        };
+    }
+
+    /**
+     * Return the given predicate as a pair filter: the predicate itself if it
+     * already is one, otherwise an adapter that boxes every pair before
+     * applying it.
+     *
+     * @param predicate predicate on pairs
+     * @return equivalent pair filter
+     */
+    public static PairFilter of(
+            final Predicate<? super Weighted<TokenPair>> predicate) {
+        Checks.checkNotNull("predicate is null", predicate);
+        if (predicate instanceof PairFilter) {
+            return (PairFilter) predicate;
+        }
+        return new PairFilter() {
+
+            @Override
+            public boolean accept(int id1, int id2, double weight) {
+                return predicate.apply(new Weighted<TokenPair>(
+                        new TokenPair(id1, id2), weight));
+            }
+
+            @Override
+            public String toString() {
+                return predicate.toString();
+            }
+        };
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import uk.ac.susx.mlcl.byblo.measure.Proximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableSource;
+
+/**
+ * Precalculated components of a measure (see {@link Proximity#left} and
+ * {@link Proximity#right}) held in a dense array indexed by entry id, so
+ * looking one up during a comparison is a single array access rather than a
+ * hash lookup. Entry ids are allocated densely from zero, so the table is
+ * about as large as the number of entries. Looking up an id that was never
+ * put is an error, rather than a silent zero that would corrupt the scores.
+ *
+ * <p>The table grows as values are put. It is not thread-safe while being
+ * filled, but once filled can be read by any number of threads, provided it
+ * was safely published to them.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PrecalcTable {
+
+    private static final int DEFAULT_CAPACITY = 1 << 10;
+
+    private double[] values;
+
+    private final BitSet filled = new BitSet();
+
+    private int size = 0;
+
+    public PrecalcTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PrecalcTable(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("initialCapacity < 0");
+        values = new double[initialCapacity];
+    }
+
+    /**
+     * @param id entry id
+     * @return value stored for the entry
+     * @throws IllegalArgumentException if no value has been stored for the
+     *                                  entry
+     */
+    public double get(int id) {
+        if (id < 0 || !filled.get(id))
+            throw new IllegalArgumentException(
+                    "no value precalculated for id " + id);
+        return values[id];
+    }
+
+    public void put(int id, double value) {
+        if (id < 0)
+            throw new IllegalArgumentException("id < 0: " + id);
+        if (id >= values.length) {
+            values = Arrays.copyOf(values,
+                                   Math.max(id + 1, values.length * 2));
+        }
+        values[id] = value;
+        if (!filled.get(id)) {
+            filled.set(id);
+            ++size;
+        }
+    }
+
+    /**
+     * @return number of entries with a value in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Read the rest of the given source, storing the left-hand component of
+     * every vector, then return the source to where it started.
+     */
+    public static <P> PrecalcTable left(
+            SeekableSource<Indexed<SparseDoubleVector>, P> source,
+            Proximity measure) throws IOException {
+        return build(source, measure, true);
+    }
+
+    /**
+     * Read the rest of the given source, storing the right-hand component of
+     * every vector, then return the source to where it started.
+     */
+    public static <P> PrecalcTable right(
+            SeekableSource<Indexed<SparseDoubleVector>, P> source,
+            Proximity measure) throws IOException {
+        return build(source, measure, false);
+    }
+
+    private static <P> PrecalcTable build(
+            SeekableSource<Indexed<SparseDoubleVector>, P> source,
+            Proximity measure, boolean left) throws IOException {
+        final P start = source.position();
+        final PrecalcTable result = new PrecalcTable();
+        while (source.hasNext()) {
+            final Indexed<SparseDoubleVector> v = source.read();
+            result.put(v.key(), left
+                    ? measure.left(v.value())
+                    : measure.right(v.value()));
+        }
+        source.position(start);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("size", size).
+                add("capacity", values.length).
+                toString();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import uk.ac.susx.mlcl.byblo.io.PairSink;
+import uk.ac.susx.mlcl.byblo.io.PairSinks;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measure.Proximity;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableSource;
+import uk.ac.susx.mlcl.lib.io.Sink;
+
+/**
+ * Estimates the recall of an approximate all-pairs search, by comparing the
+ * pairs it produces for a random sample of entries with those of an exact
+ * search over the same sample.
+ *
+ * <p>The estimator is a sink that passes every pair on to another sink, while
+ * remembering those whose base entry is in the sample. Once the approximate
+ * search is complete, {@link #computeExact} finds the exact pairs of every
+ * sampled entry, and counts how many were also produced by the approximate
+ * search. Writes are synchronized, so a single instance can be shared by all
+ * the workers of a {@link ThreadedApssTask}.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class RecallEstimator
+        implements PairSink, Flushable {
+
+    private final PairSink sink;
+
+    private final List<Indexed<SparseDoubleVector>> sample;
+
+    private final IntSet sampleIds = new IntOpenHashSet();
+
+    private final LongSet found = new LongOpenHashSet();
+
+    private long expectedCount = 0;
+
+    private long matchedCount = 0;
+
+    public RecallEstimator(Sink<Weighted<TokenPair>> sink,
+                           List<Indexed<SparseDoubleVector>> sample) {
+        Checks.checkNotNull("sink is null", sink);
+        Checks.checkNotNull("sample is null", sample);
+        this.sink = PairSinks.asPairSink(sink);
+        this.sample = sample;
+        for (Indexed<SparseDoubleVector> entry : sample) {
+            sampleIds.add(entry.key());
+        }
+    }
+
+    /**
+     * Draw a uniform random sample of the vectors in the given source, by
+     * reservoir sampling, then return the source to where it started.
+     *
+     * @param source vectors to sample
+     * @param size   maximum number of vectors to draw
+     * @param seed   seed of the random number generator
+     * @return the sampled vectors, in source order
+     */
+    public static <S> List<Indexed<SparseDoubleVector>> sample(
+            SeekableSource<Indexed<SparseDoubleVector>, S> source, int size,
+            long seed) throws IOException {
+        Checks.checkNotNull("source is null", source);
+        if (size < 1)
+            throw new IllegalArgumentException("size < 1");
+        final Random random = new Random(seed);
+        final List<Indexed<SparseDoubleVector>> reservoir =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        final List<Long> order = new ArrayList<Long>();
+        final S start = source.position();
+        long n = 0;
+        while (source.hasNext()) {
+            final Indexed<SparseDoubleVector> v = source.read();
+            if (reservoir.size() < size) {
+                reservoir.add(v);
+                order.add(n);
+            } else {
+                final long r = (long) (random.nextDouble() * (n + 1));
+                if (r < size) {
+                    reservoir.set((int) r, v);
+                    order.set((int) r, n);
+                }
+            }
+            ++n;
+        }
+        source.position(start);
+
+        // Restore the source order
+        final List<Indexed<SparseDoubleVector>> result =
+                new ArrayList<Indexed<SparseDoubleVector>>(reservoir.size());
+        final Long[] positions = order.toArray(new Long[order.size()]);
+        final Integer[] slots = new Integer[positions.length];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = i;
+        }
+        Arrays.sort(slots, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer a, Integer b) {
+                return positions[a].compareTo(positions[b]);
+            }
+        });
+        for (Integer slot : slots) {
+            result.add(reservoir.get(slot));
+        }
+        return result;
+    }
+
+    public final List<Indexed<SparseDoubleVector>> getSample() {
+        return sample;
+    }
+
+    @Override
+    public synchronized void write(Weighted<TokenPair> record)
+            throws IOException {
+        sink.write(record);
+        if (sampleIds.contains(record.record().id1()))
+            found.add(pairKey(record.record().id1(), record.record().id2()));
+    }
+
+    @Override
+    public synchronized void write(int id1, int id2, double weight)
+            throws IOException {
+        sink.write(id1, id2, weight);
+        if (sampleIds.contains(id1))
+            found.add(pairKey(id1, id2));
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (sink instanceof Flushable) {
+            ((Flushable) sink).flush();
+        }
+    }
+
+    /**
+     * Find the exact pairs of the sampled entries with every entry in the
+     * given source, counting those that were also written to this sink.
+     *
+     * @param source        all the vectors that were searched
+     * @param measure       measure used by the approximate search
+     * @param producePair   filter on the pairs produced
+     * @param minSimilarity lower bound on the similarity of produced pairs,
+     *                      used for pruning
+     * @param chunkSize     number of vectors compared to the sample at once
+     */
+    public <S> void computeExact(
+            SeekableSource<Indexed<SparseDoubleVector>, S> source,
+            Proximity measure, Predicate<Weighted<TokenPair>> producePair,
+            double minSimilarity, int chunkSize) throws Exception {
+        final Chunk<Indexed<SparseDoubleVector>> sampleChunk =
+                new Chunk<Indexed<SparseDoubleVector>>("sample", sample);
+        final Sink<Weighted<TokenPair>> counter =
+                new Sink<Weighted<TokenPair>>() {
+
+                    @Override
+                    public void write(Weighted<TokenPair> record) {
+                        countExact(record.record());
+                    }
+                };
+        synchronized (this) {
+            expectedCount = 0;
+            matchedCount = 0;
+        }
+
+        // The sample is side A of every task, so it is prepared, and its
+        // left-hand components and index built, by the first task alone;
+        // the rest adopt that state rather than rebuilding it.
+        final SharedChunk sharedSample = new SharedChunk("sample");
+
+        final Chunker<Indexed<SparseDoubleVector>, S> chunker =
+                new Chunker<Indexed<SparseDoubleVector>, S>(source, chunkSize);
+        while (chunker.hasNext()) {
+            final InvertedApssTask<Integer> task =
+                    new InvertedApssTask<Integer>();
+            task.setSourceA(sampleChunk.clone());
+            task.setSharedA(sharedSample);
+            task.setSourceB(chunker.read());
+            task.setMeasure(measure);
+            task.setProducatePair(producePair);
+            task.setMinSimilarity(minSimilarity);
+            task.setSink(counter);
+            task.run();
+            while (task.isExceptionThrown()) {
+                task.throwException();
+            }
+        }
+    }
+
+    private synchronized void countExact(TokenPair pair) {
+        ++expectedCount;
+        if (found.contains(pairKey(pair.id1(), pair.id2())))
+            ++matchedCount;
+    }
+
+    /**
+     * @return number of pairs of the sampled entries found by the exact
+     *         search
+     */
+    public synchronized long getExpectedCount() {
+        return expectedCount;
+    }
+
+    /**
+     * @return number of exact pairs of the sampled entries that were also
+     *         produced by the approximate search
+     */
+    public synchronized long getMatchedCount() {
+        return matchedCount;
+    }
+
+    /**
+     * @return fraction of the exact pairs produced by the approximate search;
+     *         1 if there are no exact pairs
+     */
+    public synchronized double getRecall() {
+        return expectedCount == 0 ? 1 : (double) matchedCount / expectedCount;
+    }
+
+    private static long pairKey(int id1, int id2) {
+        return ((long) id1 << 32) | (id2 & 0xffffffffL);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("sink", sink).
+                add("sample", sample.size()).
+                add("expected", getExpectedCount()).
+                add("matched", getMatchedCount()).
+                toString();
+    }
+}
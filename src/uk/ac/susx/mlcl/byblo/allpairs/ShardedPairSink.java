@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.PairSink;
+import uk.ac.susx.mlcl.byblo.io.PairSinks;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.Sink;
+
+/**
+ * A sink that can be written to concurrently without locking. Every writing
+ * thread is given its own shard, which buffers pairs in primitive arrays and
+ * spills them to a private binary file when full. Once all writing is
+ * complete, and the sink has been closed, the shards are concatenated into
+ * another sink with {@link #copyTo(Sink)}.
+ *
+ * <p>Pairs are also partitioned by their base entry (the first id), so that
+ * all the pairs of an entry end up in the same partition, which can be copied
+ * out independently with {@link #copyPartitionTo(int, Sink)}. By default the
+ * partition is the entry id modulo the number of partitions; subclasses can
+ * override {@link #partition(int)}.</p>
+ *
+ * <p>Within each shard and partition, pairs are kept in the order written.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ShardedPairSink implements PairSink, Closeable {
+
+    private static final Log LOG = LogFactory.getLog(ShardedPairSink.class);
+
+    /**
+     * Number of pairs buffered per shard and partition before spilling.
+     */
+    private static final int BUFFER_SIZE = 1 << 12;
+
+    private final FileFactory fileFactory;
+
+    private final int partitionCount;
+
+    private final List<Shard> shards = new ArrayList<Shard>();
+
+    private final ThreadLocal<Shard> localShard = new ThreadLocal<Shard>() {
+
+        @Override
+        protected Shard initialValue() {
+            final Shard shard = new Shard();
+            synchronized (shards) {
+                if (closed)
+                    throw new IllegalStateException("sink is closed");
+                shards.add(shard);
+            }
+            return shard;
+        }
+    };
+
+    private volatile boolean closed = false;
+
+    public ShardedPairSink(FileFactory fileFactory, int partitionCount) {
+        Checks.checkNotNull("fileFactory is null", fileFactory);
+        if (partitionCount < 1)
+            throw new IllegalArgumentException("partitionCount < 1");
+        this.fileFactory = fileFactory;
+        this.partitionCount = partitionCount;
+    }
+
+    public ShardedPairSink(FileFactory fileFactory) {
+        this(fileFactory, 1);
+    }
+
+    public final int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * @return number of shards; i.e the number of threads that have written
+     */
+    public int getShardCount() {
+        synchronized (shards) {
+            return shards.size();
+        }
+    }
+
+    @Override
+    public void write(Weighted<TokenPair> record) throws IOException {
+        write(record.record().id1(), record.record().id2(), record.weight());
+    }
+
+    @Override
+    public void write(int id1, int id2, double weight) throws IOException {
+        if (closed)
+            throw new IllegalStateException("sink is closed");
+        localShard.get().write(partition(id1), id1, id2, weight);
+    }
+
+    /**
+     * @param entryId id of a base entry
+     * @return partition, between 0 and partitionCount-1, holding the pairs
+     *         of the given entry
+     */
+    protected int partition(int entryId) {
+        return (entryId & Integer.MAX_VALUE) % partitionCount;
+    }
+
+    /**
+     * Spill all buffered pairs and close the shard files. No more pairs can
+     * be written; all writing threads must have finished.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (shards) {
+            if (closed)
+                return;
+            closed = true;
+            for (Shard shard : shards) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * Copy all pairs to the given sink, partition by partition.
+     *
+     * @return number of pairs copied
+     */
+    public long copyTo(Sink<? super Weighted<TokenPair>> sink)
+            throws IOException {
+        long count = 0;
+        for (int p = 0; p < partitionCount; p++) {
+            count += copyPartitionTo(p, sink);
+        }
+        return count;
+    }
+
+    /**
+     * Copy the pairs of a single partition to the given sink, shard by shard.
+     *
+     * @return number of pairs copied
+     */
+    public long copyPartitionTo(int partition,
+                                Sink<? super Weighted<TokenPair>> sink)
+            throws IOException {
+        Checks.checkNotNull("sink is null", sink);
+        if (partition < 0 || partition >= partitionCount)
+            throw new IllegalArgumentException("partition " + partition
+                    + " is outside the range 0 to " + (partitionCount - 1));
+        if (!closed)
+            throw new IllegalStateException("sink has not been closed");
+        long count = 0;
+        synchronized (shards) {
+            for (Shard shard : shards) {
+                count += shard.copyTo(partition, sink);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Delete the shard files.
+     */
+    public void delete() {
+        synchronized (shards) {
+            for (Shard shard : shards) {
+                shard.delete();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper().toString();
+    }
+
+    protected Objects.ToStringHelper toStringHelper() {
+        return Objects.toStringHelper(this).
+                add("fileFactory", fileFactory).
+                add("partitions", partitionCount).
+                add("shards", getShardCount()).
+                add("closed", closed);
+    }
+
+    /**
+     * The buffers and files of a single writing thread. Only that thread
+     * accesses a shard until the sink is closed.
+     */
+    private final class Shard {
+
+        private final int[][] ids1 = new int[partitionCount][];
+
+        private final int[][] ids2 = new int[partitionCount][];
+
+        private final double[][] weights = new double[partitionCount][];
+
+        private final int[] sizes = new int[partitionCount];
+
+        private final File[] files = new File[partitionCount];
+
+        private final DataOutputStream[] outs =
+                new DataOutputStream[partitionCount];
+
+        void write(int partition, int id1, int id2, double weight)
+                throws IOException {
+            if (ids1[partition] == null) {
+                ids1[partition] = new int[BUFFER_SIZE];
+                ids2[partition] = new int[BUFFER_SIZE];
+                weights[partition] = new double[BUFFER_SIZE];
+            } else if (sizes[partition] == BUFFER_SIZE) {
+                spill(partition);
+            }
+            final int i = sizes[partition]++;
+            ids1[partition][i] = id1;
+            ids2[partition][i] = id2;
+            weights[partition][i] = weight;
+        }
+
+        private void spill(int partition) throws IOException {
+            if (outs[partition] == null) {
+                files[partition] = fileFactory.createFile();
+                outs[partition] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(files[partition])));
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Spilling partition " + partition + " of thread "
+                            + Thread.currentThread().getName() + " to \""
+                            + files[partition] + "\".");
+                }
+            }
+            final DataOutputStream out = outs[partition];
+            for (int i = 0; i < sizes[partition]; i++) {
+                out.writeInt(ids1[partition][i]);
+                out.writeInt(ids2[partition][i]);
+                out.writeDouble(weights[partition][i]);
+            }
+            sizes[partition] = 0;
+        }
+
+        void close() throws IOException {
+            for (int p = 0; p < partitionCount; p++) {
+                if (outs[p] != null) {
+                    spill(p);
+                    outs[p].close();
+                    outs[p] = null;
+                }
+            }
+        }
+
+        long copyTo(int partition, Sink<? super Weighted<TokenPair>> sink)
+                throws IOException {
+            final PairSink out = PairSinks.asPairSink(sink);
+            long count = 0;
+            if (files[partition] != null) {
+                final DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(
+                        new FileInputStream(files[partition])));
+                try {
+                    while (true) {
+                        final int id1;
+                        try {
+                            id1 = in.readInt();
+                        } catch (EOFException ex) {
+                            break;
+                        }
+                        final int id2 = in.readInt();
+                        final double weight = in.readDouble();
+                        out.write(id1, id2, weight);
+                        ++count;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            // Pairs that were never spilled are still in memory
+            for (int i = 0; i < sizes[partition]; i++) {
+                out.write(ids1[partition][i], ids2[partition][i],
+                          weights[partition][i]);
+                ++count;
+            }
+            return count;
+        }
+
+        void delete() {
+            for (int p = 0; p < partitionCount; p++) {
+                if (files[p] != null && !files[p].delete()
+                        && LOG.isWarnEnabled()) {
+                    LOG.warn("Failed to delete shard file \"" + files[p]
+                            + "\".");
+                }
+                files[p] = null;
+                sizes[p] = 0;
+                ids1[p] = null;
+                ids2[p] = null;
+                weights[p] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * The state an all-pairs task derives from its A chunk alone: the prepared
+ * vectors, their left-hand precalculated components, and any index over
+ * them. When a chunk of A is compared with many chunks of B, the tasks can
+ * share one instance, so the state is built by the first task to start and
+ * adopted by the rest.
+ *
+ * <p>Tasks build and adopt the state while holding the lock of this object
+ * (see {@link NaiveApssTask#setSharedA(SharedChunk)}); once built it is
+ * never modified, so it may be read concurrently without locking.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class SharedChunk {
+
+    private final String name;
+
+    private boolean built = false;
+
+    private Chunk<Indexed<SparseDoubleVector>> prepared = null;
+
+    private PrecalcTable precalc = null;
+
+    private InvertedIndex index = null;
+
+    private int adoptCount = 0;
+
+    public SharedChunk(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true once a task has built the state
+     */
+    public synchronized boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * @return number of tasks that used the state without building it
+     */
+    public synchronized int getAdoptCount() {
+        return adoptCount;
+    }
+
+    synchronized Chunk<Indexed<SparseDoubleVector>> getPrepared() {
+        return prepared;
+    }
+
+    synchronized PrecalcTable getPrecalc() {
+        return precalc;
+    }
+
+    /**
+     * @return index over the prepared vectors, or null if the building task
+     *         did not use one
+     */
+    synchronized InvertedIndex getIndex() {
+        return index;
+    }
+
+    synchronized void setPrepared(
+            Chunk<Indexed<SparseDoubleVector>> prepared,
+            PrecalcTable precalc) {
+        Checks.checkNotNull("prepared is null", prepared);
+        Checks.checkNotNull("precalc is null", precalc);
+        checkNotBuilt();
+        this.prepared = prepared;
+        this.precalc = precalc;
+    }
+
+    synchronized void setIndex(InvertedIndex index) {
+        Checks.checkNotNull("index is null", index);
+        checkNotBuilt();
+        this.index = index;
+    }
+
+    synchronized void markBuilt() {
+        checkNotBuilt();
+        if (prepared == null)
+            throw new IllegalStateException("prepared vectors are not set");
+        built = true;
+    }
+
+    synchronized void markAdopted() {
+        if (!built)
+            throw new IllegalStateException("state is not built");
+        ++adoptCount;
+    }
+
+    private void checkNotBuilt() {
+        if (built)
+            throw new IllegalStateException("state is already built");
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this).
+                add("name", name).
+                add("built", built).
+                add("size", prepared == null ? 0 : prepared.size()).
+                add("index", index != null).
+                add("adoptCount", adoptCount).
+                toString();
+    }
+}
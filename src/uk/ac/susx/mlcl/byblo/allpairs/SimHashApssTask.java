@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects.ToStringHelper;
+import java.util.Arrays;
+import java.util.Random;
+import uk.ac.susx.mlcl.byblo.measure.AngularProximity;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * An approximate all-pairs similarity search for {@link AngularProximity}
+ * measures, such as Cosine, using signed random projections (SimHash) to
+ * find candidate pairs.
+ *
+ * <p>Each bit of a vector's sketch is the sign of its dot product with a
+ * random hyperplane, where the hyperplane has a pseudo-random +1 or -1 for
+ * every feature, derived by hashing the feature key. Two vectors at angle
+ * theta agree on each bit with probability 1 - theta / pi. The sketch is cut
+ * into tables of bits each, and vectors agreeing on all the bits of any table
+ * become candidates. With a Hamming radius of 1, buckets differing from the
+ * vector's own in a single bit are also probed, which finds more pairs for
+ * bits + 1 times the lookups. See
+ * {@link #candidateProbability(double, int, int, int)}.</p>
+ *
+ * <p>The sketch of a vector is computed in a single pass over its features,
+ * and every candidate is scored exactly with the measure.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class SimHashApssTask<S> extends LshApssTask<S> {
+
+    public static final int DEFAULT_TABLES = 16;
+
+    public static final int DEFAULT_BITS = 12;
+
+    public static final long DEFAULT_SEED = 0x5DEECE66DL;
+
+    private int tables = DEFAULT_TABLES;
+
+    private int bits = DEFAULT_BITS;
+
+    private int hammingRadius = 0;
+
+    private long seed = DEFAULT_SEED;
+
+    /**
+     * Seed of each block of 64 hyperplanes.
+     */
+    private long[] blockSeeds;
+
+    /**
+     * Dot product of the current vector with each hyperplane.
+     */
+    private double[] dots;
+
+    public SimHashApssTask() {
+    }
+
+    public int getTables() {
+        return tables;
+    }
+
+    public void setTables(int tables) {
+        if (tables < 1)
+            throw new IllegalArgumentException("tables < 1");
+        this.tables = tables;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * @param bits bits per table, from 1 to 63
+     */
+    public void setBits(int bits) {
+        if (bits < 1 || bits > 63)
+            throw new IllegalArgumentException(
+                    "bits must be between 1 and 63");
+        this.bits = bits;
+    }
+
+    public int getHammingRadius() {
+        return hammingRadius;
+    }
+
+    /**
+     * @param hammingRadius 0 to probe only the vector's own bucket in each
+     *                      table, or 1 to also probe buckets differing in a
+     *                      single bit
+     */
+    public void setHammingRadius(int hammingRadius) {
+        if (hammingRadius < 0 || hammingRadius > 1)
+            throw new IllegalArgumentException(
+                    "hammingRadius must be 0 or 1");
+        this.hammingRadius = hammingRadius;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed seed from which the hyperplanes are drawn; all tasks that
+     *             are to be compared must use the same seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param cosine        cosine of the angle between two vectors
+     * @param tables        number of tables
+     * @param bits          bits per table
+     * @param hammingRadius 0 or 1
+     * @return probability that vectors of the given similarity become a
+     *         candidate pair
+     */
+    public static double candidateProbability(double cosine, int tables,
+                                              int bits, int hammingRadius) {
+        final double agree = 1 - Math.acos(Math.max(-1, Math.min(1, cosine)))
+                / Math.PI;
+        double table = Math.pow(agree, bits);
+        if (hammingRadius > 0) {
+            table += bits * (1 - agree) * Math.pow(agree, bits - 1);
+        }
+        return 1 - Math.pow(1 - table, tables);
+    }
+
+    @Override
+    protected int getTableCount() {
+        return tables;
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        if (!(getMeasure() instanceof AngularProximity))
+            throw new IllegalStateException("SimHash requires an angular"
+                    + " measure, such as Cosine, but found " + getMeasure());
+        super.initialiseTask();
+    }
+
+    @Override
+    protected void initialiseHashes() {
+        final Random random = new Random(seed);
+        final int n = tables * bits;
+        blockSeeds = new long[(n + 63) / 64];
+        for (int i = 0; i < blockSeeds.length; i++) {
+            blockSeeds[i] = random.nextLong();
+        }
+        dots = new double[n];
+    }
+
+    @Override
+    protected boolean tableKeys(SparseDoubleVector vector, long[] keys) {
+        final AngularProximity measure = (AngularProximity) getMeasure();
+        Arrays.fill(dots, 0);
+        boolean any = false;
+        for (int i = 0; i < vector.size; i++) {
+            final double w = measure.component(vector, i);
+            if (w == 0)
+                continue;
+            any = true;
+            final int key = vector.keys[i];
+            for (int block = 0; block < blockSeeds.length; block++) {
+                final long signs = mix(key * 0x9E3779B97F4A7C15L
+                        + blockSeeds[block]);
+                final int end = Math.min(dots.length, (block + 1) * 64);
+                for (int h = block * 64; h < end; h++) {
+                    if (((signs >>> (h & 63)) & 1L) != 0)
+                        dots[h] += w;
+                    else
+                        dots[h] -= w;
+                }
+            }
+        }
+        if (!any)
+            return false;
+        for (int t = 0; t < tables; t++) {
+            long key = 0;
+            for (int b = 0; b < bits; b++) {
+                if (dots[t * bits + b] > 0)
+                    key |= 1L << b;
+            }
+            keys[t] = key;
+        }
+        return true;
+    }
+
+    @Override
+    protected void findCandidates(long[] keys) {
+        for (int t = 0; t < keys.length; t++) {
+            probe(t, keys[t]);
+            if (hammingRadius > 0) {
+                for (int b = 0; b < bits; b++) {
+                    probe(t, keys[t] ^ (1L << b));
+                }
+            }
+        }
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("tables", tables).
+                add("bits", bits).
+                add("hammingRadius", hammingRadius).
+                add("seed", seed);
+    }
+}
@@ -30,17 +30,29 @@
  */
 package uk.ac.susx.mlcl.byblo.allpairs;
 
+import com.google.common.base.Function;
 import com.google.common.base.Objects.ToStringHelper;
+import uk.ac.susx.mlcl.byblo.measure.BoundedProximity;
 import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.lib.io.SeekableSource;
 import uk.ac.susx.mlcl.lib.io.Sink;
+import uk.ac.susx.mlcl.lib.tasks.ProgressReporter;
 import uk.ac.susx.mlcl.lib.tasks.Task;
+import java.io.Flushable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.text.MessageFormat;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -49,6 +61,8 @@ import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
@@ -58,6 +72,44 @@ import uk.ac.susx.mlcl.byblo.io.Weighted;
  * implementation. This is achieved by breaking the work down into chunks that
  * are run concurrently.
  *
+ * <p>When both sources contain the same data, and the measure is symmetric,
+ * only the upper half of the chunk grid is scheduled. Pairs found between
+ * different chunks are mirrored, so the output is unchanged.</p>
+ *
+ * <p>Before any comparisons are made, the chunk boundaries and the number of
+ * non-zero features in each chunk are found. The cost of comparing two chunks
+ * is estimated as the product of their non-zeros, and the heaviest rows and
+ * columns of the chunk grid are scheduled first, so the lightest work is left
+ * to fill in at the end of the run. If a split factor is set, any chunk pair
+ * whose cost exceeds a share of the total is split recursively, by halving the
+ * heavier chunk. The wall time of every task is logged at debug level.</p>
+ *
+ * <p>Each inner task collects its own {@link ApssStats}, which are added to
+ * the stats of this task once it completes, so the worker threads do not
+ * contend over shared counters. The combined stats are summarised in the log
+ * periodically and at the end of the run, and can be registered as an MBean
+ * for the duration of the run. If a progress stage is set, the estimated cost
+ * of the chunk pairs completed is reported to it as they complete.</p>
+ *
+ * <p>When the measure is a {@link BoundedProximity} and a positive minimum
+ * similarity is set, the range of vector sizes in each chunk is also found.
+ * Chunk pairs whose size ranges are too far apart for any pair between them
+ * to reach the threshold are skipped, and counted in the stats.</p>
+ *
+ * <p>Chunks are limited to maxChunkSize entries, and optionally to
+ * maxChunkNonZeros non-zero features. Since the number of features per entry
+ * is very skewed, limiting the non-zeros gives chunks of much more uniform
+ * memory and processing cost. See {@link #estimateMaxChunkNonZeros(long,
+ * int, int)} for deriving the limit from the available memory.</p>
+ *
+ * <p>If a {@link ChunkPairJournal} is set, each chunk pair is written to its
+ * own shard and recorded in the journal once complete. Pairs already recorded
+ * are skipped, so an interrupted run can be resumed, and the shards of all the
+ * pairs are copied to the sink at the end of the run. The parts of a split
+ * pair are recorded separately, and the whole pair once they all are. The
+ * chunk pairs can also be divided between several workers, each running a
+ * share of them into its own journal; see {@link #setWorker(int, int)}.</p>
+ *
  * @param <S> Type of "tell" object used to seek into the data source.
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
@@ -79,8 +131,149 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
     private int maxChunkSize = 500;
 
+    private long maxChunkNonZeros = Long.MAX_VALUE;
+
+    /**
+     * Approximate bytes of heap required per non-zero feature of a chunk: an
+     * int key and a double value in the vector, plus object overheads.
+     */
+    static final int BYTES_PER_NON_ZERO = 16;
+
+    /**
+     * Approximate bytes of heap required per posting in the index a task
+     * builds over its A chunk: an int slot, an int position, and a share of
+     * the offsets array.
+     */
+    static final int BYTES_PER_POSTING = 10;
+
+    /**
+     * Fraction of the maximum heap size that may be filled with chunks and
+     * their indices; the rest is left for output buffers and the string
+     * index.
+     */
+    static final double CHUNK_MEMORY_FRACTION = 0.5;
+
+    /**
+     * Weigh each vector by the number of non-zero features it holds, counting
+     * empty vectors as one so they are still bounded.
+     */
+    private static final Function<Indexed<SparseDoubleVector>, Integer> NON_ZEROS =
+            new Function<Indexed<SparseDoubleVector>, Integer>() {
+
+                @Override
+                public Integer apply(Indexed<SparseDoubleVector> v) {
+                    return Math.max(1, v.value().size);
+                }
+
+                @Override
+                public String toString() {
+                    return "NonZeros";
+                }
+            };
+
+    /**
+     * Approximate bytes of heap required by each vector of a chunk, besides
+     * its non-zero features: the vector and index objects, and the headers of
+     * their arrays.
+     */
+    static final int BYTES_PER_VECTOR = 64;
+
+    /**
+     * Estimate the bytes of heap occupied by a decoded vector.
+     */
+    private static final Function<Indexed<SparseDoubleVector>, Integer> VECTOR_BYTES =
+            new Function<Indexed<SparseDoubleVector>, Integer>() {
+
+                @Override
+                public Integer apply(Indexed<SparseDoubleVector> v) {
+                    return BYTES_PER_VECTOR
+                            + BYTES_PER_NON_ZERO * v.value().size;
+                }
+
+                @Override
+                public String toString() {
+                    return "VectorBytes";
+                }
+            };
+
+    /**
+     * Budget in bytes for decoded B chunks kept in memory between rows, or 0
+     * to decode every chunk each time it is read.
+     */
+    private long chunkCacheBytes = 0;
+
+    /**
+     * Number of chunks decoded ahead of the scheduler by the prefetch thread,
+     * or 0 to decode each chunk on the scheduling thread.
+     */
+    private int prefetchDepth = 2;
+
     private Semaphore throttle;
 
+    /**
+     * Chunk pairs are split until their cost is below the total cost divided
+     * by the number of threads times this factor; or not at all if it is 0.
+     * Splitting means pairs are produced in a less predictable order, so it
+     * is disabled by default.
+     */
+    private int splitFactor = 0;
+
+    private static final Comparator<ChunkInfo<?>> HEAVIEST_FIRST =
+            new Comparator<ChunkInfo<?>>() {
+
+                @Override
+                public int compare(ChunkInfo<?> a, ChunkInfo<?> b) {
+                    return a.nonZeros > b.nonZeros ? -1
+                            : a.nonZeros < b.nonZeros ? 1
+                            : a.index - b.index;
+                }
+            };
+
+    private long completedPairCount = 0;
+
+    private long totalPairNanos = 0;
+
+    private long slowestPairNanos = 0;
+
+    private String slowestPair = null;
+
+    /**
+     * Whether source A and source B contain exactly the same records, in the
+     * same order, such that a position in one is also valid in the other.
+     */
+    private boolean sourcesIdentical = false;
+
+    private ChunkPairJournal journal = null;
+
+    private int workerIndex = 0;
+
+    private int workerCount = 1;
+
+    private int skippedPairCount = 0;
+
+    /**
+     * Milliseconds between summaries of the stats in the log, or 0 to only
+     * summarise them at the end of the run.
+     */
+    private long statsLogInterval = 60000;
+
+    private long lastStatsLogTime = 0;
+
+    private boolean statsMBeanEnabled = false;
+
+    private ObjectName statsName = null;
+
+    private ProgressReporter.Stage progress = null;
+
+    /**
+     * State derived from each chunk of the A row being scheduled, by chunk
+     * name, shared by all the tasks comparing it with chunks of B. Cleared
+     * at the end of each row, so the state is released once the last task of
+     * the row has finished with it.
+     */
+    private final Map<String, SharedChunk> rowChunks =
+            new HashMap<String, SharedChunk>();
+
     public ThreadedApssTask(
             SeekableSource<Indexed<SparseDoubleVector>, S> A,
             SeekableSource<Indexed<SparseDoubleVector>, S> B,
@@ -89,6 +282,19 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
         setNumThreads(DEFAULT_NUM_THREADS);
     }
 
+    /**
+     * Constructor for a task whose sink is set later, or which has none
+     * because its output is left in its journal (see
+     * {@link #setWorker(int, int)}).
+     */
+    public ThreadedApssTask(
+            SeekableSource<Indexed<SparseDoubleVector>, S> A,
+            SeekableSource<Indexed<SparseDoubleVector>, S> B) {
+        setSourceA(A);
+        setSourceB(B);
+        setNumThreads(DEFAULT_NUM_THREADS);
+    }
+
     public int getMaxChunkSize() {
         return maxChunkSize;
     }
@@ -97,6 +303,228 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
         this.maxChunkSize = maxChunkSize;
     }
 
+    public int getSplitFactor() {
+        return splitFactor;
+    }
+
+    /**
+     * @param splitFactor chunk pairs whose estimated cost is more than
+     *                    1/(nThreads * splitFactor) of the total are split; 0
+     *                    to disable splitting
+     */
+    public void setSplitFactor(int splitFactor) {
+        if (splitFactor < 0)
+            throw new IllegalArgumentException("splitFactor < 0");
+        this.splitFactor = splitFactor;
+    }
+
+    public long getMaxChunkNonZeros() {
+        return maxChunkNonZeros;
+    }
+
+    /**
+     * @param maxChunkNonZeros maximum number of non-zero features in a chunk,
+     *                         or Long.MAX_VALUE for no limit
+     */
+    public void setMaxChunkNonZeros(long maxChunkNonZeros) {
+        if (maxChunkNonZeros < 1)
+            throw new IllegalArgumentException("maxChunkNonZeros < 1");
+        this.maxChunkNonZeros = maxChunkNonZeros;
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Decode up to this many chunks ahead of the scheduling thread, on a
+     * dedicated thread, so the workers are not left idle while the next
+     * chunk is parsed. Time the prefetch thread spends waiting for room, and
+     * the scheduler spends waiting for a chunk, are counted in the stats.
+     *
+     * @param prefetchDepth number of chunks to decode ahead, or 0 to decode
+     *                      each chunk on the scheduling thread
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        if (prefetchDepth < 0)
+            throw new IllegalArgumentException("prefetchDepth < 0");
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    public long getChunkCacheBytes() {
+        return chunkCacheBytes;
+    }
+
+    /**
+     * Keep decoded B chunks in memory, up to an estimated number of bytes,
+     * so later rows need only decode the chunks that did not fit. The cache
+     * is filled while the chunks are first scanned. When the sources are
+     * identical the A chunks are read from it too. Hits and misses are
+     * counted in the stats.
+     *
+     * @param chunkCacheBytes budget for the cached chunks, or 0 to disable
+     *                        the cache
+     */
+    public void setChunkCacheBytes(long chunkCacheBytes) {
+        if (chunkCacheBytes < 0)
+            throw new IllegalArgumentException("chunkCacheBytes < 0");
+        this.chunkCacheBytes = chunkCacheBytes;
+    }
+
+    /**
+     * Estimate the number of non-zero features each chunk may hold, such that
+     * all the chunks and indices live at any one time fit into a fraction of
+     * the given memory. Each of the nThreads workers holds a B chunk, while
+     * up to nThreads more tasks wait in the queue and prefetchDepth more
+     * chunks wait to be scheduled. The tasks of one row share an A chunk;
+     * since the tasks running may span as many rows as there are workers,
+     * each worker is allowed the shared state of a row: the prepared copy of
+     * its A chunk and the index over it. Each running task also holds a
+     * prepared copy of its B chunk. Measures that compare vectors as they are
+     * read make no copies, so for them the estimate is conservative.
+     *
+     * @param maxMemory bytes available, usually Runtime.maxMemory()
+     * @param nThreads number of concurrent workers
+     * @param prefetchDepth number of chunks decoded ahead of the scheduler
+     * @return maximum non-zeros per chunk, at least 1
+     */
+    public static long estimateMaxChunkNonZeros(long maxMemory, int nThreads,
+                                                int prefetchDepth) {
+        if (maxMemory < 1)
+            throw new IllegalArgumentException("maxMemory < 1");
+        if (nThreads < 1)
+            throw new IllegalArgumentException("nThreads < 1");
+        if (prefetchDepth < 0)
+            throw new IllegalArgumentException("prefetchDepth < 0");
+        final long decodedChunks = 2L * nThreads + 1 + prefetchDepth;
+        final long preparedChunks = 2L * nThreads;
+        final long bytesPerNonZero =
+                (decodedChunks + preparedChunks) * BYTES_PER_NON_ZERO
+                + (long) nThreads * BYTES_PER_POSTING;
+        return Math.max(1, (long) (maxMemory * CHUNK_MEMORY_FRACTION)
+                / bytesPerNonZero);
+    }
+
+    public ChunkPairJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @param journal journal of completed chunk pairs, or null to write pairs
+     *                straight to the sink
+     */
+    public void setJournal(ChunkPairJournal journal) {
+        this.journal = journal;
+    }
+
+    public int getWorkerIndex() {
+        return workerIndex;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Run only a share of the chunk pairs, so the work can be divided between
+     * several processes. The pairs are dealt out in turn, in schedule order,
+     * so each worker gets a similar mix of heavy and light pairs. A worker's
+     * output is left in the journal, rather than copied to the sink, to be
+     * merged with that of the other workers.
+     *
+     * @param workerIndex index of this worker, from 0 to workerCount - 1
+     * @param workerCount number of workers sharing the chunk pairs
+     */
+    public void setWorker(int workerIndex, int workerCount) {
+        if (workerCount < 1)
+            throw new IllegalArgumentException("workerCount < 1");
+        if (workerIndex < 0 || workerIndex >= workerCount)
+            throw new IllegalArgumentException("workerIndex " + workerIndex
+                    + " is outside the range 0 to " + (workerCount - 1));
+        this.workerIndex = workerIndex;
+        this.workerCount = workerCount;
+    }
+
+    public long getStatsLogInterval() {
+        return statsLogInterval;
+    }
+
+    /**
+     * @param statsLogInterval milliseconds between summaries of the stats in
+     *                         the log, or 0 to only summarise them at the end
+     *                         of the run
+     */
+    public void setStatsLogInterval(long statsLogInterval) {
+        if (statsLogInterval < 0)
+            throw new IllegalArgumentException("statsLogInterval < 0");
+        this.statsLogInterval = statsLogInterval;
+    }
+
+    public boolean isStatsMBeanEnabled() {
+        return statsMBeanEnabled;
+    }
+
+    /**
+     * @param statsMBeanEnabled whether the stats should be registered with
+     *                          the platform MBean server while the task runs
+     */
+    public void setStatsMBeanEnabled(boolean statsMBeanEnabled) {
+        this.statsMBeanEnabled = statsMBeanEnabled;
+    }
+
+    public ProgressReporter.Stage getProgress() {
+        return progress;
+    }
+
+    /**
+     * @param progress stage to which the progress of the run is reported, or
+     *                 null for none. Progress is measured in the estimated
+     *                 cost of the chunk pairs completed, and the items are
+     *                 the pairs produced.
+     */
+    public void setProgress(ProgressReporter.Stage progress) {
+        this.progress = progress;
+    }
+
+    public boolean isSourcesIdentical() {
+        return sourcesIdentical;
+    }
+
+    public void setSourcesIdentical(boolean sourcesIdentical) {
+        this.sourcesIdentical = sourcesIdentical;
+    }
+
+    /**
+     * @return true if only chunk pairs on or above the diagonal of the chunk
+     *         grid need be compared.
+     */
+    protected boolean isHalfMatrixEnabled() {
+        return sourcesIdentical && getMeasure().isSymmetric();
+    }
+
+    /**
+     * A worker's output is left in its journal, so it needs no sink.
+     */
+    @Override
+    protected boolean isSinkRequired() {
+        return journal == null || workerCount == 1;
+    }
+
+    @Override
+    protected void checkState() throws IOException {
+        super.checkState();
+        if (workerCount > 1 && journal == null) {
+            throw new IllegalStateException(
+                    "journal is required to collect the output of a worker");
+        }
+    }
+
+    @Override
+    protected void prepareSources() throws IOException {
+        // Vectors are prepared by the inner tasks, once their chunks have
+        // been read.
+    }
+
     @Override
     protected void buildPrecalcs() throws IOException {
         // The super class runs this in during initialization, but we don't want
@@ -119,6 +547,54 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
                 new LinkedBlockingQueue<Runnable>());
         futureQueue = new ArrayDeque<Future<? extends Task>>();
         throttle = new Semaphore(nThreads * 2);
+        lastStatsLogTime = System.currentTimeMillis();
+        if (statsMBeanEnabled) {
+            registerStats();
+        }
+    }
+
+    /**
+     * Register the stats with the platform MBean server, so they can be
+     * watched while the task runs. Failure to do so is logged but otherwise
+     * ignored.
+     */
+    private void registerStats() {
+        try {
+            statsName = new ObjectName(
+                    "uk.ac.susx.mlcl.byblo:type=ApssStats,name=apss-"
+                    + Integer.toHexString(System.identityHashCode(this)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    getStats(), statsName);
+        } catch (JMException ex) {
+            LOG.warn("Failed to register stats MBean.", ex);
+            statsName = null;
+        }
+    }
+
+    private void unregisterStats() {
+        if (statsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    statsName);
+        } catch (JMException ex) {
+            LOG.warn("Failed to unregister stats MBean " + statsName, ex);
+        }
+        statsName = null;
+    }
+
+    /**
+     * Summarise the stats in the log, if the interval has passed since they
+     * were last summarised.
+     */
+    private void logStatsIfDue() {
+        final long now = System.currentTimeMillis();
+        if (statsLogInterval > 0 && now - lastStatsLogTime >= statsLogInterval
+                && LOG.isInfoEnabled()) {
+            lastStatsLogTime = now;
+            LOG.info("All-pairs stats so far: " + getStats().getSummary());
+        }
     }
 
     @Override
@@ -127,76 +603,600 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
         if (LOG.isTraceEnabled()) {
             LOG.trace("Initialising chunker A.");
         }
-        Chunker<Indexed<SparseDoubleVector>, S> chunkerA =
-                new Chunker<Indexed<SparseDoubleVector>, S>(
-                getSourceA(), maxChunkSize);
+        Chunker<Indexed<SparseDoubleVector>, S> chunkerA = newChunker(
+                getSourceA());
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("Initialising chunker B.");
         }
-        Chunker<Indexed<SparseDoubleVector>, S> chunkerB =
-                new Chunker<Indexed<SparseDoubleVector>, S>(
-                getSourceB(), maxChunkSize);
+        Chunker<Indexed<SparseDoubleVector>, S> chunkerB = newChunker(
+                getSourceB());
 
-        int nChunks = 0;
-        int i = 0;
-        while (chunkerA.hasNext()) {
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("Reading chunk A" + i);
+        ChunkCache<Indexed<SparseDoubleVector>, S> cache = null;
+        if (chunkCacheBytes > 0) {
+            cache = new ChunkCache<Indexed<SparseDoubleVector>, S>(
+                    chunkCacheBytes, VECTOR_BYTES, getStats());
+            chunkerB.setCache(cache);
+            if (sourcesIdentical) {
+                chunkerA.setCache(cache);
             }
-            Chunk<Indexed<SparseDoubleVector>> chunkA = chunkerA.read();
-            i++;
-            chunkA.setName(Integer.toString(i));
+        }
+
+        final boolean halfMatrix = isHalfMatrixEnabled();
+        if (halfMatrix && LOG.isDebugEnabled()) {
+            LOG.debug("Scheduling half of the chunk grid for symmetric measure "
+                    + getMeasure());
+        }
 
-            int j = 0;
-            S restartPos = chunkerB.position();
-            while (chunkerB.hasNext()) {
+        // Find where each chunk starts and how heavy it is, so the chunk
+        // pairs can be scheduled heaviest first. The left and right hand
+        // components of every vector are calculated on the way, once for the
+        // whole run, unless they have been provided.
+        final PrecalcTable left = getPrecalcA() == null
+                ? new PrecalcTable() : null;
+        final PrecalcTable right = getPrecalcB() == null
+                ? new PrecalcTable() : null;
+        final long scanStart = System.nanoTime();
+        final List<ChunkInfo<S>> infosA = scanChunks(
+                chunkerA, left, sourcesIdentical ? right : null);
+        final List<ChunkInfo<S>> infosB = sourcesIdentical
+                ? infosA : scanChunks(chunkerB, null, right);
+        if (left != null) {
+            setPrecalcA(left);
+        }
+        if (right != null) {
+            setPrecalcB(right);
+        }
+        getStats().addTime(ApssStats.Phase.INDEX,
+                           System.nanoTime() - scanStart);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Scanned chunks, with precalculated components "
+                    + getPrecalcA() + " and " + getPrecalcB());
+        }
+
+        final List<ChunkInfo<S>> rows = new ArrayList<ChunkInfo<S>>(infosA);
+        Collections.sort(rows, HEAVIEST_FIRST);
+        final List<ChunkInfo<S>> columns = new ArrayList<ChunkInfo<S>>(infosB);
+        Collections.sort(columns, HEAVIEST_FIRST);
+
+        long totalCost = 0;
+        int ordinal = 0;
+        for (ChunkInfo<S> a : rows) {
+            for (ChunkInfo<S> b : columns) {
+                if (!halfMatrix || b.index >= a.index) {
+                    if (isAssigned(ordinal++) && isReachable(a, b)) {
+                        totalCost += a.nonZeros * b.nonZeros;
+                    }
+                }
+            }
+        }
+        final long maxPairCost = splitFactor == 0 ? Long.MAX_VALUE
+                : Math.max(1, totalCost / ((long) nThreads * splitFactor));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Scheduling " + infosA.size() + " by " + infosB.size()
+                    + " chunks with total cost " + totalCost
+                    + "; splitting pairs with cost over " + maxPairCost);
+        }
+
+        if (progress != null) {
+            progress.setTotal(totalCost);
+            progress.start();
+        }
+
+        long scheduledCost = 0;
+        skippedPairCount = 0;
+        ordinal = 0;
+        int rowCount = 0;
+        final List<ChunkInfo<S>> plannedRows = new ArrayList<ChunkInfo<S>>();
+        final List<List<ChunkInfo<S>>> plannedColumns =
+                new ArrayList<List<ChunkInfo<S>>>();
+        for (ChunkInfo<S> a : rows) {
+            final List<ChunkInfo<S>> pending = new ArrayList<ChunkInfo<S>>();
+            for (ChunkInfo<S> b : columns) {
+                if (halfMatrix && b.index < a.index) {
+                    continue;
+                }
+                if (!isAssigned(ordinal++)) {
+                    continue;
+                }
+                if (!isReachable(a, b)) {
+                    getStats().incrementChunkPairSkips();
+                    continue;
+                }
+                if (journal != null && journal.isCompleted(
+                        pairName(Integer.toString(a.index),
+                                 Integer.toString(b.index)))) {
+                    scheduledCost += a.nonZeros * b.nonZeros;
+                    ++skippedPairCount;
+                    if (progress != null) {
+                        progress.addCompleted(a.nonZeros * b.nonZeros);
+                    }
+                    continue;
+                }
+                pending.add(b);
+            }
+            if (pending.isEmpty()) {
+                continue;
+            }
+            // Visiting the columns in the opposite order to the previous row
+            // starts with the chunks it used most recently, which are the
+            // ones least likely to have been evicted from the cache.
+            if (cache != null && rowCount % 2 == 1) {
+                Collections.reverse(pending);
+            }
+            ++rowCount;
+            plannedRows.add(a);
+            plannedColumns.add(pending);
+        }
+
+        // The whole sequence of reads is known now, so the chunks can be
+        // decoded ahead of the scheduler while the workers are scoring.
+        final ChunkPrefetcher<Indexed<SparseDoubleVector>, S> prefetcher =
+                new ChunkPrefetcher<Indexed<SparseDoubleVector>, S>(
+                prefetchDepth, getStats());
+        for (int row = 0; row < plannedRows.size(); row++) {
+            final ChunkInfo<S> a = plannedRows.get(row);
+            prefetcher.add(chunkerA, a.start, Integer.toString(a.index));
+            for (ChunkInfo<S> b : plannedColumns.get(row)) {
+                prefetcher.add(chunkerB, b.start, Integer.toString(b.index));
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Reading chunks with " + prefetcher);
+        }
+        prefetcher.start();
+
+        try {
+            for (int row = 0; row < plannedRows.size(); row++) {
+                final ChunkInfo<S> a = plannedRows.get(row);
                 if (LOG.isTraceEnabled()) {
-                    LOG.trace("Reading chunk B" + j);
+                    LOG.trace("Reading chunk A" + a.index);
                 }
-                Chunk<Indexed<SparseDoubleVector>> chunkB = chunkerB.read();
-                j++;
-                chunkB.setName(Integer.toString(j));
-
-                double complete = (!chunkerA.hasNext() && !chunkerB.hasNext()) ? 1
-                        : nChunks == 0 ? 0
-                        : (double) (i * nChunks + j) / (double) (nChunks * nChunks);
-                if (LOG.isInfoEnabled()) {
-                    LOG.info(MessageFormat.format(
-                            "Creating APSS task on chunks {0,number} and {1,number} ({2,number,percent} complete)",
-                            new Object[]{i, j, complete}));
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug(MiscUtil.memoryInfoString());
+                Chunk<Indexed<SparseDoubleVector>> chunkA = prefetcher.next();
+
+                for (ChunkInfo<S> b : plannedColumns.get(row)) {
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Reading chunk B" + b.index);
+                    }
+                    Chunk<Indexed<SparseDoubleVector>> chunkB =
+                            prefetcher.next();
+
+                    final long cost = a.nonZeros * b.nonZeros;
+                    scheduledCost += cost;
+                    double complete = totalCost == 0 ? 1
+                            : (double) scheduledCost / (double) totalCost;
+                    if (LOG.isInfoEnabled()) {
+                        LOG.info(MessageFormat.format(
+                                "Creating APSS task on chunks {0,number} and {1,number} with cost {2,number} ({3,number,percent} of the cost scheduled)",
+                                new Object[]{a.index, b.index, cost, complete}));
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug(MiscUtil.memoryInfoString());
+                        }
+                    }
+
+                    // A pair that will be split is only recorded in the
+                    // journal by the names of its parts, so it is recorded
+                    // under its own name too once they are all complete.
+                    final SplitPair split = journal != null
+                            && cost > maxPairCost
+                            ? new SplitPair(pairName(
+                            Integer.toString(a.index),
+                            Integer.toString(b.index)))
+                            : null;
+                    queuePair(chunkA, a.nonZeros, chunkB, b.nonZeros,
+                              halfMatrix && a.index != b.index, maxPairCost,
+                              split);
+                    if (split != null) {
+                        split.partCompleted();
                     }
+
+                    reapCompleted();
+                    logStatsIfDue();
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Finished scheduling row of chunk A" + a.index
+                            + "; shared chunk state " + rowChunks.values());
+                }
+                rowChunks.clear();
+            }
+        } finally {
+            prefetcher.close();
+        }
+        getExecutor().shutdown();
+        while (!getExecutor().awaitTermination(
+                statsLogInterval > 0 ? statsLogInterval
+                : TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS)) {
+            logStatsIfDue();
+        }
+        reapCompleted();
+        if (progress != null) {
+            progress.finish();
+        }
+        if (cache != null) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info(MessageFormat.format(
+                        "Chunk cache had {0,number} hits and {1,number} misses; finished holding {2} in {3,number} chunks, after {4,number} evictions.",
+                        new Object[]{getStats().getChunkCacheHits(),
+                                     getStats().getChunkCacheMisses(),
+                                     MiscUtil.humanReadableBytes(
+                                     cache.getBytes()),
+                                     cache.size(),
+                                     cache.getEvictionCount()}));
+            }
+            cache.clear();
+        }
+        if (prefetchDepth > 0 && LOG.isInfoEnabled()) {
+            LOG.info(MessageFormat.format(
+                    "Chunk prefetch thread waited {0,number,#.###}s for room in its queue; the scheduler waited {1,number,#.###}s for chunks to be decoded.",
+                    new Object[]{
+                        getStats().getPrefetchProducerStallNanos() / 1e9,
+                        getStats().getPrefetchConsumerStallNanos() / 1e9}));
+        }
+
+        if (LOG.isInfoEnabled()) {
+            synchronized (this) {
+                LOG.info(MessageFormat.format(
+                        "Completed {0,number} APSS tasks taking {1,number,#.###}s in total; slowest was {2} at {3,number,#.###}s",
+                        new Object[]{completedPairCount, totalPairNanos / 1e9,
+                                     slowestPair, slowestPairNanos / 1e9}));
+                if (skippedPairCount > 0) {
+                    LOG.info("Skipped " + skippedPairCount
+                            + " chunk pairs already in the journal.");
+                }
+                if (getStats().getChunkPairSkips() > 0) {
+                    LOG.info("Skipped " + getStats().getChunkPairSkips()
+                            + " chunk pairs that share no feature, or whose"
+                            + " vector sizes cannot reach the minimum"
+                            + " similarity.");
+                }
+                if (getStats().getStopFeatureSkips() > 0) {
+                    LOG.info(MessageFormat.format(
+                            "Left stop features out of candidate generation {0,number} times, skipping {1,number} postings; at most that many pairs could have been missed",
+                            new Object[]{getStats().getStopFeatureSkips(),
+                                         getStats().getSkippedPostingsCount()}));
+                }
+                LOG.info("All-pairs stats: " + getStats().getSummary());
+            }
+        }
+
+        if (journal != null && workerCount == 1) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Copying " + journal.getRecordCount() + " pairs from "
+                        + journal.getCompletedCount() + " journal shards.");
+            }
+            journal.copyTo(getSink());
+            if (getSink() instanceof Flushable) {
+                ((Flushable) getSink()).flush();
+            }
+        }
+    }
+
+    /**
+     * @return true if the chunk pair at the given position in the schedule
+     *         is assigned to this worker
+     */
+    private boolean isAssigned(int ordinal) {
+        return ordinal % workerCount == workerIndex;
+    }
+
+    /**
+     * Check whether any pair between the given chunks could be output, given
+     * their summaries. When only pairs sharing a feature can be output, the
+     * pair is unreachable if the feature bitmaps of the chunks are disjoint.
+     * Otherwise the size ranges are checked: the inner task only considers
+     * entries of A whose sizes lie within the partner range of an entry of B;
+     * since the partner bounds grow with size, the pair is reachable only if
+     * the A chunk overlaps the range spanned by the bounds of its smallest
+     * and largest B entries.
+     *
+     * @return false if the chunk pair can be skipped
+     */
+    private boolean isReachable(ChunkInfo<S> a, ChunkInfo<S> b) {
+        if (isSharedFeatureRequired()
+                && !a.features.intersects(b.features)) {
+            return false;
+        }
+        if (!(getMeasure() instanceof BoundedProximity)
+                || getMinSimilarity() <= 0
+                || a.maxSize < a.minSize || b.maxSize < b.minSize) {
+            return true;
+        }
+        final BoundedProximity bounds = (BoundedProximity) getMeasure();
+        return a.maxSize >= bounds.minPartnerSize(b.minSize, getMinSimilarity())
+                && a.minSize <= bounds.maxPartnerSize(b.maxSize,
+                                                     getMinSimilarity());
+    }
+
+    /**
+     * @return true if no pair of entries without a feature in common can be
+     *         output: the inverted index only generates candidates through
+     *         shared features, and the bounded measures need an overlap of at
+     *         least one feature to reach a positive minimum similarity
+     */
+    private boolean isSharedFeatureRequired() {
+        if (InvertedApssTask.class.isAssignableFrom(innerAlgorithm)) {
+            return true;
+        }
+        return getMeasure() instanceof BoundedProximity
+                && getMinSimilarity() > 0
+                && ((BoundedProximity) getMeasure()).minOverlap(
+                1, 1, getMinSimilarity()) > 0;
+    }
+
+    /**
+     * @return name of the pair of the given chunks, as recorded in the
+     *         journal
+     */
+    private static String pairName(String chunkA, String chunkB) {
+        return chunkA + "-" + chunkB;
+    }
+
+    /**
+     * @return number of chunk pairs skipped by the last run because they were
+     *         already completed in the journal
+     */
+    public int getSkippedPairCount() {
+        return skippedPairCount;
+    }
+
+    /**
+     * Queue a task comparing the given chunks. If the estimated cost of the
+     * pair exceeds maxCost, the larger chunk is split in two and each half is
+     * queued recursively, so that a few heavy pairs do not dominate the end
+     * of the run. Each part queued is added to the given split pair, if any.
+     */
+    private void queuePair(Chunk<Indexed<SparseDoubleVector>> chunkA,
+                           long nonZerosA,
+                           Chunk<Indexed<SparseDoubleVector>> chunkB,
+                           long nonZerosB,
+                           boolean mirror, long maxCost, SplitPair split)
+            throws Exception {
+        final long cost = nonZerosA * nonZerosB;
+        if (cost > maxCost && (chunkA.size() > 1 || chunkB.size() > 1)) {
+            if (chunkA.size() > 1 && (nonZerosA >= nonZerosB
+                                      || chunkB.size() <= 1)) {
+                final List<Chunk<Indexed<SparseDoubleVector>>> halves =
+                        split(chunkA);
+                for (Chunk<Indexed<SparseDoubleVector>> half : halves) {
+                    queuePair(half, nonZeros(half), chunkB, nonZerosB,
+                              mirror, maxCost, split);
+                }
+            } else {
+                final List<Chunk<Indexed<SparseDoubleVector>>> halves =
+                        split(chunkB);
+                for (Chunk<Indexed<SparseDoubleVector>> half : halves) {
+                    queuePair(chunkA, nonZerosA, half, nonZeros(half),
+                              mirror, maxCost, split);
+                }
+            }
+            return;
+        }
+
+        ChunkPairJournal.Shard shard = null;
+        if (journal != null) {
+            final String name = pairName(chunkA.getName(), chunkB.getName());
+            if (journal.isCompleted(name)) {
+                ++skippedPairCount;
+                if (progress != null) {
+                    progress.addCompleted(cost);
                 }
+                return;
+            }
+            shard = journal.begin(name);
+        }
+
+        @SuppressWarnings("unchecked")
+        NaiveApssTask<Integer> task = innerAlgorithm.newInstance();
+        task.setSourceA(chunkA.clone());
+        task.setSourceB(chunkB.clone());
+        task.setMeasure(getMeasure());
+        task.setProducatePair(getProducatePair());
+        task.setMinSimilarity(getMinSimilarity());
+        task.setMirrorPairs(mirror);
+        task.setProcessRecord(getProcessRecord());
+        task.setSink(shard != null ? shard : getSink());
+        task.setStats(new ApssStats());
+        task.setPrecalcA(getPrecalcA());
+        task.setPrecalcB(getPrecalcB());
+        task.setSharedA(sharedChunk(chunkA));
+        configureInnerTask(task);
+        if (split != null) {
+            split.partQueued();
+        }
+        queueTask(task, shard, split, cost);
+    }
+
+    /**
+     * A chunk pair whose parts are run as separate tasks. The scheduler holds
+     * one part open while it queues the rest, and each part is counted as
+     * complete once its shard is committed. When the last part completes, the
+     * pair is committed to the journal under its own name with an empty
+     * shard, so that a resumed run can skip it without reading its chunks.
+     */
+    private final class SplitPair {
+
+        private final String name;
+
+        private int pending = 1;
+
+        SplitPair(String name) {
+            this.name = name;
+        }
 
-                @SuppressWarnings("unchecked")
-                NaiveApssTask<Integer> task = innerAlgorithm.newInstance();
-                task.setSourceA(chunkA.clone());
-                task.setSourceB(chunkB);
-                task.setMeasure(getMeasure());
-                task.setProducatePair(getProducatePair());
-                task.setProcessRecord(getProcessRecord());
-                task.setSink(getSink());
-                task.setStats(getStats());
-                queueTask(task);
-
-                // retrieve the results
-                while (getFutureQueue().peek().isDone()) {
-                    Future<? extends Task> completed = getFutureQueue().poll();
-                    Task t = completed.get();
-                    while (t.isExceptionThrown()) {
-                        t.throwException();
+        synchronized void partQueued() {
+            ++pending;
+        }
+
+        void partCompleted() throws IOException {
+            final boolean last;
+            synchronized (this) {
+                last = --pending == 0;
+            }
+            // The pair was not split after all if its only part has the name
+            // of the whole.
+            if (last && !journal.isCompleted(name)) {
+                journal.begin(name).commit();
+            }
+        }
+    }
+
+    /**
+     * @return state of the given A chunk shared by the tasks of the current
+     *         row; halves of a split chunk are named after their position in
+     *         it, so are shared too when split the same way
+     */
+    private SharedChunk sharedChunk(Chunk<Indexed<SparseDoubleVector>> chunkA) {
+        SharedChunk shared = rowChunks.get(chunkA.getName());
+        if (shared == null) {
+            shared = new SharedChunk(chunkA.getName());
+            rowChunks.put(chunkA.getName(), shared);
+        }
+        return shared;
+    }
+
+    /**
+     * Called on every inner task, after the common settings have been copied
+     * to it and before it is queued. Subclasses may override this to set the
+     * options of a particular inner algorithm.
+     */
+    protected void configureInnerTask(NaiveApssTask<Integer> task) {
+    }
+
+    /**
+     * Split the chunk into two halves with roughly equal numbers of non-zero
+     * features.
+     */
+    private static List<Chunk<Indexed<SparseDoubleVector>>> split(
+            Chunk<Indexed<SparseDoubleVector>> chunk) {
+        final long half = nonZeros(chunk) / 2;
+        long sum = 0;
+        int mid = 0;
+        while (mid < chunk.size() - 1 && sum < half) {
+            sum += Math.max(1, chunk.get(mid).value().size);
+            ++mid;
+        }
+        mid = Math.max(1, mid);
+        final List<Chunk<Indexed<SparseDoubleVector>>> halves =
+                new ArrayList<Chunk<Indexed<SparseDoubleVector>>>(2);
+        halves.add(new Chunk<Indexed<SparseDoubleVector>>(
+                chunk.getName() + "a", chunk.subList(0, mid)));
+        halves.add(new Chunk<Indexed<SparseDoubleVector>>(
+                chunk.getName() + "b", chunk.subList(mid, chunk.size())));
+        return halves;
+    }
+
+    private static long nonZeros(List<Indexed<SparseDoubleVector>> chunk) {
+        long nonZeros = 0;
+        for (Indexed<SparseDoubleVector> v : chunk) {
+            nonZeros += Math.max(1, v.value().size);
+        }
+        return nonZeros;
+    }
+
+    /**
+     * Read through all the chunks of the given chunker, recording their start
+     * positions, weights, size ranges and feature bitmaps, then return it to
+     * the start. The left and right hand components of every vector, once
+     * prepared, are put in the given tables, unless they are null.
+     */
+    private List<ChunkInfo<S>> scanChunks(
+            Chunker<Indexed<SparseDoubleVector>, S> chunker,
+            PrecalcTable left, PrecalcTable right)
+            throws IOException {
+        final S start = chunker.position();
+        final List<ChunkInfo<S>> infos = new ArrayList<ChunkInfo<S>>();
+        while (chunker.hasNext()) {
+            final S position = chunker.position();
+            final Chunk<Indexed<SparseDoubleVector>> chunk = chunker.read();
+            int minSize = Integer.MAX_VALUE;
+            int maxSize = Integer.MIN_VALUE;
+            final FeatureBitmap features = new FeatureBitmap();
+            for (Indexed<SparseDoubleVector> v : chunk) {
+                minSize = Math.min(minSize, v.value().size);
+                maxSize = Math.max(maxSize, v.value().size);
+                features.addAll(v.value());
+                if (left != null || right != null) {
+                    final SparseDoubleVector prepared =
+                            getMeasure().prepare(v.value());
+                    if (left != null) {
+                        left.put(v.key(), getMeasure().left(prepared));
+                    }
+                    if (right != null) {
+                        right.put(v.key(), getMeasure().right(prepared));
                     }
                 }
             }
+            infos.add(new ChunkInfo<S>(infos.size() + 1, position,
+                                       nonZeros(chunk), minSize, maxSize,
+                                       features));
+        }
+        chunker.position(start);
+        return infos;
+    }
 
-            nChunks = j + 1;
-            chunkerB.position(restartPos);
+    /**
+     * Check all the completed tasks for exceptions, removing them from the
+     * queue.
+     */
+    private void reapCompleted() throws Exception {
+        final Iterator<Future<? extends Task>> it = getFutureQueue().iterator();
+        while (it.hasNext()) {
+            final Future<? extends Task> future = it.next();
+            if (future.isDone()) {
+                it.remove();
+                Task t = future.get();
+                while (t.isExceptionThrown()) {
+                    t.throwException();
+                }
+            }
         }
-        getExecutor().shutdown();
-        getExecutor().awaitTermination(1, TimeUnit.DAYS);
+    }
 
+    /**
+     * Called by the worker thread once a task has run, with its wall time.
+     * The stats of an all-pairs task are added to those of this task.
+     */
+    protected void taskCompleted(Task task, long nanos) {
+        if (task instanceof NaiveApssTask) {
+            final ApssStats taskStats = ((NaiveApssTask<?>) task).getStats();
+            getStats().add(taskStats);
+            if (progress != null) {
+                progress.addItems(taskStats.getProductionCount());
+            }
+        }
+        final String name = task instanceof NaiveApssTask
+                ? ((NaiveApssTask<?>) task).getSourceA() + " and "
+                + ((NaiveApssTask<?>) task).getSourceB()
+                : task.toString();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(MessageFormat.format(
+                    "Completed APSS task on {0} in {1,number,#.###}s",
+                    new Object[]{name, nanos / 1e9}));
+        }
+        synchronized (this) {
+            ++completedPairCount;
+            totalPairNanos += nanos;
+            if (nanos > slowestPairNanos) {
+                slowestPairNanos = nanos;
+                slowestPair = name;
+            }
+        }
+    }
+
+    /**
+     * Create a chunker over the given source. Chunks from both sources are
+     * cut at the same points when the sources are identical, as is required
+     * for half matrix scheduling.
+     */
+    protected Chunker<Indexed<SparseDoubleVector>, S> newChunker(
+            SeekableSource<Indexed<SparseDoubleVector>, S> source) {
+        if (maxChunkNonZeros == Long.MAX_VALUE) {
+            return new Chunker<Indexed<SparseDoubleVector>, S>(
+                    source, maxChunkSize);
+        } else {
+            return new Chunker<Indexed<SparseDoubleVector>, S>(
+                    source, maxChunkSize, NON_ZEROS, maxChunkNonZeros);
+        }
     }
 
     @Override
@@ -204,10 +1204,24 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
         if (getExecutor() != null) {
             getExecutor().shutdownNow();
         }
+        unregisterStats();
         super.finaliseTask();
     }
 
     protected <T extends Task> Future<T> queueTask(final T task) throws InterruptedException {
+        return queueTask(task, null, null, 0);
+    }
+
+    /**
+     * Queue the task, committing the given journal shard once the task has
+     * run successfully, or discarding it if the task failed. A committed
+     * shard completes its part of the split pair, if any. The cost of the
+     * task is added to the progress once it has run.
+     */
+    private <T extends Task> Future<T> queueTask(
+            final T task, final ChunkPairJournal.Shard shard,
+            final SplitPair split, final long cost)
+            throws InterruptedException {
         if (task == null) {
             throw new NullPointerException("task is null");
         }
@@ -217,10 +1231,28 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
             @Override
             public void run() {
+                final long startTime = System.nanoTime();
                 try {
                     task.run();
+                    if (shard != null) {
+                        if (task.isExceptionThrown()) {
+                            shard.abort();
+                        } else {
+                            shard.commit();
+                            if (split != null) {
+                                split.partCompleted();
+                            }
+                        }
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(
+                            "Failed to finish journal shard " + shard, ex);
                 } finally {
                     throttle.release();
+                    taskCompleted(task, System.nanoTime() - startTime);
+                    if (progress != null) {
+                        progress.addCompleted(cost);
+                    }
                 }
             }
         };
@@ -257,6 +1289,42 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
         this.nThreads = nThreads;
     }
 
+    /**
+     * Position, weight and size range of a chunk, used to plan the schedule without
+     * holding every chunk in memory.
+     */
+    private static final class ChunkInfo<S> {
+
+        final int index;
+
+        final S start;
+
+        final long nonZeros;
+
+        /**
+         * Fewest and most features of any vector in the chunk; minSize is
+         * greater than maxSize if the chunk is empty.
+         */
+        final int minSize;
+
+        final int maxSize;
+
+        /**
+         * Features occurring in any vector of the chunk.
+         */
+        final FeatureBitmap features;
+
+        ChunkInfo(int index, S start, long nonZeros, int minSize,
+                  int maxSize, FeatureBitmap features) {
+            this.index = index;
+            this.start = start;
+            this.nonZeros = nonZeros;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.features = features;
+        }
+    }
+
     @Override
     protected ToStringHelper toStringHelper() {
         return super.toStringHelper().
@@ -265,6 +1333,16 @@ public class ThreadedApssTask<S> extends NaiveApssTask<S> {
                 add("executor", executor).
                 add("futureQueue", futureQueue).
                 add("maxChunkSize", maxChunkSize).
+                add("maxChunkNonZeros", maxChunkNonZeros).
+                add("chunkCacheBytes", chunkCacheBytes).
+                add("prefetchDepth", prefetchDepth).
+                add("splitFactor", splitFactor).
+                add("sourcesIdentical", sourcesIdentical).
+                add("journal", journal).
+                add("progress", progress).
+                add("statsLogInterval", statsLogInterval).
+                add("statsMBeanEnabled", statsMBeanEnabled).
+                add("worker", workerIndex + "/" + workerCount).
                 add("throttle", throttle);
     }
 }
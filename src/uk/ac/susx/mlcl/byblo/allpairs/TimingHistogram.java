@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of durations, with buckets at powers of two
+ * nanoseconds. Recording a duration costs a few uncontended atomic
+ * increments, and percentiles are found to within a factor of two, which is
+ * enough to see where the time of a long run goes.
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class TimingHistogram {
+
+    private static final int BUCKET_COUNT = 64;
+
+    /**
+     * Number of durations in each bucket; bucket i holds durations of at
+     * least 2^(i-1) and less than 2^i nanoseconds, and bucket 0 holds zero.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong(0);
+
+    private final AtomicLong totalNanos = new AtomicLong(0);
+
+    private final AtomicLong maxNanos = new AtomicLong(0);
+
+    public TimingHistogram() {
+    }
+
+    /**
+     * @param nanos duration to record; negative durations are counted as 0
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        buckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) totalNanos.get() / n;
+    }
+
+    /**
+     * Estimate the duration below which the given fraction of the recorded
+     * durations fall, as the upper bound of the bucket containing it.
+     *
+     * @param fraction between 0 and 1
+     * @return estimated duration in nanoseconds, or 0 if nothing has been
+     *         recorded
+     */
+    public long percentile(double fraction) {
+        if (fraction < 0 || fraction > 1)
+            throw new IllegalArgumentException(
+                    "fraction " + fraction + " is outside the range 0 to 1");
+        final long n = count.get();
+        if (n == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(maxNanos.get(),
+                                i == 0 ? 0 : i == BUCKET_COUNT - 1
+                                ? Long.MAX_VALUE : (1L << i) - 1);
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * @return a one line summary of the distribution in milliseconds
+     */
+    public String summary() {
+        return String.format(
+                "n=%d total=%.3fs mean=%.3fms p50<=%.3fms p90<=%.3fms p99<=%.3fms max=%.3fms",
+                getCount(), getTotalNanos() / 1e9, getMeanNanos() / 1e6,
+                percentile(0.5) / 1e6, percentile(0.9) / 1e6,
+                percentile(0.99) / 1e6, getMaxNanos() / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper().toString();
+    }
+
+    protected Objects.ToStringHelper toStringHelper() {
+        return Objects.toStringHelper(this).
+                add("count", count).
+                add("totalNanos", totalNanos).
+                add("maxNanos", maxNanos);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Objects;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.lib.Checks;
+
+/**
+ * Runs a number of worker JVMs as local subprocesses, restarting any that
+ * fail. Each worker is given its own arguments, and is expected to journal
+ * its progress such that a restarted worker carries on where the failed one
+ * stopped.
+ *
+ * <p>The output of every worker process is appended to a log file, named by
+ * its index, in the log directory.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class WorkerProcesses {
+
+    private static final Log LOG = LogFactory.getLog(WorkerProcesses.class);
+
+    private static final long POLL_MILLIS = 200;
+
+    private final String mainClass;
+
+    private final List<List<String>> workerArguments;
+
+    private final File logDirectory;
+
+    private List<String> javaOptions = new ArrayList<String>();
+
+    private int maxRestarts = 2;
+
+    private int restartCount = 0;
+
+    public WorkerProcesses(String mainClass,
+                           List<List<String>> workerArguments,
+                           File logDirectory) {
+        Checks.checkNotNull("mainClass is null", mainClass);
+        Checks.checkNotNull("workerArguments is null", workerArguments);
+        Checks.checkNotNull("logDirectory is null", logDirectory);
+        this.mainClass = mainClass;
+        this.workerArguments = workerArguments;
+        this.logDirectory = logDirectory;
+    }
+
+    public List<String> getJavaOptions() {
+        return javaOptions;
+    }
+
+    /**
+     * @param javaOptions options passed to every worker JVM, such as -Xmx
+     */
+    public void setJavaOptions(List<String> javaOptions) {
+        Checks.checkNotNull("javaOptions is null", javaOptions);
+        this.javaOptions = javaOptions;
+    }
+
+    public int getMaxRestarts() {
+        return maxRestarts;
+    }
+
+    /**
+     * @param maxRestarts number of times each worker may be restarted after
+     *                    failing, before the whole run is abandoned
+     */
+    public void setMaxRestarts(int maxRestarts) {
+        if (maxRestarts < 0)
+            throw new IllegalArgumentException("maxRestarts < 0");
+        this.maxRestarts = maxRestarts;
+    }
+
+    /**
+     * @return total number of restarts made by the last run
+     */
+    public int getRestartCount() {
+        return restartCount;
+    }
+
+    File getLogFile(int worker) {
+        return new File(logDirectory, "worker-" + worker + ".log");
+    }
+
+    /**
+     * Start all the workers and wait for them to finish successfully.
+     *
+     * @throws IOException if a worker could not be started, or failed more
+     *                     than maxRestarts times
+     */
+    public void run() throws IOException, InterruptedException {
+        if (!logDirectory.isDirectory() && !logDirectory.mkdirs())
+            throw new IOException("Failed to create log directory \""
+                    + logDirectory + "\".");
+
+        final int n = workerArguments.size();
+        final Process[] processes = new Process[n];
+        final int[] failures = new int[n];
+        restartCount = 0;
+        try {
+            for (int i = 0; i < n; i++) {
+                processes[i] = start(i);
+            }
+
+            int running = n;
+            while (running > 0) {
+                Thread.sleep(POLL_MILLIS);
+                for (int i = 0; i < n; i++) {
+                    if (processes[i] == null)
+                        continue;
+                    final int status;
+                    try {
+                        status = processes[i].exitValue();
+                    } catch (IllegalThreadStateException ex) {
+                        // Still running
+                        continue;
+                    }
+                    processes[i] = null;
+                    if (status == 0) {
+                        if (LOG.isInfoEnabled())
+                            LOG.info("Worker " + i + " completed.");
+                        --running;
+                    } else if (++failures[i] > maxRestarts) {
+                        throw new IOException("Worker " + i + " failed "
+                                + failures[i] + " times; last exit status "
+                                + status + ". See \"" + getLogFile(i)
+                                + "\".");
+                    } else {
+                        if (LOG.isWarnEnabled())
+                            LOG.warn("Worker " + i + " failed with exit status "
+                                    + status + "; restarting.");
+                        ++restartCount;
+                        processes[i] = start(i);
+                    }
+                }
+            }
+        } finally {
+            for (Process process : processes) {
+                if (process != null)
+                    process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Start the given worker, with the same class path as this JVM.
+     */
+    private Process start(int worker) throws IOException {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"),
+                             "java").getPath());
+        command.addAll(javaOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.addAll(workerArguments.get(worker));
+        if (LOG.isDebugEnabled())
+            LOG.debug("Starting worker " + worker + ": " + command);
+
+        final Process process = new ProcessBuilder(command).
+                redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        final OutputStream log = new FileOutputStream(getLogFile(worker), true);
+        final Thread copier = new Thread(
+                new StreamCopier(process.getInputStream(), log),
+                "worker-" + worker + "-log");
+        copier.setDaemon(true);
+        copier.start();
+        return process;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("mainClass", mainClass).
+                add("workers", workerArguments.size()).
+                add("logs", logDirectory).
+                add("javaOptions", javaOptions).
+                add("maxRestarts", maxRestarts).
+                toString();
+    }
+
+    /**
+     * Copies the output of a worker to its log until the worker exits.
+     */
+    private static final class StreamCopier implements Runnable {
+
+        private final InputStream in;
+
+        private final OutputStream out;
+
+        StreamCopier(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            final byte[] buffer = new byte[8192];
+            try {
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                        out.flush();
+                    }
+                } finally {
+                    out.close();
+                    in.close();
+                }
+            } catch (IOException ex) {
+                if (LOG.isWarnEnabled())
+                    LOG.warn("Failed to copy worker output to log.", ex);
+            }
+        }
+    }
+}
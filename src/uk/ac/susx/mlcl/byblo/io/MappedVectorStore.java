@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableSource;
+import uk.ac.susx.mlcl.lib.io.Source;
+
+/**
+ * A store of decoded feature vectors, held in a packed binary file that is
+ * memory mapped for reading. Parsing the text representation of the vectors is
+ * expensive, and an all-pairs search reads the same vectors many times over,
+ * so it is much faster to decode them once and read the binary form
+ * thereafter.
+ *
+ * <p>Each vector is stored as a record of consecutive big-endian values: the
+ * entry id, the cardinality and the size as ints, followed by size int keys
+ * then size double values. Records are addressed by their byte offset in the
+ * file, which serves as the position of the sources created with
+ * {@link #newSource()}. Any number of sources can be open over the same store,
+ * each with an independent position, so the two sides of a search over one
+ * file share a single copy of the data.</p>
+ *
+ * <p>The file is mapped in segments of at most {@link #MAX_SEGMENT_SIZE} bytes
+ * (unless a single record is larger), which always start on a record
+ * boundary.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MappedVectorStore implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(MappedVectorStore.class);
+
+    /**
+     * Largest number of bytes mapped in a single buffer.
+     */
+    static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private static final int HEADER_SIZE = 3 * 4;
+
+    private final File file;
+
+    private final long[] segmentStarts;
+
+    private final long length;
+
+    private final long count;
+
+    private MappedByteBuffer[] segments;
+
+    private MappedVectorStore(File file, long[] segmentStarts, long length,
+                              long count) throws IOException {
+        this.file = file;
+        this.segmentStarts = segmentStarts;
+        this.length = length;
+        this.count = count;
+        this.segments = map(file, segmentStarts, length);
+    }
+
+    /**
+     * Decode all remaining vectors from the given source, and store them in
+     * the given file, which will be overwritten.
+     *
+     * @param source vectors to store
+     * @param file destination of the binary records
+     * @return a store reading from the file
+     * @throws IOException if the source could not be read or the file written
+     */
+    public static MappedVectorStore write(
+            Source<? extends Indexed<SparseDoubleVector>> source, File file)
+            throws IOException {
+        return write(source, file, MAX_SEGMENT_SIZE);
+    }
+
+    static MappedVectorStore write(
+            Source<? extends Indexed<SparseDoubleVector>> source, File file,
+            int maxSegmentSize)
+            throws IOException {
+        Checks.checkNotNull("source is null", source);
+        Checks.checkNotNull("file is null", file);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Writing decoded vectors to \"" + file + "\".");
+        }
+
+        final LongArrayList segmentStarts = new LongArrayList();
+        segmentStarts.add(0);
+        long offset = 0;
+        long count = 0;
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            while (source.hasNext()) {
+                final Indexed<SparseDoubleVector> item = source.read();
+                final SparseDoubleVector v = item.value();
+                final long recordSize = recordSize(v.size);
+                if (recordSize > Integer.MAX_VALUE)
+                    throw new IOException("vector of entry " + item.key()
+                            + " is too large to store: " + v.size);
+                final long segmentStart =
+                        segmentStarts.getLong(segmentStarts.size() - 1);
+                if (offset > segmentStart
+                        && offset + recordSize - segmentStart > maxSegmentSize) {
+                    segmentStarts.add(offset);
+                }
+
+                out.writeInt(item.key());
+                out.writeInt(v.cardinality);
+                out.writeInt(v.size);
+                for (int i = 0; i < v.size; i++)
+                    out.writeInt(v.keys[i]);
+                for (int i = 0; i < v.size; i++)
+                    out.writeDouble(v.values[i]);
+                offset += recordSize;
+                ++count;
+            }
+        } finally {
+            out.close();
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Wrote " + count + " vectors (" + offset + " bytes) to \""
+                    + file + "\".");
+        }
+        return new MappedVectorStore(file, segmentStarts.toLongArray(), offset,
+                                     count);
+    }
+
+    private static long recordSize(int size) {
+        return HEADER_SIZE + (4L + 8L) * size;
+    }
+
+    private static MappedByteBuffer[] map(File file, long[] segmentStarts,
+                                          long length) throws IOException {
+        final MappedByteBuffer[] segments =
+                new MappedByteBuffer[segmentStarts.length];
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            for (int i = 0; i < segmentStarts.length; i++) {
+                final long end = i + 1 < segmentStarts.length
+                        ? segmentStarts[i + 1] : length;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                          segmentStarts[i],
+                                          end - segmentStarts[i]);
+            }
+        } finally {
+            // The mapping remains valid after the channel is closed
+            raf.close();
+        }
+        return segments;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of vectors stored
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return size of the store in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Create a new source over the vectors, positioned at the first.
+     *
+     * @return source of the stored vectors
+     */
+    public synchronized SeekableSource<Indexed<SparseDoubleVector>, Long> newSource() {
+        if (segments == null)
+            throw new IllegalStateException("store has been closed");
+        final ByteBuffer[] buffers = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            buffers[i] = segments[i].duplicate();
+        }
+        return new VectorSource(buffers);
+    }
+
+    /**
+     * Release the mapped buffers. Sources already created may continue to
+     * read from them.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        segments = null;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper().toString();
+    }
+
+    protected Objects.ToStringHelper toStringHelper() {
+        return Objects.toStringHelper(this).
+                add("file", file).
+                add("count", count).
+                add("length", length).
+                add("segments", segmentStarts.length);
+    }
+
+    /**
+     * Source reading records from private duplicates of the mapped segments.
+     */
+    private final class VectorSource
+            implements SeekableSource<Indexed<SparseDoubleVector>, Long> {
+
+        private final ByteBuffer[] buffers;
+
+        private int segment = 0;
+
+        VectorSource(ByteBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            return position() < length;
+        }
+
+        @Override
+        public Indexed<SparseDoubleVector> read() throws IOException {
+            if (!buffers[segment].hasRemaining()) {
+                if (segment + 1 >= buffers.length)
+                    throw new IOException("read past the end of the store");
+                ++segment;
+                buffers[segment].position(0);
+            }
+            final ByteBuffer buffer = buffers[segment];
+            final int id = buffer.getInt();
+            final int cardinality = buffer.getInt();
+            final int size = buffer.getInt();
+            final int[] keys = new int[size];
+            final double[] values = new double[size];
+            buffer.asIntBuffer().get(keys);
+            buffer.position(buffer.position() + 4 * size);
+            buffer.asDoubleBuffer().get(values);
+            buffer.position(buffer.position() + 8 * size);
+            return new Indexed<SparseDoubleVector>(
+                    id, new SparseDoubleVector(keys, values, cardinality, size));
+        }
+
+        @Override
+        public void position(Long offset) throws IOException {
+            Checks.checkNotNull("offset is null", offset);
+            if (offset < 0 || offset > length)
+                throw new IllegalArgumentException(
+                        "offset " + offset + " is outside the range 0 to "
+                        + length);
+            int s = Arrays.binarySearch(segmentStarts, offset);
+            if (s < 0)
+                s = -s - 2;
+            segment = s;
+            buffers[segment].position((int) (offset - segmentStarts[segment]));
+        }
+
+        @Override
+        public Long position() throws IOException {
+            return segmentStarts[segment] + buffers[segment].position();
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).
+                    add("store", file).
+                    add("position", segmentStarts[segment]
+                    + buffers[segment].position()).
+                    toString();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.io.Flushable;
+import java.io.IOException;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.Sink;
+
+/**
+ * Static utility methods for {@link PairSink}.
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PairSinks {
+
+    private PairSinks() {
+    }
+
+    /**
+     * Return the given sink as a {@link PairSink}: the sink itself if it
+     * already is one, otherwise an adapter that boxes every primitive pair
+     * before writing it. The adapter is flushable, passing flushes on to the
+     * sink when it is.
+     *
+     * @param sink destination of the pairs
+     * @return primitive view of the sink
+     */
+    public static PairSink asPairSink(
+            final Sink<? super Weighted<TokenPair>> sink) {
+        Checks.checkNotNull("sink is null", sink);
+        if (sink instanceof PairSink) {
+            return (PairSink) sink;
+        }
+        return new BoxingPairSink(sink);
+    }
+
+    private static final class BoxingPairSink implements PairSink, Flushable {
+
+        private final Sink<? super Weighted<TokenPair>> inner;
+
+        BoxingPairSink(Sink<? super Weighted<TokenPair>> inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public void write(int id1, int id2, double weight)
+                throws IOException {
+            inner.write(new Weighted<TokenPair>(
+                    new TokenPair(id1, id2), weight));
+        }
+
+        @Override
+        public void write(Weighted<TokenPair> record) throws IOException {
+            inner.write(record);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (inner instanceof Flushable) {
+                ((Flushable) inner).flush();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return inner.toString();
+        }
+    }
+}
@@ -70,15 +70,20 @@ import java.text.DecimalFormat;
  * <p>Compact mode is the default behavior, since it can reduce file sizes by 
  * approximately 50%, with corresponding reductions in I/O overhead.</p>
  * 
+ * <p>Pairs can also be written directly from their ids and weight with
+ * {@link #write(int, int, double)}, which allocates no pair objects.</p>
+ * 
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class WeightedTokenPairSink extends AbstractTSVSink<Weighted<TokenPair>> {
+public class WeightedTokenPairSink extends AbstractTSVSink<Weighted<TokenPair>>
+        implements PairSink {
 
     private final DecimalFormat f = new DecimalFormat("###0.0#####;-###0.0#####");
     private final ObjectIndex<String> stringIndex1;
     private final ObjectIndex<String> stringIndex2;
     private boolean compactFormatEnabled = false;
-    private Weighted<TokenPair> previousRecord = null;
+    private boolean previousRecordWritten = false;
+    private int previousId1 = 0;
     private long count = 0;
 
     public WeightedTokenPairSink(File file, Charset charset,
@@ -115,37 +120,44 @@ public class WeightedTokenPairSink extends AbstractTSVSink<Weighted<TokenPair>>
 
     @Override
     public void write(Weighted<TokenPair> record) throws IOException {
+        write(record.record().id1(), record.record().id2(), record.weight());
+    }
+
+    @Override
+    public void write(int id1, int id2, double weight) throws IOException {
         if (isCompactFormatEnabled()) {
-            writeCompact(record);
+            writeCompact(id1, id2, weight);
         } else {
-            writeVerbose(record);
+            writeVerbose(id1, id2, weight);
         }
         ++count;
     }
 
-    private void writeVerbose(Weighted<TokenPair> record) throws IOException {
-        writeToken1(record.record().id1());
+    private void writeVerbose(int id1, int id2, double weight)
+            throws IOException {
+        writeToken1(id1);
         writeValueDelimiter();
-        writeToken2(record.record().id2());
+        writeToken2(id2);
         writeValueDelimiter();
-        writeWeight(record.weight());
+        writeWeight(weight);
         writeRecordDelimiter();
     }
 
-    private void writeCompact(final Weighted<TokenPair> record) throws IOException {
-        if (previousRecord == null) {
-            writeToken1(record.record().id1());
-        } else if (previousRecord.record().id1() != record.record().
-                id1()) {
+    private void writeCompact(int id1, int id2, double weight)
+            throws IOException {
+        if (!previousRecordWritten) {
+            writeToken1(id1);
+        } else if (previousId1 != id1) {
             writeRecordDelimiter();
-            writeToken1(record.record().id1());
+            writeToken1(id1);
         }
 
         writeValueDelimiter();
-        writeToken2(record.record().id2());
+        writeToken2(id2);
         writeValueDelimiter();
-        writeWeight(record.weight());
-        previousRecord = record;
+        writeWeight(weight);
+        previousRecordWritten = true;
+        previousId1 = id1;
     }
 
     private void writeToken1(int id) throws IOException {
@@ -166,7 +178,7 @@ public class WeightedTokenPairSink extends AbstractTSVSink<Weighted<TokenPair>>
 
     @Override
     public void close() throws IOException {
-        if (isCompactFormatEnabled() && previousRecord != null) {
+        if (isCompactFormatEnabled() && previousRecordWritten) {
             writeRecordDelimiter();
         }
         super.close();
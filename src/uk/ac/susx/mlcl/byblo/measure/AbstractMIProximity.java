@@ -174,4 +174,31 @@ public abstract class AbstractMIProximity extends AbstractProximity {
     protected final double prob(final SparseDoubleVector V, final int k) {
         return V.values[k] / V.sum;
     }
+
+    /**
+     * @return a vector with the keys of V, holding the positive information
+     *         content of each feature (see {@link #posInf})
+     */
+    protected final SparseDoubleVector positiveInformation(
+            final SparseDoubleVector V) {
+        final double[] inf = new double[V.size];
+        for (int i = 0; i < V.size; i++) {
+            inf[i] = posInf(V, i);
+        }
+        return withValues(V, inf);
+    }
+
+    /**
+     * @return a vector with the keys of V, holding 1 for each feature with
+     *         positive information content (see {@link #hasPosInf}), and 0
+     *         otherwise
+     */
+    protected final SparseDoubleVector positiveIndicators(
+            final SparseDoubleVector V) {
+        final double[] indicators = new double[V.size];
+        for (int i = 0; i < V.size; i++) {
+            indicators[i] = hasPosInf(V, i) ? 1 : 0;
+        }
+        return withValues(V, indicators);
+    }
 }
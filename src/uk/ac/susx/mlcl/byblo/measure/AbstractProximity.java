@@ -30,12 +30,20 @@
  */
 package uk.ac.susx.mlcl.byblo.measure;
 
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
 /**
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
 public abstract class AbstractProximity implements Proximity {
 
+    /**
+     * Tolerance used when rounding threshold bounds, so that floating point
+     * error (e.g 0.1 * 30 = 3.0000000000000004) never tightens a bound.
+     */
+    protected static final double EPSILON = 1e-9;
+
     private int filteredFeatureId = -1;
 
     /**
@@ -56,4 +64,110 @@ public abstract class AbstractProximity implements Proximity {
     public boolean isFiltered(int featureId) {
         return filteredFeatureId == featureId;
     }
+
+    /**
+     * By default vectors are compared as they are read.
+     */
+    @Override
+    public SparseDoubleVector prepare(final SparseDoubleVector V) {
+        return V;
+    }
+
+    /**
+     * @return a vector with the keys of V, holding the given values
+     */
+    protected static SparseDoubleVector withValues(final SparseDoubleVector V,
+                                                   final double[] values) {
+        return new SparseDoubleVector(V.keys, values, V.cardinality, V.size);
+    }
+
+    /**
+     * @return a vector with the keys of V, holding the probability of each
+     *         feature given V
+     */
+    protected static SparseDoubleVector probabilities(
+            final SparseDoubleVector V) {
+        final double[] p = new double[V.size];
+        for (int i = 0; i < V.size; i++) {
+            p[i] = V.values[i] / V.sum;
+        }
+        return withValues(V, p);
+    }
+
+    /**
+     * Sum the given terms over every unfiltered feature common to both
+     * vectors, in ascending key order. Vectors of similar size are merged
+     * linearly; otherwise the keys of the shorter vector are found in the
+     * longer by galloping search (see {@link Intersection}).
+     */
+    protected final double sumSharedTerms(final SharedTerm terms,
+                                          final SparseDoubleVector A,
+                                          final SparseDoubleVector B) {
+        if (Intersection.isSkewed(A.size, B.size)) {
+            return A.size < B.size
+                    ? sumSharedTermsGalloping(terms, A, B, false)
+                    : sumSharedTermsGalloping(terms, B, A, true);
+        }
+
+        double sum = 0;
+        int i = 0;
+        int j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i++;
+            } else if (A.keys[i] > B.keys[j]) {
+                j++;
+            } else {
+                if (!isFiltered(A.keys[i])) {
+                    sum += terms.sharedTerm(A, i, B, j);
+                }
+                i++;
+                j++;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Walk the short vector, galloping through the long one. The terms are
+     * passed in their original order, so swapped vectors are swapped back.
+     */
+    private double sumSharedTermsGalloping(final SharedTerm terms,
+                                           final SparseDoubleVector S,
+                                           final SparseDoubleVector L,
+                                           final boolean swapped) {
+        double sum = 0;
+        int j = 0;
+        for (int i = 0; i < S.size && j < L.size; i++) {
+            final int key = S.keys[i];
+            j = Intersection.gallop(L.keys, j, L.size, key);
+            if (j < L.size && L.keys[j] == key) {
+                if (!isFiltered(key)) {
+                    sum += swapped
+                            ? terms.sharedTerm(L, j, S, i)
+                            : terms.sharedTerm(S, i, L, j);
+                }
+                j++;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Round the given bound up to the nearest integer, allowing for
+     * floating point error.
+     */
+    protected static int ceil(final double x) {
+        return (int) Math.ceil(x - EPSILON);
+    }
+
+    /**
+     * Round the given bound down to the nearest integer, allowing for
+     * floating point error.
+     */
+    protected static int floor(final double x) {
+        return x >= Integer.MAX_VALUE
+                ? Integer.MAX_VALUE
+                : (int) Math.floor(x + EPSILON);
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measure;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * BoundedProximity extends {@link Proximity} for measures where a minimum
+ * similarity threshold implies hard bounds on the vectors that can reach it.
+ * These bounds allow an all-pairs search to prune candidate pairs before the
+ * full similarity is calculated (see the AllPairs and PPJoin algorithms).
+ *
+ * <p>All bounds are defined with respect to a global feature ordering, which
+ * is taken to be the order of the keys in each {@link SparseDoubleVector}.
+ * Implementations must be conservative: a pair that can reach the threshold
+ * must never be pruned.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
+ */
+public interface BoundedProximity extends Proximity {
+
+    /**
+     * Calculate the number of leading features of V that must contain at least
+     * one feature shared with any other vector, for their similarity to reach
+     * the given threshold. Only these features need to be indexed or probed.
+     *
+     * @param V feature vector
+     * @param minSimilarity similarity threshold
+     * @return length of the prefix, between 0 and V.size inclusive
+     */
+    int prefixLength(SparseDoubleVector V, double minSimilarity);
+
+    /**
+     * Calculate the minimum number of shared features required by two vectors
+     * of the given sizes for their similarity to reach the threshold. Return
+     * 0 if the measure does not bound the overlap.
+     *
+     * @param sizeA number of features in the first vector
+     * @param sizeB number of features in the second vector
+     * @param minSimilarity similarity threshold
+     * @return minimum overlap
+     */
+    int minOverlap(int sizeA, int sizeB, double minSimilarity);
+
+    /**
+     * @param size number of features in a vector
+     * @param minSimilarity similarity threshold
+     * @return smallest number of features another vector can have and still
+     *         reach the threshold
+     */
+    int minPartnerSize(int size, double minSimilarity);
+
+    /**
+     * @param size number of features in a vector
+     * @param minSimilarity similarity threshold
+     * @return largest number of features another vector can have and still
+     *         reach the threshold
+     */
+    int maxPartnerSize(int size, double minSimilarity);
+}
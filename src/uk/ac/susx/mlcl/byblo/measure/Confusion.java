@@ -41,29 +41,28 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class Confusion extends AbstractMIProximity {
+public class Confusion extends AbstractMIProximity
+        implements DecomposableProximity {
+
+    /**
+     * Vectors are compared by the probability of each feature.
+     */
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return probabilities(V);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double total = 0.0;
+        return sumSharedTerms(this, A, B);
+    }
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else { // Q.keys[i] == R.keys[j]
-                total += (prob(A, i) * prob(B, j))
-                        / featurePrior(A.keys[i]);
-                i++;
-                j++;
-            }
-        }
-        return total;
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        if (isFiltered(A.keys[i]))
+            return 0;
+        return (A.values[i] * B.values[j]) / featurePrior(A.keys[i]);
     }
 
     @Override
@@ -37,37 +37,42 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class Cosine extends AbstractProximity {
+public class Cosine extends AbstractProximity
+        implements BoundedProximity, DecomposableProximity, AngularProximity {
+
+    /**
+     * Vectors are compared by the probability of each feature.
+     */
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return probabilities(V);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double numerator = 0;
+        return sumSharedTerms(this, A, B);
+    }
 
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                numerator += (A.values[i] / A.sum) * (B.values[j] / B.sum);
-                i++;
-                j++;
-            }
-        }
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        if (isFiltered(A.keys[i]))
+            return 0;
+        return A.values[i] * B.values[j];
+    }
 
-        return numerator;
+    @Override
+    public double component(SparseDoubleVector V, int i) {
+        if (isFiltered(V.keys[i]))
+            return 0;
+        return V.values[i];
     }
 
     @Override
     public double left(SparseDoubleVector A) {
         double normSquared = 0;
         for (int i = 0; i < A.size; i++) {
-            normSquared += (A.values[i] / A.sum) * (A.values[i] / A.sum);
+            normSquared += A.values[i] * A.values[i];
         }
         return normSquared;
     }
@@ -87,6 +92,47 @@ public class Cosine extends AbstractProximity {
         return true;
     }
 
+    /**
+     * The shared component of two vectors is bounded by the norm of each
+     * (Cauchy-Schwarz), so features in the suffix of V whose norm is less than
+     * the threshold can not produce a match on their own. The bound also holds
+     * for Tanimoto, which never exceeds Cosine.
+     */
+    @Override
+    public int prefixLength(SparseDoubleVector V, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return V.size;
+        double normSquared = 0;
+        for (int i = 0; i < V.size; i++) {
+            normSquared += V.values[i] * V.values[i];
+        }
+        final double bound = minSimilarity * minSimilarity * normSquared
+                * (1 - EPSILON);
+        double suffixNormSquared = 0;
+        int length = V.size;
+        while (length > 0 && suffixNormSquared
+                + V.values[length - 1] * V.values[length - 1] < bound) {
+            --length;
+            suffixNormSquared += V.values[length] * V.values[length];
+        }
+        return length;
+    }
+
+    @Override
+    public int minOverlap(int sizeA, int sizeB, double minSimilarity) {
+        return 0;
+    }
+
+    @Override
+    public int minPartnerSize(int size, double minSimilarity) {
+        return 0;
+    }
+
+    @Override
+    public int maxPartnerSize(int size, double minSimilarity) {
+        return Integer.MAX_VALUE;
+    }
+
     @Override
     public String toString() {
         return "Cosine{}";
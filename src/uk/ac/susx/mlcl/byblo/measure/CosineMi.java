@@ -35,36 +35,41 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class CosineMi extends AbstractMIProximity {
+public class CosineMi extends AbstractMIProximity
+        implements AngularProximity, SharedTerm {
+
+    /**
+     * Vectors are compared by the positive information content of each
+     * feature, so no logarithms are taken per pair.
+     */
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return positiveInformation(V);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double numerator = 0;
+        return sumSharedTerms(this, A, B);
+    }
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                numerator += posInf(A, i) * posInf(B, j);
-                i++;
-                j++;
-            }
-        }
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return A.values[i] * B.values[j];
+    }
 
-        return numerator;
+    @Override
+    public double component(SparseDoubleVector V, int i) {
+        if (isFiltered(V.keys[i]))
+            return 0;
+        return V.values[i];
     }
 
     @Override
     public double left(SparseDoubleVector A) {
         double denominatorA = 0;
         for (int i = 0; i < A.size; i++) {
-            final double Qinf = posInf(A, i);
+            final double Qinf = A.values[i];
             if (Qinf > 0) {
                 denominatorA += Qinf * Qinf;
             }
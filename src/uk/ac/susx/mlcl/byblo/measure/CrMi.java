@@ -104,6 +104,14 @@ public class CrMi extends AbstractMIProximity {
         return gamma;
     }
 
+    /**
+     * Vectors are prepared for the underlying RecallMi measure.
+     */
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return recallMi.prepare(V);
+    }
+
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         final double recall = recallMi.shared(A, B) / recallMi.left(A);
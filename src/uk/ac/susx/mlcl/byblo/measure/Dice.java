@@ -30,6 +30,8 @@
  */
 package uk.ac.susx.mlcl.byblo.measure;
 
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
 /**
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
@@ -40,6 +42,36 @@ public class Dice extends Jaccard {
         return 2 * shared / (left + right);
     }
 
+    @Override
+    public int prefixLength(SparseDoubleVector V, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return V.size;
+        return prefixLength(V.size, minPartnerSize(V.size, minSimilarity));
+    }
+
+    @Override
+    public int minOverlap(int sizeA, int sizeB, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return 0;
+        return ceil(minSimilarity * (sizeA + sizeB) / 2);
+    }
+
+    @Override
+    public int minPartnerSize(int size, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return 0;
+        if (minSimilarity >= 2)
+            return Integer.MAX_VALUE;
+        return ceil(minSimilarity * size / (2 - minSimilarity));
+    }
+
+    @Override
+    public int maxPartnerSize(int size, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return Integer.MAX_VALUE;
+        return floor((2 - minSimilarity) * size / minSimilarity);
+    }
+
     @Override
     public String toString() {
         return "Dice{}";
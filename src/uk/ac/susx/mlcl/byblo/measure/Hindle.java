@@ -35,37 +35,38 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class Hindle extends AbstractMIProximity {
+public class Hindle extends AbstractMIProximity
+        implements DecomposableProximity {
 
+    /**
+     * Vectors are compared by the positive information content of each
+     * feature, so no logarithms are taken per pair.
+     */
     @Override
-    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double sim = 0;
-
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return positiveInformation(V);
+    }
 
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
+    @Override
+    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
+        return sumSharedTerms(this, A, B);
+    }
 
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else { // Q.keys[i] == R.keys[j]
-                final double pC = featurePrior(A.keys[i]);
-                final double pA = prob(A, i);
-                if (pA > pC) {
-                    final double pB = prob(B, j);
-                    if (pB > pC) {
-                        sim += Math.log(Math.min(pA / pC, pB / pC));
-                    }
-                }
-                i++;
-                j++;
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        if (isFiltered(A.keys[i]))
+            return 0;
+        // The logarithm is monotonic, so the minimum of the information
+        // content is the logarithm of the minimum ratio to the prior.
+        final double infA = A.values[i];
+        if (infA > 0) {
+            final double infB = B.values[j];
+            if (infB > 0) {
+                return Math.min(infA, infB);
             }
         }
-        return sim;
+        return 0;
     }
 
     @Override
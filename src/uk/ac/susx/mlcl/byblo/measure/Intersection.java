@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measure;
+
+/**
+ * Static utilities for intersecting the sorted key arrays of sparse vectors.
+ *
+ * <p>A linear merge of two vectors visits every feature of both, which is
+ * wasteful when one is much shorter than the other: an entry of 20 features
+ * compared with one of 200,000. When the sizes are skewed beyond
+ * {@link #SKEW_RATIO}, each key of the shorter vector is instead found in the
+ * longer one by galloping (exponential then binary) search, so the cost grows
+ * with the shorter vector times the log of the gap between matches.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
+ */
+public final class Intersection {
+
+    /**
+     * Ratio of the longer to the shorter vector size, above which galloping
+     * search is used instead of a linear merge. Galloping needs a few more
+     * comparisons per match, so it only pays off when most keys of the longer
+     * vector would be skipped.
+     */
+    public static final int SKEW_RATIO = 16;
+
+    private Intersection() {
+    }
+
+    /**
+     * @return true if vectors of the given sizes should be intersected by
+     *         galloping search rather than a linear merge
+     */
+    public static boolean isSkewed(final int sizeA, final int sizeB) {
+        return sizeA > 0 && sizeB > 0
+                && (sizeA / sizeB >= SKEW_RATIO
+                    || sizeB / sizeA >= SKEW_RATIO);
+    }
+
+    /**
+     * Find the first position, in the range <tt>[from, to)</tt> of the sorted
+     * array, holding a key that is no less than the given key. Steps of
+     * doubling length are taken from <tt>from</tt> until the key is passed,
+     * and the last step is then binary searched; so keys close to the start
+     * of the range are found quickly.
+     *
+     * @param keys sorted array to search
+     * @param from first position to consider
+     * @param to   one past the last position to consider
+     * @param key  key to find
+     * @return position of the first key &gt;= key; or <tt>to</tt> if there is
+     *         none
+     */
+    public static int gallop(final int[] keys, final int from, final int to,
+                             final int key) {
+        if (from >= to || keys[from] >= key) {
+            return from;
+        }
+        // Invariant: keys[low] < key
+        int low = from;
+        int step = 1;
+        int high = from + step;
+        while (high < to && keys[high] < key) {
+            low = high;
+            step <<= 1;
+            high = low + step;
+        }
+        if (high > to) {
+            high = to;
+        }
+        // Now keys[low] < key <= keys[high], treating keys[to] as infinite
+        while (high - low > 1) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+}
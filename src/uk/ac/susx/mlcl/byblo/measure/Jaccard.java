@@ -38,28 +38,18 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class Jaccard extends AbstractProximity {
+public class Jaccard extends AbstractProximity
+        implements BoundedProximity, DecomposableProximity {
 
     @Override
     public double shared(final SparseDoubleVector A, final SparseDoubleVector B) {
-        int shared = 0;
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                ++shared;
-                i++;
-                j++;
-            }
-        }
-        return shared;
+        return sumSharedTerms(this, A, B);
+    }
+
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return isFiltered(A.keys[i]) ? 0 : 1;
     }
 
     @Override
@@ -82,6 +72,43 @@ public class Jaccard extends AbstractProximity {
         return true;
     }
 
+    @Override
+    public int prefixLength(SparseDoubleVector V, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return V.size;
+        // shared >= t * |A| because |A u B| >= |A|
+        return prefixLength(V.size, ceil(minSimilarity * V.size));
+    }
+
+    @Override
+    public int minOverlap(int sizeA, int sizeB, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return 0;
+        return ceil(minSimilarity / (1 + minSimilarity) * (sizeA + sizeB));
+    }
+
+    @Override
+    public int minPartnerSize(int size, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return 0;
+        return ceil(minSimilarity * size);
+    }
+
+    @Override
+    public int maxPartnerSize(int size, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return Integer.MAX_VALUE;
+        return floor(size / minSimilarity);
+    }
+
+    /**
+     * Two vectors that share at least minOverlap features, must share one
+     * within the first (size - minOverlap + 1) features of each.
+     */
+    protected static int prefixLength(int size, int minOverlap) {
+        return Math.max(0, Math.min(size, size - minOverlap + 1));
+    }
+
     @Override
     public String toString() {
         return "Jaccard{}";
@@ -35,38 +35,34 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class JaccardMi extends AbstractMIProximity {
+public class JaccardMi extends AbstractMIProximity
+        implements SharedTerm {
 
+    /**
+     * Vectors are compared by whether each feature has positive information
+     * content.
+     */
     @Override
-    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        int shared = 0;
-
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                if (hasPosInf(A, i, B, j))
-                    ++shared;
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return positiveIndicators(V);
+    }
 
-                i++;
-                j++;
-            }
-        }
-        return shared;
+    @Override
+    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
+        return sumSharedTerms(this, A, B);
+    }
 
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return A.values[i] * B.values[j];
     }
 
     @Override
     public double left(SparseDoubleVector A) {
         int possible = 0;
         for (int i = 0; i < A.size; i++) {
-            if (hasPosInf(A, i))
+            if (A.values[i] > 0)
                 ++possible;
         }
         return possible;
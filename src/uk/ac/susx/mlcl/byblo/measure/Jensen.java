@@ -39,7 +39,8 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  * 
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class Jensen extends AbstractProximity {
+public class Jensen extends AbstractProximity
+        implements DecomposableProximity {
 
     private static final Log LOG = LogFactory.getLog(Jensen.class);
 
@@ -51,38 +52,36 @@ public class Jensen extends AbstractProximity {
                     + "thoughoughly test and is likely to contain bugs.");
     }
 
+    /**
+     * Vectors are compared by the probability of each feature.
+     */
     @Override
-    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double comp = 0;
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return probabilities(V);
+    }
 
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                final double pA = A.values[i] / A.sum;
-                final double pB = B.values[j] / B.sum;
-                final double pAv = Math.log(pA + pB) - LN2;
-                comp += pA * (2 * Math.log(pA) - pAv - LN2)
-                        + pB * (2 * Math.log(pB) - pAv - LN2);
-                i++;
-                j++;
-            }
-        }
+    @Override
+    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
+        return sumSharedTerms(this, A, B);
+    }
 
-        return comp;
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        if (isFiltered(A.keys[i]))
+            return 0;
+        final double pA = A.values[i];
+        final double pB = B.values[j];
+        final double pAv = Math.log(pA + pB) - LN2;
+        return pA * (2 * Math.log(pA) - pAv - LN2)
+                + pB * (2 * Math.log(pB) - pAv - LN2);
     }
 
     @Override
     public double left(SparseDoubleVector A) {
         double comp = 0;
         for (int i = 0; i < A.size; i++) {
-            final double pA = A.values[i] / A.sum;
+            final double pA = A.values[i];
             comp += pA * (-((pA - 1) * Math.log(pA) - pA * LN2));
         }
         return comp;
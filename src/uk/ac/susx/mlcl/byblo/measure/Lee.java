@@ -46,7 +46,7 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class Lee extends AbstractProximity {
+public class Lee extends AbstractProximity implements SharedTerm {
 
     private static final Log LOG = LogFactory.getLog(Lee.class);
 
@@ -69,36 +69,34 @@ public class Lee extends AbstractProximity {
         this.alpha = alpha;
     }
 
+    /**
+     * Vectors are compared by the probability of each feature.
+     */
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return probabilities(V);
+    }
+
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double sim = 0;
-        int i = 0, j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                i++;
-            } else if (A.keys[i] > B.keys[j]) {
-                j++;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                final double pA = A.values[i] / A.sum;
-                final double pB = (B.values[j] / B.sum);
-                sim += pA * (2 * Math.log(pA)
-                             - Math.log(pB * alpha + pA * (1 - alpha))
-                             + Math.log((1.0 - alpha)));
-                i++;
-                j++;
-            }
-        }
-        return sim;
+        return sumSharedTerms(this, A, B);
+    }
+
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        final double pA = A.values[i];
+        final double pB = B.values[j];
+        return pA * (2 * Math.log(pA)
+                     - Math.log(pB * alpha + pA * (1 - alpha))
+                     + Math.log((1.0 - alpha)));
     }
 
     @Override
     public double left(SparseDoubleVector A) {
         double left = 0;
         for (int i = 0; i < A.size; i++) {
-            final double pA = A.values[i] / A.sum;
+            final double pA = A.values[i];
             left += pA * (Math.log(pA)
                           - Math.log(pA * (1.0 - alpha)));
         }
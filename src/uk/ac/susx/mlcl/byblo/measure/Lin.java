@@ -36,37 +36,36 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class Lin extends AbstractMIProximity {
+public class Lin extends AbstractMIProximity
+        implements DecomposableProximity {
 
+    /**
+     * Vectors are compared by the positive information content of each
+     * feature, so no logarithms are taken per pair.
+     */
     @Override
-    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double numerator = 0.0;
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return positiveInformation(V);
+    }
 
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                ++i;
-            } else if (A.keys[i] > B.keys[j]) {
-                ++j;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                final double infA = posInf(A, i);
-                if (infA > 0) {
-                    final double infB = posInf(B, j);
-                    if (infB > 0) {
-                        numerator += infA + infB;
-                    }
-                }
+    @Override
+    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
+        return sumSharedTerms(this, A, B);
+    }
 
-                ++i;
-                ++j;
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        if (isFiltered(A.keys[i]))
+            return 0;
+        final double infA = A.values[i];
+        if (infA > 0) {
+            final double infB = B.values[j];
+            if (infB > 0) {
+                return infA + infB;
             }
         }
-
-        return numerator;
+        return 0;
     }
 
     @Override
@@ -74,7 +73,7 @@ public class Lin extends AbstractMIProximity {
         double denominator = 0.0;
 
         for (int i = 0; i < A.size; i++) {
-            denominator += posInf(A, i);
+            denominator += A.values[i];
         }
 
         return denominator;
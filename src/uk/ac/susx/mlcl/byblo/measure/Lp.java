@@ -46,7 +46,7 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class Lp extends AbstractProximity {
+public class Lp extends AbstractProximity implements SharedTerm {
 
     public static final double DEFAULT_P = 1;
 
@@ -64,120 +64,75 @@ public class Lp extends AbstractProximity {
         this.p = p;
     }
 
+    /**
+     * Vectors are compared by the probability of each feature.
+     */
     @Override
-    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double shared = 0;
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return probabilities(V);
+    }
 
-        if (p == 0) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else { // Q.keys[i] == R.keys[j]
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.signum(Math.abs(pA - pB))
-                            - Math.signum(pB)
-                            - Math.signum(pA);
-                    i++;
-                    j++;
-                }
-            }
-        } else if (p == 1) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else { // Q.keys[i] == R.keys[j]
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.abs(pA - pB)
-                            - pB
-                            - pA;
-                    i++;
-                    j++;
-                }
-            }
-        } else if (p == 2) {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else {
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += (pA - pB) * (pA - pB)
-                            - pB * pB
-                            - pA * pA;
-                    i++;
-                    j++;
-                }
-            }
-        } else if (p == Double.POSITIVE_INFINITY) {
+    @Override
+    public double shared(SparseDoubleVector A, SparseDoubleVector B) {
+        if (p == Double.POSITIVE_INFINITY) {
+            // Depends on the features of either vector, not only the
+            // shared ones, so every feature must be visited.
+            double shared = 0;
             int i = 0, j = 0;
             while (i < A.size && j < B.size) {
                 if (A.keys[i] < B.keys[j]) {
-                    shared = Math.max(shared, (A.values[i] / A.sum));
+                    shared = Math.max(shared, A.values[i]);
                     i++;
                 } else if (A.keys[i] > B.keys[j]) {
-                    shared = Math.max(shared, (B.values[j] / B.sum));
+                    shared = Math.max(shared, B.values[j]);
                     j++;
                 } else if (isFiltered(A.keys[i])) {
-                    shared = Math.max(shared, (A.values[i] / A.sum));
-                    shared = Math.max(shared, (B.values[j] / B.sum));
+                    shared = Math.max(shared, A.values[i]);
+                    shared = Math.max(shared, B.values[j]);
                     i++;
                     j++;
                 } else {
                     shared = Math.max(shared, Math.abs(
-                            (A.values[i] / A.sum) - (B.values[j] / B.sum)));
+                            A.values[i] - B.values[j]));
                     i++;
                     j++;
                 }
             }
             while (i < A.size) {
-                shared = Math.max(shared, (A.values[i] / A.sum));
+                shared = Math.max(shared, A.values[i]);
                 i++;
             }
             while (j < B.size) {
-                shared = Math.max(shared, (B.values[j] / B.sum));
+                shared = Math.max(shared, B.values[j]);
                 j++;
             }
+            return shared;
         } else {
-            int i = 0, j = 0;
-            while (i < A.size && j < B.size) {
-                if (A.keys[i] < B.keys[j]) {
-                    i++;
-                } else if (A.keys[i] > B.keys[j]) {
-                    j++;
-                } else if (isFiltered(A.keys[i])) {
-                    i++;
-                    j++;
-                } else {
-                    final double pA = A.values[i] / A.sum;
-                    final double pB = B.values[j] / B.sum;
-                    shared += Math.pow(Math.abs(pA - pB), p)
-                            - (Math.pow(pB, p) + Math.pow(pA, p));
-                    i++;
-                    j++;
-                }
-            }
+            return sumSharedTerms(this, A, B);
+        }
+    }
+
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        final double pA = A.values[i];
+        final double pB = B.values[j];
+        if (p == 0) {
+            return Math.signum(Math.abs(pA - pB))
+                    - Math.signum(pB)
+                    - Math.signum(pA);
+        } else if (p == 1) {
+            return Math.abs(pA - pB)
+                    - pB
+                    - pA;
+        } else if (p == 2) {
+            return (pA - pB) * (pA - pB)
+                    - pB * pB
+                    - pA * pA;
+        } else {
+            return Math.pow(Math.abs(pA - pB), p)
+                    - (Math.pow(pB, p) + Math.pow(pA, p));
         }
-        return shared;
     }
 
     @Override
@@ -189,7 +144,7 @@ public class Lp extends AbstractProximity {
         } else if (p == 2) {
             double left = 0;
             for (int i = 0; i < A.size; i++) {
-                left += (A.values[i] / A.sum) * (A.values[i] / A.sum);
+                left += A.values[i] * A.values[i];
             }
             return left;
         } else if (p == Double.POSITIVE_INFINITY) {
@@ -197,7 +152,7 @@ public class Lp extends AbstractProximity {
         } else {
             double left = 0;
             for (int i = 0; i < A.size; i++) {
-                left += Math.pow(A.values[i] / A.sum, p);
+                left += Math.pow(A.values[i], p);
             }
             return left;
         }
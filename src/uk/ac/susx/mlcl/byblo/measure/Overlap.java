@@ -30,6 +30,8 @@
  */
 package uk.ac.susx.mlcl.byblo.measure;
 
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
 /**
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
@@ -41,6 +43,33 @@ public class Overlap extends Jaccard {
         return shared / Math.min(left, right);
     }
 
+    /**
+     * The overlap coefficient is normalised by the smaller vector, so a very
+     * small partner can always reach the threshold. Hence neither the prefix
+     * nor the partner size can be bounded; only the overlap.
+     */
+    @Override
+    public int prefixLength(SparseDoubleVector V, double minSimilarity) {
+        return V.size;
+    }
+
+    @Override
+    public int minOverlap(int sizeA, int sizeB, double minSimilarity) {
+        if (minSimilarity <= 0)
+            return 0;
+        return ceil(minSimilarity * Math.min(sizeA, sizeB));
+    }
+
+    @Override
+    public int minPartnerSize(int size, double minSimilarity) {
+        return 0;
+    }
+
+    @Override
+    public int maxPartnerSize(int size, double minSimilarity) {
+        return Integer.MAX_VALUE;
+    }
+
     @Override
     public String toString() {
         return "Overlap{}";
@@ -36,6 +36,8 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  * Proximity defines a common interface that all similarity measure must
  * implement. It has been expanded from the usual single method interface, to
  * allow for pre-calculation of values that are independant to one vector. 
+ * Every vector is first transformed once by {@link #prepare}, and only the
+ * prepared vectors are passed to the other methods.
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
@@ -55,6 +57,20 @@ public interface Proximity {
      */
     double shared(SparseDoubleVector A, SparseDoubleVector B);
 
+    /**
+     * Transform a vector, as read from the input, into the form consumed by
+     * the other methods of the measure; for example by replacing the
+     * frequencies with probabilities, or with information content. This is
+     * called once for every vector before it is compared, so that work which
+     * depends only on the one vector is not repeated for every pair. A
+     * vector must not be prepared more than once.
+     *
+     * @param V a feature vector from the input
+     * @return the vector to pass to {@link #shared}, {@link #left} and
+     *         {@link #right}; possibly V itself
+     */
+    SparseDoubleVector prepare(SparseDoubleVector V);
+
     double left(SparseDoubleVector A);
 
     double right(SparseDoubleVector B);
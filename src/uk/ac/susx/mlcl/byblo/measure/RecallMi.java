@@ -60,33 +60,27 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk%gt;
  */
-public class RecallMi extends AbstractMIProximity {
+public class RecallMi extends AbstractMIProximity
+        implements SharedTerm {
+
+    /**
+     * Vectors are compared by the positive information content of each
+     * feature, so no logarithms are taken per pair.
+     */
+    @Override
+    public SparseDoubleVector prepare(SparseDoubleVector V) {
+        return positiveInformation(V);
+    }
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        double numerator = 0.0;
+        return sumSharedTerms(this, A, B);
+    }
 
-        int i = 0;
-        int j = 0;
-        while (i < A.size && j < B.size) {
-            if (A.keys[i] < B.keys[j]) {
-                ++i;
-            } else if (A.keys[i] > B.keys[j]) {
-                ++j;
-            } else if (isFiltered(A.keys[i])) {
-                i++;
-                j++;
-            } else {
-                if (posInf(B, j) > 0) {
-                    numerator += posInf(A, i);
-                }
-                
-                ++i;
-                ++j;
-            }
-        }
-        
-        return numerator;
+    @Override
+    public double sharedTerm(SparseDoubleVector A, int i,
+                             SparseDoubleVector B, int j) {
+        return B.values[j] > 0 ? A.values[i] : 0;
     }
 
     @Override
@@ -94,7 +88,7 @@ public class RecallMi extends AbstractMIProximity {
         double denominator = 0.0;
         
         for (int i = 0; i < A.size; i++) {
-            denominator += posInf(A, i);
+            denominator += A.values[i];
         }
         
         return denominator;
@@ -51,6 +51,11 @@ public final class ReversedProximity implements Proximity {
         return inner.shared(B, A);
     }
 
+    @Override
+    public SparseDoubleVector prepare(final SparseDoubleVector V) {
+        return inner.prepare(V);
+    }
+
     @Override
     public double left(final SparseDoubleVector A) {
         return inner.right(A);
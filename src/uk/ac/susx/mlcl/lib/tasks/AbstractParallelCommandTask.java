@@ -32,6 +32,7 @@ package uk.ac.susx.mlcl.lib.tasks;
 
 import com.beust.jcommander.Parameter;
 import com.google.common.base.Objects;
+import java.io.File;
 import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Queue;
@@ -61,6 +62,16 @@ public abstract class AbstractParallelCommandTask extends AbstractCommandTask {
                description = "Number of threads to use.")
     private int nThreads = DEFAULT_NUM_THREADS;
 
+    @Parameter(names = {"--status-file"},
+               description = "File to which the progress of each stage, throughput, heap use and estimated time remaining are periodically written, as JSON.")
+    private File statusFile = null;
+
+    @Parameter(names = {"--status-interval"},
+               description = "Seconds between writes of the status file.")
+    private int statusInterval = 10;
+
+    private ProgressReporter progress = null;
+
     private ExecutorService executor = null;
 
     private Queue<Future<? extends Task>> futureQueue;
@@ -88,6 +99,42 @@ public abstract class AbstractParallelCommandTask extends AbstractCommandTask {
         return nThreads;
     }
 
+    public final File getStatusFile() {
+        return statusFile;
+    }
+
+    /**
+     * @param statusFile file to which progress is periodically written, or
+     *                   null for none
+     */
+    public final void setStatusFile(File statusFile) {
+        this.statusFile = statusFile;
+    }
+
+    public final int getStatusInterval() {
+        return statusInterval;
+    }
+
+    public final void setStatusInterval(int statusInterval) {
+        if (statusInterval < 1) {
+            throw new IllegalArgumentException("statusInterval < 1");
+        }
+        this.statusInterval = statusInterval;
+    }
+
+    /**
+     * @return tracker of the progress of this task's stages; it is written to
+     *         the status file, if there is one, while the task runs
+     */
+    protected synchronized final ProgressReporter getProgress() {
+        if (progress == null) {
+            progress = new ProgressReporter(getClass().getSimpleName(),
+                                            statusFile,
+                                            statusInterval * 1000L);
+        }
+        return progress;
+    }
+
     protected synchronized final ExecutorService getExecutor() {
         if (executor == null) {
             // Create a new thread pool using an unbounded queue - throttling will
@@ -108,6 +155,7 @@ public abstract class AbstractParallelCommandTask extends AbstractCommandTask {
     @Override
     protected void initialiseTask() throws Exception {
         getExecutor();
+        getProgress().start();
     }
 
     @Override
@@ -125,6 +173,7 @@ public abstract class AbstractParallelCommandTask extends AbstractCommandTask {
             catchException(ex);
         } finally {
             executor.shutdownNow();
+            getProgress().close();
         }
     }
 
@@ -148,6 +197,7 @@ public abstract class AbstractParallelCommandTask extends AbstractCommandTask {
     protected Objects.ToStringHelper toStringHelper() {
         return super.toStringHelper().
                 add("threads", getNumThreads()).
+                add("statusFile", statusFile).
                 add("executor", executor).
                 add("futureQueue", futureQueue);
     }
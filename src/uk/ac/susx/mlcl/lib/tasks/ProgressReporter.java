@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.tasks;
+
+import com.google.common.base.Objects;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tracks the progress of the stages of a long running command, and
+ * periodically rewrites a small JSON status file describing them, so the run
+ * can be monitored by a scheduler or by hand.
+ *
+ * <p>Each {@link Stage} counts completed work units against a total, which
+ * may be unknown (negative) or may grow while the stage runs. The units are
+ * chosen by the stage so that they are of roughly equal cost; the estimated
+ * time remaining is the elapsed time scaled by the fraction of units still to
+ * be done. Stages also count the items (such as pairs) and bytes they
+ * produce, from which throughput is reported.</p>
+ *
+ * <p>The file is written to a temporary file alongside it and renamed into
+ * place, so readers never see a partial status. Without a file, stages are
+ * still tracked but nothing is written.</p>
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ProgressReporter implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(ProgressReporter.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String name;
+
+    private final File file;
+
+    private final long intervalMillis;
+
+    private final long startMillis;
+
+    private final List<Stage> stages = new CopyOnWriteArrayList<Stage>();
+
+    private ScheduledExecutorService timer = null;
+
+    /**
+     * @param name name of the command being run
+     * @param file status file to write, or null to write nothing
+     * @param intervalMillis milliseconds between writes of the status file
+     */
+    public ProgressReporter(String name, File file, long intervalMillis) {
+        if (name == null)
+            throw new NullPointerException("name is null");
+        if (intervalMillis < 1)
+            throw new IllegalArgumentException("intervalMillis < 1");
+        this.name = name;
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the stage of the given name, adding it if there is none.
+     */
+    public synchronized Stage stage(String stageName) {
+        for (Stage stage : stages) {
+            if (stage.getName().equals(stageName))
+                return stage;
+        }
+        final Stage stage = new Stage(stageName);
+        stages.add(stage);
+        return stage;
+    }
+
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * Start writing the status file periodically, in a daemon thread.
+     */
+    public synchronized void start() {
+        if (file == null || timer != null)
+            return;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "progress-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (IOException ex) {
+                    LOG.warn("Failed to write status file " + file, ex);
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the status file now, if there is one.
+     */
+    public synchronized void write() throws IOException {
+        if (file == null)
+            return;
+        final File temp = new File(file.getPath() + ".tmp");
+        final Writer out = new OutputStreamWriter(
+                new FileOutputStream(temp), UTF8);
+        try {
+            out.write(toJson());
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+        // Not all platforms allow a rename to replace an existing file
+        if (!temp.renameTo(file)) {
+            if (file.exists() && !file.delete())
+                throw new IOException("Failed to delete \"" + file + "\".");
+            if (!temp.renameTo(file))
+                throw new IOException("Failed to rename \"" + temp
+                        + "\" to \"" + file + "\".");
+        }
+    }
+
+    /**
+     * Stop the periodic writes, and write the final status.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        write();
+    }
+
+    /**
+     * @return the status of the command and all its stages
+     */
+    public String toJson() {
+        final long now = System.currentTimeMillis();
+        final MemoryUsage heap =
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"command\":");
+        quote(sb, name);
+        sb.append(",\"time\":").append(now);
+        sb.append(",\"elapsedSeconds\":").append(seconds(now - startMillis));
+        sb.append(",\"heap\":{\"used\":").append(heap.getUsed()).
+                append(",\"committed\":").append(heap.getCommitted()).
+                append(",\"max\":").append(heap.getMax()).append('}');
+        sb.append(",\"stages\":[");
+        boolean first = true;
+        for (Stage stage : stages) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            stage.appendJson(sb, now);
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    private static String rate(long count, long millis) {
+        return String.format(Locale.ROOT, "%.3f",
+                             millis <= 0 ? 0.0 : count * 1000.0 / millis);
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper().toString();
+    }
+
+    protected Objects.ToStringHelper toStringHelper() {
+        return Objects.toStringHelper(this).
+                add("name", name).
+                add("file", file).
+                add("intervalMillis", intervalMillis).
+                add("stages", stages);
+    }
+
+    /**
+     * Progress of one stage of a command. All methods are thread-safe.
+     */
+    public static final class Stage {
+
+        private final String name;
+
+        private final AtomicLong completed = new AtomicLong(0);
+
+        private final AtomicLong total = new AtomicLong(-1);
+
+        private final AtomicLong items = new AtomicLong(0);
+
+        private final AtomicLong bytes = new AtomicLong(0);
+
+        private volatile long startMillis = 0;
+
+        private volatile long endMillis = 0;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Mark the stage as started, if it has not been already. Adding
+         * progress also starts the stage.
+         */
+        public void start() {
+            if (startMillis == 0) {
+                synchronized (this) {
+                    if (startMillis == 0)
+                        startMillis = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * Mark the stage as finished.
+         */
+        public void finish() {
+            start();
+            endMillis = System.currentTimeMillis();
+        }
+
+        public boolean isStarted() {
+            return startMillis != 0;
+        }
+
+        public boolean isFinished() {
+            return endMillis != 0;
+        }
+
+        /**
+         * @param total number of work units in the stage, or a negative
+         *              number if it is not known
+         */
+        public void setTotal(long total) {
+            this.total.set(total);
+        }
+
+        /**
+         * Add to the total number of work units, treating an unknown total as
+         * zero.
+         */
+        public void addTotal(long delta) {
+            long current;
+            do {
+                current = total.get();
+            } while (!total.compareAndSet(current,
+                                          Math.max(0, current) + delta));
+        }
+
+        public long getTotal() {
+            return total.get();
+        }
+
+        public void addCompleted(long delta) {
+            start();
+            completed.addAndGet(delta);
+        }
+
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        public void addItems(long delta) {
+            start();
+            items.addAndGet(delta);
+        }
+
+        public long getItems() {
+            return items.get();
+        }
+
+        public void addBytes(long delta) {
+            start();
+            bytes.addAndGet(delta);
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return fraction of the work units completed, or NaN if the total
+         *         is not known
+         */
+        public double getFraction() {
+            final long t = total.get();
+            if (isFinished())
+                return 1;
+            if (t < 0)
+                return Double.NaN;
+            return t == 0 ? 1 : Math.min(1, (double) completed.get() / t);
+        }
+
+        private long elapsedMillis(long now) {
+            if (startMillis == 0)
+                return 0;
+            return (endMillis != 0 ? endMillis : now) - startMillis;
+        }
+
+        /**
+         * Estimate the milliseconds remaining, from the time taken so far
+         * and the fraction of work units completed.
+         *
+         * @return estimated time remaining, or -1 if it cannot be estimated
+         */
+        public long getEtaMillis(long now) {
+            if (isFinished())
+                return 0;
+            final double fraction = getFraction();
+            if (Double.isNaN(fraction) || fraction <= 0)
+                return -1;
+            return (long) (elapsedMillis(now) * (1 - fraction) / fraction);
+        }
+
+        private void appendJson(StringBuilder sb, long now) {
+            final long elapsed = elapsedMillis(now);
+            final double fraction = getFraction();
+            final long eta = getEtaMillis(now);
+            sb.append("{\"name\":");
+            quote(sb, name);
+            sb.append(",\"state\":\"").append(
+                    isFinished() ? "finished"
+                    : isStarted() ? "running" : "waiting").append('"');
+            sb.append(",\"completed\":").append(completed.get());
+            sb.append(",\"total\":").append(total.get());
+            sb.append(",\"fraction\":").append(Double.isNaN(fraction)
+                    ? "null" : String.format(Locale.ROOT, "%.4f", fraction));
+            sb.append(",\"items\":").append(items.get());
+            sb.append(",\"itemsPerSecond\":").append(rate(items.get(), elapsed));
+            sb.append(",\"bytes\":").append(bytes.get());
+            sb.append(",\"bytesPerSecond\":").append(rate(bytes.get(), elapsed));
+            sb.append(",\"elapsedSeconds\":").append(seconds(elapsed));
+            sb.append(",\"etaSeconds\":").append(eta < 0 ? "null" : seconds(eta));
+            sb.append('}');
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).
+                    add("name", name).
+                    add("completed", completed).
+                    add("total", total).
+                    add("items", items).
+                    add("bytes", bytes).
+                    toString();
+        }
+    }
+}
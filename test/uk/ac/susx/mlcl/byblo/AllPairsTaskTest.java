@@ -31,11 +31,17 @@
 package uk.ac.susx.mlcl.byblo;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.Files;
 import uk.ac.susx.mlcl.lib.test.ExitTrapper;
 import static org.junit.Assert.*;
 
@@ -78,6 +84,143 @@ public class AllPairsTaskTest {
         }
     }
 
+    @Test
+    public void testTopK() throws Exception {
+        final int k = 3;
+        final File sims = new File("testdata/out/bnc-gramrels-fruit.topk-sims");
+        final File knn = new File("testdata/out/bnc-gramrels-fruit.topk-knn");
+        final File topk = new File("testdata/out/bnc-gramrels-fruit.topk");
+        new File("testdata", "out").mkdir();
+        try {
+            ExitTrapper.enableExistTrapping();
+            Main.main(new String[]{"allpairs",
+                        "-i", "testdata/fruit/bnc-gramrels-fruit.entryFeatures",
+                        "-o", sims.toString(),
+                        "-C", "500"});
+            Main.main(new String[]{"knn",
+                        "-i", sims.toString(),
+                        "-o", knn.toString(),
+                        "-k", Integer.toString(k)});
+            Main.main(new String[]{"allpairs",
+                        "-i", "testdata/fruit/bnc-gramrels-fruit.entryFeatures",
+                        "-o", topk.toString(),
+                        "-C", "500",
+                        "--top-k", Integer.toString(k)});
+        } finally {
+            ExitTrapper.disableExitTrapping();
+        }
+
+        // Neighbours with equal weights may be chosen differently, so only
+        // compare the entries and weights
+        final List<String> lines = new ArrayList<String>();
+        Files.readAllLines(knn, Files.DEFAULT_CHARSET, lines);
+        final List<String> expected = new ArrayList<String>();
+        for (String line : lines) {
+            final String[] parts = line.split("\t");
+            expected.add(parts[0] + "\t" + parts[2]);
+        }
+        lines.clear();
+        Files.readAllLines(topk, Files.DEFAULT_CHARSET, lines);
+        final List<String> actual = new ArrayList<String>();
+        for (String line : lines) {
+            final String[] parts = line.split("\t");
+            actual.add(parts[0] + "\t" + parts[2]);
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testShardedOutput() throws Exception {
+        final File sims = new File("testdata/out/bnc-gramrels-fruit.unsharded");
+        final File sharded = new File("testdata/out/bnc-gramrels-fruit.sharded");
+        final File parts = new File("testdata/out/bnc-gramrels-fruit.parts");
+        final int partitions = 3;
+        new File("testdata", "out").mkdir();
+        try {
+            ExitTrapper.enableExistTrapping();
+            Main.main(new String[]{"allpairs",
+                        "-i", "testdata/fruit/bnc-gramrels-fruit.entryFeatures",
+                        "-o", sims.toString(),
+                        "-C", "100"});
+            Main.main(new String[]{"allpairs",
+                        "-i", "testdata/fruit/bnc-gramrels-fruit.entryFeatures",
+                        "-o", sharded.toString(),
+                        "-C", "100",
+                        "-t", "3",
+                        "--sharded-output"});
+            Main.main(new String[]{"allpairs",
+                        "-i", "testdata/fruit/bnc-gramrels-fruit.entryFeatures",
+                        "-o", parts.toString(),
+                        "-C", "100",
+                        "-t", "3",
+                        "--output-partitions", Integer.toString(partitions)});
+        } finally {
+            ExitTrapper.disableExitTrapping();
+        }
+
+        // Sharding only changes the order in which pairs are output
+        final List<String> expected = new ArrayList<String>();
+        Files.readAllLines(sims, Files.DEFAULT_CHARSET, expected);
+        Collections.sort(expected);
+        assertFalse(expected.isEmpty());
+
+        final List<String> actual = new ArrayList<String>();
+        Files.readAllLines(sharded, Files.DEFAULT_CHARSET, actual);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+
+        // Every entry must be in exactly one partition
+        actual.clear();
+        final Map<String, Integer> entryPartition =
+                new HashMap<String, Integer>();
+        for (int p = 0; p < partitions; p++) {
+            final List<String> lines = new ArrayList<String>();
+            Files.readAllLines(new File(parts + "." + p),
+                               Files.DEFAULT_CHARSET, lines);
+            for (String line : lines) {
+                final Integer prev = entryPartition.put(line.split("\t")[0], p);
+                assertTrue(prev == null || prev == p);
+            }
+            actual.addAll(lines);
+        }
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testWorkerProcesses() throws Exception {
+        final File sims = new File("testdata/out/bnc-gramrels-fruit.single");
+        final File merged = new File("testdata/out/bnc-gramrels-fruit.multiprocess");
+        new File("testdata", "out").mkdir();
+        try {
+            ExitTrapper.enableExistTrapping();
+            Main.main(new String[]{"allpairs",
+                        "-i", "testdata/fruit/bnc-gramrels-fruit.entryFeatures",
+                        "-o", sims.toString(),
+                        "-C", "10"});
+            Main.main(new String[]{"allpairs",
+                        "-i", "testdata/fruit/bnc-gramrels-fruit.entryFeatures",
+                        "-o", merged.toString(),
+                        "-C", "10",
+                        "-t", "1",
+                        "--worker-processes", "2"});
+        } finally {
+            ExitTrapper.disableExitTrapping();
+        }
+
+        final List<String> expected = new ArrayList<String>();
+        Files.readAllLines(sims, Files.DEFAULT_CHARSET, expected);
+        Collections.sort(expected);
+        assertFalse(expected.isEmpty());
+
+        final List<String> actual = new ArrayList<String>();
+        Files.readAllLines(merged, Files.DEFAULT_CHARSET, actual);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertFalse(new File(merged.getPath() + ".workers").exists());
+    }
+
     @Test
     public void testExitStatus() throws Exception {
         try {
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Function;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ChunkCacheTest {
+
+    private static final Function<String, Integer> LENGTH =
+            new Function<String, Integer>() {
+
+                @Override
+                public Integer apply(String s) {
+                    return s.length();
+                }
+            };
+
+    private static Chunk<String> chunk(String... items) {
+        return new Chunk<String>(items[0], Arrays.asList(items));
+    }
+
+    @Test(timeout = 1000)
+    public void testEviction() {
+        ApssStats stats = new ApssStats();
+        ChunkCache<String, Integer> cache =
+                new ChunkCache<String, Integer>(10, LENGTH, stats);
+
+        assertNull(cache.get(0));
+        assertTrue(cache.put(0, chunk("aaa", "bb"), 2));
+        assertTrue(cache.put(2, chunk("cccc"), 3));
+        assertEquals(9, cache.getBytes());
+        assertEquals(3, (int) cache.get(2).getEnd());
+
+        // Chunk 0 was used least recently, so is evicted to make room
+        assertTrue(cache.put(3, chunk("ddd"), 4));
+        assertEquals(7, cache.getBytes());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(0));
+        assertNotNull(cache.get(3));
+
+        // Chunks over budget are never cached
+        assertFalse(cache.put(4, chunk("eeeeeeeeeee"), 5));
+        assertEquals(2, cache.size());
+
+        assertEquals(2, stats.getChunkCacheHits());
+        assertEquals(2, stats.getChunkCacheMisses());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test(timeout = 1000)
+    public void testChunker() throws Exception {
+        List<String> items = Arrays.asList("a", "b", "c", "d", "e");
+        Chunk<String> source = new Chunk<String>("source", items);
+        Chunker<String, Integer> chunker =
+                new Chunker<String, Integer>(source, 2);
+        ApssStats stats = new ApssStats();
+        chunker.setCache(new ChunkCache<String, Integer>(100, LENGTH, stats));
+
+        List<Chunk<String>> first = IOUtil.readAll(chunker);
+        chunker.position(0);
+        List<Chunk<String>> second = IOUtil.readAll(chunker);
+        assertEquals(first, second);
+        assertEquals(3, second.size());
+        assertEquals(Arrays.asList("e"), second.get(2));
+        assertEquals(3, stats.getChunkCacheHits());
+        assertEquals(3, stats.getChunkCacheMisses());
+
+        // Chunks are clones, so renaming one leaves the cached chunk alone
+        second.get(0).setName("renamed");
+        chunker.position(0);
+        assertFalse("renamed".equals(chunker.read().getName()));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ChunkPairJournalTest {
+
+    private static final String FINGERPRINT = "chunkSize=10";
+
+    private static File newDirectory(String name) {
+        TEST_OUTPUT_DIR.mkdir();
+        return new File(TEST_OUTPUT_DIR, name);
+    }
+
+    private static void writePairs(ChunkPairJournal.Shard shard, int id,
+                                   int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            shard.write(new Weighted<TokenPair>(new TokenPair(id, i), i));
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testCommitAndResume() throws Exception {
+        final File dir = newDirectory("journal-commit");
+        ChunkPairJournal journal = ChunkPairJournal.open(dir, FINGERPRINT,
+                                                         false);
+        ChunkPairJournal.Shard shard = journal.begin("1-1");
+        writePairs(shard, 1, 5);
+        shard.commit();
+
+        shard = journal.begin("1-2");
+        writePairs(shard, 2, 3);
+        shard.commit();
+
+        // Never committed, so must not be counted
+        shard = journal.begin("2-2");
+        writePairs(shard, 3, 4);
+        journal.close();
+
+        journal = ChunkPairJournal.open(dir, FINGERPRINT, true);
+        assertTrue(journal.isCompleted("1-1"));
+        assertTrue(journal.isCompleted("1-2"));
+        assertFalse(journal.isCompleted("2-2"));
+        assertEquals(2, journal.getCompletedCount());
+        assertEquals(8, journal.getRecordCount());
+
+        final List<Weighted<TokenPair>> pairs =
+                new ArrayList<Weighted<TokenPair>>();
+        assertEquals(8, journal.copyTo(IOUtil.asSink(pairs)));
+        assertEquals(new Weighted<TokenPair>(new TokenPair(1, 0), 0),
+                     pairs.get(0));
+        assertEquals(new Weighted<TokenPair>(new TokenPair(2, 2), 2),
+                     pairs.get(7));
+
+        journal.delete();
+        assertFalse(dir.exists());
+    }
+
+    @Test(timeout = 1000)
+    public void testAbort() throws Exception {
+        final File dir = newDirectory("journal-abort");
+        ChunkPairJournal journal = ChunkPairJournal.open(dir, FINGERPRINT,
+                                                         false);
+        ChunkPairJournal.Shard shard = journal.begin("1-1");
+        writePairs(shard, 1, 5);
+        shard.abort();
+        assertFalse(journal.isCompleted("1-1"));
+        journal.delete();
+        assertFalse(dir.exists());
+    }
+
+    @Test(timeout = 1000)
+    public void testTruncatedShard() throws Exception {
+        final File dir = newDirectory("journal-truncated");
+        ChunkPairJournal journal = ChunkPairJournal.open(dir, FINGERPRINT,
+                                                         false);
+        ChunkPairJournal.Shard shard = journal.begin("1-1");
+        writePairs(shard, 1, 5);
+        shard.commit();
+        journal.close();
+
+        final RandomAccessFile file = new RandomAccessFile(
+                new File(dir, "pair-1-1.bin"), "rw");
+        try {
+            file.setLength(4 * ChunkPairJournal.RECORD_BYTES);
+        } finally {
+            file.close();
+        }
+
+        journal = ChunkPairJournal.open(dir, FINGERPRINT, true);
+        assertFalse(journal.isCompleted("1-1"));
+        journal.delete();
+    }
+
+    @Test(timeout = 1000)
+    public void testWithoutResume() throws Exception {
+        final File dir = newDirectory("journal-restart");
+        ChunkPairJournal journal = ChunkPairJournal.open(dir, FINGERPRINT,
+                                                         false);
+        ChunkPairJournal.Shard shard = journal.begin("1-1");
+        writePairs(shard, 1, 5);
+        shard.commit();
+        journal.close();
+
+        journal = ChunkPairJournal.open(dir, FINGERPRINT, false);
+        assertEquals(0, journal.getCompletedCount());
+        assertFalse(new File(dir, "pair-1-1.bin").exists());
+        journal.delete();
+    }
+
+    @Test(timeout = 1000, expected = IllegalStateException.class)
+    public void testFingerprintMismatch() throws Exception {
+        final File dir = newDirectory("journal-mismatch");
+        ChunkPairJournal.open(dir, FINGERPRINT, false).close();
+        try {
+            ChunkPairJournal.open(dir, "chunkSize=20", true);
+        } finally {
+            ChunkPairJournal.open(dir, FINGERPRINT, false).delete();
+        }
+    }
+}
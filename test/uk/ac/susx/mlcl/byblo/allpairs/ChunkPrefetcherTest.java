@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ChunkPrefetcherTest {
+
+    private static final List<String> ITEMS =
+            Arrays.asList("a", "b", "c", "d", "e");
+
+    private static void assertReads(int depth) throws Exception {
+        Chunker<String, Integer> chunker = new Chunker<String, Integer>(
+                new Chunk<String>("source", ITEMS), 2);
+        ChunkPrefetcher<String, Integer> prefetcher =
+                new ChunkPrefetcher<String, Integer>(depth, new ApssStats());
+        // Revisiting positions out of order, as the scheduler does
+        int[] starts = {0, 4, 2, 0, 2};
+        for (int i = 0; i < starts.length; i++) {
+            prefetcher.add(chunker, starts[i], "chunk" + i);
+        }
+        assertEquals(starts.length, prefetcher.size());
+        prefetcher.start();
+        try {
+            for (int i = 0; i < starts.length; i++) {
+                Chunk<String> chunk = prefetcher.next();
+                assertEquals("chunk" + i, chunk.getName());
+                assertEquals(ITEMS.subList(
+                        starts[i], Math.min(starts[i] + 2, ITEMS.size())),
+                             chunk);
+            }
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testSynchronous() throws Exception {
+        assertReads(0);
+    }
+
+    @Test(timeout = 1000)
+    public void testPrefetch() throws Exception {
+        assertReads(1);
+        assertReads(10);
+    }
+
+    @Test(timeout = 1000)
+    public void testCloseEarly() throws Exception {
+        Chunker<String, Integer> chunker = new Chunker<String, Integer>(
+                new Chunk<String>("source", ITEMS), 1);
+        ApssStats stats = new ApssStats();
+        ChunkPrefetcher<String, Integer> prefetcher =
+                new ChunkPrefetcher<String, Integer>(1, stats);
+        for (int i = 0; i < ITEMS.size(); i++) {
+            prefetcher.add(chunker, i, "chunk" + i);
+        }
+        prefetcher.start();
+        assertEquals(Arrays.asList("a"), prefetcher.next());
+
+        // The producer is left blocked on the full queue, until closed
+        prefetcher.close();
+        assertTrue(stats.getPrefetchProducerStallNanos() >= 0);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Function;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ChunkerTest {
+
+    private static final Function<String, Integer> LENGTH =
+            new Function<String, Integer>() {
+
+                @Override
+                public Integer apply(String s) {
+                    return s.length();
+                }
+            };
+
+    private static <T> List<Chunk<T>> readAll(Chunker<T, ?> chunker)
+            throws IOException {
+        List<Chunk<T>> chunks = new ArrayList<Chunk<T>>();
+        while (chunker.hasNext())
+            chunks.add(chunker.read());
+        return chunks;
+    }
+
+    @Test(timeout = 1000)
+    public void testHeavyAfterLight() throws Exception {
+        List<String> items = Arrays.asList(
+                "a", "bbbbbbbbbbbb", "cc", "ddd", "eeee", "f");
+        Chunker<String, Integer> chunker = new Chunker<String, Integer>(
+                new Chunk<String>("source", items), 100, LENGTH, 5);
+
+        List<Chunk<String>> chunks = readAll(chunker);
+
+        // The heavy item is not appended to the light one before it, but
+        // has a chunk to itself; no other chunk exceeds the budget
+        assertEquals(Arrays.asList("a"), chunks.get(0));
+        assertEquals(Arrays.asList("bbbbbbbbbbbb"), chunks.get(1));
+        assertEquals(Arrays.asList("cc", "ddd"), chunks.get(2));
+        assertEquals(Arrays.asList("eeee", "f"), chunks.get(3));
+        assertEquals(4, chunks.size());
+    }
+
+    @Test(timeout = 1000)
+    public void testMaxChunkSize() throws Exception {
+        List<String> items = Arrays.asList("a", "b", "c", "d", "e");
+        Chunker<String, Integer> chunker = new Chunker<String, Integer>(
+                new Chunk<String>("source", items), 2);
+
+        List<Chunk<String>> chunks = readAll(chunker);
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList("e"), chunks.get(2));
+    }
+}
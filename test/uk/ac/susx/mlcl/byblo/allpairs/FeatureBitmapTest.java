@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class FeatureBitmapTest {
+
+    @Test(timeout = 1000)
+    public void testIntersects() {
+        FeatureBitmap a = new FeatureBitmap(128);
+        FeatureBitmap b = new FeatureBitmap(128);
+        assertFalse(a.intersects(b));
+
+        a.add(3);
+        a.add(70);
+        b.add(4);
+        b.add(127);
+        assertFalse(a.intersects(b));
+        assertEquals(2, a.cardinality());
+        assertTrue(a.mayContain(70));
+        assertFalse(a.mayContain(71));
+
+        // Ids beyond the size of the bitmap share bits with smaller ids
+        b.add(128 + 70);
+        assertTrue(a.intersects(b));
+        assertTrue(b.intersects(a));
+    }
+
+    @Test(timeout = 1000, expected = IllegalArgumentException.class)
+    public void testBitsNotPowerOfTwo() {
+        new FeatureBitmap(100);
+    }
+
+    @Test(timeout = 1000, expected = IllegalArgumentException.class)
+    public void testSizesDiffer() {
+        new FeatureBitmap(64).intersects(new FeatureBitmap(128));
+    }
+}
@@ -37,9 +37,21 @@ import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
 import com.google.common.base.Predicate;
 import uk.ac.susx.mlcl.byblo.measure.Proximity;
 import uk.ac.susx.mlcl.lib.io.IOUtil;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.byblo.measure.Jaccard;
+import uk.ac.susx.mlcl.byblo.measure.Cosine;
+import uk.ac.susx.mlcl.byblo.measure.DecomposableProximity;
+import uk.ac.susx.mlcl.byblo.measure.Dice;
+import uk.ac.susx.mlcl.byblo.measure.Jensen;
+import uk.ac.susx.mlcl.byblo.measure.Overlap;
+import uk.ac.susx.mlcl.byblo.measure.Tanimoto;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -86,4 +98,224 @@ public class InvertedApssTaskTest {
 
         assertTrue(!result.isEmpty());
     }
+
+    @Test(timeout = 5000)
+    public void testPrefixFilter() throws Exception {
+        for (Proximity measure : new Proximity[]{new Jaccard(), new Dice(),
+                    new Overlap(), new Cosine(), new Tanimoto()}) {
+            for (double minSim : new double[]{0.05, 0.2, 0.5}) {
+                System.out.println("Testing prefix filter with " + measure
+                        + " and minimum similarity " + minSim);
+                List<Weighted<TokenPair>> expected =
+                        runInverted(measure, minSim, false);
+                List<Weighted<TokenPair>> actual =
+                        runInverted(measure, minSim, true);
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testScoreAccumulation() throws Exception {
+        for (final Proximity measure : new Proximity[]{new Jaccard(),
+                    new Dice(), new Overlap(), new Cosine(), new Tanimoto(),
+                    new Jensen()}) {
+            System.out.println("Testing score accumulation with " + measure);
+
+            // Delegate to the measure without exposing its shared terms, so
+            // the candidates are compared in full
+            Proximity opaque = new Proximity() {
+
+                @Override
+                public double shared(SparseDoubleVector A, SparseDoubleVector B) {
+                    return measure.shared(A, B);
+                }
+
+                @Override
+                public SparseDoubleVector prepare(SparseDoubleVector V) {
+                    return measure.prepare(V);
+                }
+
+                @Override
+                public double left(SparseDoubleVector A) {
+                    return measure.left(A);
+                }
+
+                @Override
+                public double right(SparseDoubleVector B) {
+                    return measure.right(B);
+                }
+
+                @Override
+                public double combine(double shared, double left, double right) {
+                    return measure.combine(shared, left, right);
+                }
+
+                @Override
+                public boolean isSymmetric() {
+                    return measure.isSymmetric();
+                }
+
+                @Override
+                public void setFilteredFeatureId(int key) {
+                    measure.setFilteredFeatureId(key);
+                }
+            };
+
+            List<Weighted<TokenPair>> expected =
+                    runInverted(opaque, Double.NEGATIVE_INFINITY, false);
+            List<Weighted<TokenPair>> actual =
+                    runInverted(measure, Double.NEGATIVE_INFINITY, false);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testStopFeatures() throws Exception {
+        for (Proximity measure : new Proximity[]{new Jaccard(), new Cosine()}) {
+            for (boolean prefixFilter : new boolean[]{false, true}) {
+                System.out.println("Testing stop features with " + measure
+                        + " and prefix filter " + prefixFilter);
+                final List<Weighted<TokenPair>> expected =
+                        runInverted(measure, 0.1, prefixFilter);
+
+                final InvertedApssTask<Lexer.Tell> instance =
+                        new InvertedApssTask<Lexer.Tell>();
+                instance.setMaxPostingLength(5);
+                final List<Weighted<TokenPair>> actual =
+                        runInverted(instance, measure, 0.1, prefixFilter);
+
+                // Stop features are still scored, so every pair found is
+                // exact, and each pair missed had a posting skipped
+                assertTrue(expected.containsAll(actual));
+                final ApssStats stats = instance.getStats();
+                assertTrue(stats.getStopFeatureSkips() > 0);
+                assertTrue(expected.size() - actual.size()
+                        <= stats.getSkippedPostingsCount());
+                assertTrue(actual.size() < expected.size());
+            }
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testStopFeatureSet() throws Exception {
+        final List<Weighted<TokenPair>> expected =
+                runInverted(new Jaccard(), Double.NEGATIVE_INFINITY, false);
+
+        // Features that do not occur change nothing
+        InvertedApssTask<Lexer.Tell> instance =
+                new InvertedApssTask<Lexer.Tell>();
+        instance.setStopFeatures(IntSets.singleton(Integer.MAX_VALUE));
+        assertEquals(expected, runInverted(
+                instance, new Jaccard(), Double.NEGATIVE_INFINITY, false));
+        assertEquals(0, instance.getStats().getStopFeatureSkips());
+
+        // When every feature is a stop feature there are no candidates
+        final IntSet all = new IntOpenHashSet();
+        for (int k = 0; k < 100000; k++) {
+            all.add(k);
+        }
+        instance = new InvertedApssTask<Lexer.Tell>();
+        instance.setStopFeatures(all);
+        assertTrue(runInverted(instance, new Jaccard(),
+                               Double.NEGATIVE_INFINITY, false).isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testSharedA() throws Exception {
+        System.out.println("Testing shared A chunk state");
+
+        WeightedTokenPairSource source = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET);
+        List<Indexed<SparseDoubleVector>> vectors =
+                IOUtil.readAll(source.getVectorSource());
+        Chunk<Indexed<SparseDoubleVector>> chunkA =
+                new Chunk<Indexed<SparseDoubleVector>>("A", vectors);
+
+        for (double minSim : new double[]{Double.NEGATIVE_INFINITY, 0.2}) {
+            List<Weighted<TokenPair>> expected =
+                    new ArrayList<Weighted<TokenPair>>();
+            List<Weighted<TokenPair>> actual =
+                    new ArrayList<Weighted<TokenPair>>();
+            SharedChunk shared = new SharedChunk("A");
+            final int parts = 3;
+            for (int i = 0; i < parts; i++) {
+                Chunk<Indexed<SparseDoubleVector>> chunkB =
+                        new Chunk<Indexed<SparseDoubleVector>>(
+                        "B" + i, vectors.subList(
+                        i * vectors.size() / parts,
+                        (i + 1) * vectors.size() / parts));
+                runChunks(chunkA, chunkB, null, minSim, expected);
+                runChunks(chunkA, chunkB, shared, minSim, actual);
+                assertTrue(shared.isBuilt());
+                assertEquals(i, shared.getAdoptCount());
+            }
+            assertTrue(!expected.isEmpty());
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static void runChunks(Chunk<Indexed<SparseDoubleVector>> chunkA,
+                                  Chunk<Indexed<SparseDoubleVector>> chunkB,
+                                  SharedChunk shared, double minSim,
+                                  List<Weighted<TokenPair>> result)
+            throws Exception {
+        InvertedApssTask<Integer> instance = new InvertedApssTask<Integer>();
+        instance.setSourceA(chunkA.clone());
+        instance.setSourceB(chunkB.clone());
+        instance.setSink(IOUtil.asSink(result));
+        instance.setMeasure(new Jaccard());
+        instance.setProducatePair(Weighted.<TokenPair>greaterThanOrEqualTo(minSim));
+        instance.setMinSimilarity(minSim);
+        instance.setSharedA(shared);
+        instance.run();
+        while (instance.isExceptionThrown()) {
+            instance.throwException();
+        }
+    }
+
+    private static List<Weighted<TokenPair>> runInverted(
+            Proximity measure, double minSim, boolean prefixFilter)
+            throws Exception {
+        return runInverted(new InvertedApssTask<Lexer.Tell>(), measure,
+                           minSim, prefixFilter);
+    }
+
+    private static List<Weighted<TokenPair>> runInverted(
+            InvertedApssTask<Lexer.Tell> instance,
+            Proximity measure, double minSim, boolean prefixFilter)
+            throws Exception {
+
+        WeightedTokenPairSource mdbsa = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET);
+        WeightedTokenPairSource mdbsb = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET,
+                mdbsa.getStringIndex1(), mdbsa.getStringIndex2());
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+
+        instance.setSourceA(mdbsa.getVectorSource());
+        instance.setSourceB(mdbsb.getVectorSource());
+        instance.setSink(IOUtil.asSink(result));
+        instance.setMeasure(measure);
+        instance.setProducatePair(Weighted.<TokenPair>greaterThanOrEqualTo(minSim));
+        if (prefixFilter) {
+            instance.setMinSimilarity(minSim);
+        }
+
+        instance.run();
+        while (instance.isExceptionThrown()) {
+            instance.throwException();
+        }
+        assertEquals(prefixFilter, instance.isPrefixFilterEnabled());
+        assertEquals(!prefixFilter && !instance.isStopPolicyEnabled()
+                && measure instanceof DecomposableProximity,
+                     instance.isScoreAccumulationEnabled());
+
+        Collections.sort(result);
+        return result;
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class InvertedIndexTest {
+
+    private static Indexed<SparseDoubleVector> vector(int id, int[] keys,
+                                                      double[] values) {
+        return new Indexed<SparseDoubleVector>(id, new SparseDoubleVector(
+                keys, values, 10, keys.length));
+    }
+
+    private static List<Indexed<SparseDoubleVector>> entries() {
+        List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        entries.add(vector(7, new int[]{1, 3, 4}, new double[]{1, 2, 3}));
+        entries.add(vector(8, new int[]{0, 3}, new double[]{4, 5}));
+        entries.add(vector(9, new int[]{3, 4, 6}, new double[]{6, 7, 8}));
+        return entries;
+    }
+
+    @Test(timeout = 1000)
+    public void testBuild() {
+        InvertedIndex index = InvertedIndex.build(
+                entries(), new int[]{3, 2, 3}, true);
+
+        assertEquals(3, index.entryCount());
+        assertEquals(8, index.postingCount());
+        assertEquals(5, index.featureCount());
+        assertTrue(index.hasWeights());
+
+        int k = 3;
+        assertEquals(3, index.end(k) - index.start(k));
+        int[] expectedSlots = {0, 1, 2};
+        int[] expectedPositions = {1, 1, 0};
+        float[] expectedWeights = {2, 5, 6};
+        for (int i = 0; i < 3; i++) {
+            int p = index.start(k) + i;
+            assertEquals(expectedSlots[i], index.slot(p));
+            assertEquals(expectedPositions[i], index.position(p));
+            assertEquals(expectedWeights[i], index.weight(p), 0);
+        }
+        assertEquals(9, index.entry(index.slot(index.start(6))).key());
+
+        // Features absent from the index have no postings
+        assertEquals(index.start(2), index.end(2));
+        assertEquals(index.start(5), index.end(5));
+        assertEquals(index.start(100), index.end(100));
+        assertEquals(index.start(-1), index.end(-1));
+    }
+
+    @Test(timeout = 1000)
+    public void testBuildPrefix() {
+        InvertedIndex index = InvertedIndex.build(
+                entries(), new int[]{1, 0, 2}, false);
+
+        assertEquals(3, index.postingCount());
+        assertFalse(index.hasWeights());
+        assertEquals(1, index.end(1) - index.start(1));
+        assertEquals(0, index.end(0) - index.start(0));
+        assertEquals(1, index.end(3) - index.start(3));
+        assertEquals(2, index.slot(index.start(3)));
+        assertEquals(1, index.end(4) - index.start(4));
+        assertEquals(index.start(6), index.end(6));
+    }
+
+    @Test(timeout = 1000)
+    public void testSparseFeatureIds() {
+        List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        entries.add(new Indexed<SparseDoubleVector>(1, new SparseDoubleVector(
+                new int[]{5, 50000000}, new double[]{1, 2},
+                Integer.MAX_VALUE, 2)));
+        entries.add(new Indexed<SparseDoubleVector>(2, new SparseDoubleVector(
+                new int[]{50000000, Integer.MAX_VALUE - 1}, new double[]{3, 4},
+                Integer.MAX_VALUE, 2)));
+        InvertedIndex index = InvertedIndex.build(
+                entries, new int[]{2, 2}, true);
+
+        // Only the distinct features are given postings ranges
+        assertEquals(3, index.featureCount());
+        assertEquals(2, index.end(50000000) - index.start(50000000));
+        assertEquals(4, index.weight(index.start(Integer.MAX_VALUE - 1)), 0);
+        assertEquals(index.start(6), index.end(6));
+    }
+
+    @Test(timeout = 1000)
+    public void testBuildEmpty() {
+        InvertedIndex index = InvertedIndex.build(
+                new ArrayList<Indexed<SparseDoubleVector>>(), new int[0], false);
+        assertEquals(0, index.entryCount());
+        assertEquals(0, index.postingCount());
+        assertEquals(index.start(0), index.end(0));
+    }
+
+    @Test(timeout = 1000)
+    public void testSizeOrdered() {
+        assertFalse(InvertedIndex.build(
+                entries(), new int[]{3, 2, 3}, false).isSizeOrdered());
+
+        List<Indexed<SparseDoubleVector>> entries =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        entries.add(vector(1, new int[]{3}, new double[]{1}));
+        entries.add(vector(2, new int[]{0, 3}, new double[]{1, 1}));
+        entries.add(vector(3, new int[]{1, 3}, new double[]{1, 1}));
+        entries.add(vector(4, new int[]{1, 2, 3, 4}, new double[]{1, 1, 1, 1}));
+        InvertedIndex index = InvertedIndex.build(
+                entries, new int[]{1, 2, 2, 4}, false);
+        assertTrue(index.isSizeOrdered());
+        assertEquals(2, index.size(1));
+
+        int k = 3;
+        assertEquals(index.start(k), index.startAtSize(k, 0));
+        assertEquals(index.start(k), index.startAtSize(k, 1));
+        assertEquals(index.start(k) + 1, index.startAtSize(k, 2));
+        assertEquals(index.start(k) + 3, index.startAtSize(k, 3));
+        assertEquals(index.end(k), index.startAtSize(k, 5));
+        assertEquals(index.end(0), index.startAtSize(0, 3));
+        assertEquals(index.start(5), index.startAtSize(5, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuildBadLength() {
+        InvertedIndex.build(entries(), new int[]{3, 3, 3}, false);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class KnnSinkTest {
+
+    private static final AbstractIntComparator ASCENDING =
+            new AbstractIntComparator() {
+
+                @Override
+                public int compare(int a, int b) {
+                    return a < b ? -1 : a > b ? 1 : 0;
+                }
+            };
+
+    @Test(timeout = 1000)
+    public void testRandomPairs() throws Exception {
+        final int k = 5;
+        final Random rand = new Random(1);
+        final List<Weighted<TokenPair>> pairs =
+                new ArrayList<Weighted<TokenPair>>();
+        for (int i = 0; i < 20; i++) {
+            // Vary the number of neighbours either side of k
+            final int n = rand.nextInt(3 * k);
+            for (int j = 0; j < n; j++) {
+                pairs.add(new Weighted<TokenPair>(new TokenPair(i, j),
+                                                  rand.nextInt(10) / 10.0));
+            }
+        }
+
+        final KnnSink sink = new KnnSink(k);
+        Collections.shuffle(pairs, rand);
+        IOUtil.copy(pairs, sink);
+        assertEquals(pairs.size(), sink.getWriteCount());
+
+        final List<Weighted<TokenPair>> actual =
+                new ArrayList<Weighted<TokenPair>>();
+        sink.copyTo(IOUtil.asSink(actual), ASCENDING);
+
+        // Expected: sort by entry, weight descending, neighbour id ascending
+        // then truncate to k per entry.
+        Collections.sort(pairs, new Comparator<Weighted<TokenPair>>() {
+
+            @Override
+            public int compare(Weighted<TokenPair> a, Weighted<TokenPair> b) {
+                if (a.record().id1() != b.record().id1())
+                    return a.record().id1() - b.record().id1();
+                if (a.weight() != b.weight())
+                    return -Double.compare(a.weight(), b.weight());
+                return a.record().id2() - b.record().id2();
+            }
+        });
+        final List<Weighted<TokenPair>> expected =
+                new ArrayList<Weighted<TokenPair>>();
+        int count = 0;
+        for (int i = 0; i < pairs.size(); i++) {
+            if (i == 0 || pairs.get(i).record().id1()
+                    != pairs.get(i - 1).record().id1())
+                count = 0;
+            if (++count <= k)
+                expected.add(pairs.get(i));
+        }
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).record(), actual.get(i).record());
+            assertEquals(expected.get(i).weight(), actual.get(i).weight(), 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadK() {
+        new KnnSink(0);
+    }
+}
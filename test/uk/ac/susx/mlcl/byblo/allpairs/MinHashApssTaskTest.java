@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Predicate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.measure.Jaccard;
+import uk.ac.susx.mlcl.byblo.measure.Proximity;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+import uk.ac.susx.mlcl.lib.io.Lexer;
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MinHashApssTaskTest {
+
+    private static final Proximity MEASURE = new Jaccard();
+
+    private static final Predicate<Weighted<TokenPair>> PAIR_FILTER =
+            Weighted.greaterThanOrEqualTo(0.1);
+
+    @Test
+    public void testCandidateProbability() {
+        assertEquals(0, MinHashApssTask.candidateProbability(0, 20, 5), 0);
+        assertEquals(1, MinHashApssTask.candidateProbability(1, 20, 5), 0);
+        // More bands increase the probability, more rows decrease it
+        assertTrue(MinHashApssTask.candidateProbability(0.5, 40, 5)
+                > MinHashApssTask.candidateProbability(0.5, 20, 5));
+        assertTrue(MinHashApssTask.candidateProbability(0.5, 20, 10)
+                < MinHashApssTask.candidateProbability(0.5, 20, 5));
+    }
+
+    @Test(timeout = 5000)
+    public void testRecall() throws Exception {
+        final List<Weighted<TokenPair>> expected =
+                run(new NaiveApssTask<Lexer.Tell>());
+
+        final MinHashApssTask<Lexer.Tell> minHash =
+                new MinHashApssTask<Lexer.Tell>();
+        minHash.setBands(30);
+        minHash.setRows(2);
+        final List<Weighted<TokenPair>> actual = run(minHash);
+
+        // Candidates are scored exactly, so every pair found is correct
+        final Set<Weighted<TokenPair>> exact =
+                new HashSet<Weighted<TokenPair>>(expected);
+        for (Weighted<TokenPair> pair : actual) {
+            assertTrue(exact.contains(pair));
+        }
+
+        // Pairs of high similarity are almost certain to be found
+        final Set<Weighted<TokenPair>> found =
+                new HashSet<Weighted<TokenPair>>(actual);
+        int similar = 0;
+        int missed = 0;
+        for (Weighted<TokenPair> pair : expected) {
+            if (pair.weight() >= 0.4) {
+                ++similar;
+                if (!found.contains(pair))
+                    ++missed;
+            }
+        }
+        assertTrue(similar > 0);
+        assertTrue("missed " + missed + " of " + similar,
+                   missed <= similar / 20);
+    }
+
+    @Test(timeout = 5000)
+    public void testDeterministic() throws Exception {
+        final MinHashApssTask<Lexer.Tell> a = new MinHashApssTask<Lexer.Tell>();
+        a.setBands(4);
+        a.setRows(3);
+        final MinHashApssTask<Lexer.Tell> b = new MinHashApssTask<Lexer.Tell>();
+        b.setBands(4);
+        b.setRows(3);
+        assertEquals(run(a), run(b));
+    }
+
+    private static List<Weighted<TokenPair>> run(NaiveApssTask<Lexer.Tell> task)
+            throws Exception {
+        final WeightedTokenPairSource mdbsa = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET);
+        final WeightedTokenPairSource mdbsb = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET,
+                mdbsa.getStringIndex1(), mdbsa.getStringIndex2());
+
+        final List<Weighted<TokenPair>> result =
+                new ArrayList<Weighted<TokenPair>>();
+        task.setSourceA(mdbsa.getVectorSource());
+        task.setSourceB(mdbsb.getVectorSource());
+        task.setSink(IOUtil.asSink(result));
+        task.setMeasure(MEASURE);
+        task.setProducatePair(PAIR_FILTER);
+        task.run();
+        while (task.isExceptionThrown()) {
+            task.throwException();
+        }
+        return result;
+    }
+}
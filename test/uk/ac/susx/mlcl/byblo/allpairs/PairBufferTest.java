@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.susx.mlcl.byblo.io.PairSink;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PairBufferTest {
+
+    @Test(timeout = 1000)
+    public void testAddAndWrite() throws Exception {
+        PairBuffer buffer = new PairBuffer(1);
+        assertTrue(buffer.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            buffer.add(i, i + 1, i / 2.0);
+        }
+        assertEquals(100, buffer.size());
+        assertEquals(7, buffer.id1(7));
+        assertEquals(8, buffer.id2(7));
+        assertEquals(3.5, buffer.weight(7), 0);
+
+        // Object sinks are written boxed pairs, in order
+        List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        assertEquals(100, buffer.writeTo(IOUtil.asSink(pairs)));
+        assertEquals(100, pairs.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(new Weighted<TokenPair>(
+                    new TokenPair(i, i + 1), i / 2.0), pairs.get(i));
+        }
+
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.writeTo(IOUtil.asSink(pairs)));
+        assertEquals(100, pairs.size());
+    }
+
+    @Test(timeout = 1000)
+    public void testWritePrimitive() throws Exception {
+        PairBuffer buffer = new PairBuffer();
+        buffer.add(1, 2, 0.5);
+        buffer.add(3, 4, 0.25);
+
+        final List<String> written = new ArrayList<String>();
+        buffer.writeTo(new PairSink() {
+
+            @Override
+            public void write(int id1, int id2, double weight) {
+                written.add(id1 + " " + id2 + " " + weight);
+            }
+
+            @Override
+            public void write(Weighted<TokenPair> record) {
+                fail("pair should not have been boxed");
+            }
+        });
+        assertEquals(Arrays.asList("1 2 0.5", "3 4 0.25"), written);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBadIndex() {
+        PairBuffer buffer = new PairBuffer();
+        buffer.add(1, 2, 0.5);
+        buffer.id1(1);
+    }
+}
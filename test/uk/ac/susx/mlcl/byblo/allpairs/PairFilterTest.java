@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Predicate;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PairFilterTest {
+
+    @Test(timeout = 1000)
+    public void testFilters() {
+        assertTrue(PairFilter.alwaysTrue().accept(1, 1, Double.NaN));
+        assertTrue(PairFilter.notIdentity().accept(1, 2, 0));
+        assertFalse(PairFilter.notIdentity().accept(2, 2, 0));
+        assertTrue(PairFilter.greaterThanOrEqualTo(0.5).accept(1, 2, 0.5));
+        assertFalse(PairFilter.greaterThanOrEqualTo(0.5).accept(1, 2, 0.4));
+        assertTrue(PairFilter.lessThanOrEqualTo(0.5).accept(1, 2, 0.5));
+        assertFalse(PairFilter.lessThanOrEqualTo(0.5).accept(1, 2, 0.6));
+
+        PairFilter filter = PairFilter.and(Arrays.asList(
+                PairFilter.greaterThanOrEqualTo(0.1),
+                PairFilter.notIdentity()));
+        assertTrue(filter.accept(1, 2, 0.1));
+        assertFalse(filter.accept(1, 2, 0.05));
+        assertFalse(filter.accept(2, 2, 0.5));
+
+        // Applying to a pair object is equivalent
+        assertTrue(filter.apply(new Weighted<TokenPair>(
+                new TokenPair(1, 2), 0.1)));
+        assertFalse(filter.apply(new Weighted<TokenPair>(
+                new TokenPair(2, 2), 0.5)));
+    }
+
+    @Test(timeout = 1000)
+    public void testOf() {
+        PairFilter filter = PairFilter.notIdentity();
+        assertSame(filter, PairFilter.of(filter));
+
+        PairFilter adapted = PairFilter.of(Weighted.<TokenPair>greaterThan(
+                0.5));
+        assertTrue(adapted.accept(1, 2, 0.6));
+        assertFalse(adapted.accept(1, 2, 0.5));
+
+        PairFilter any = PairFilter.of(new Predicate<Object>() {
+
+            @Override
+            public boolean apply(Object input) {
+                return false;
+            }
+        });
+        assertFalse(any.accept(1, 2, 0));
+    }
+}
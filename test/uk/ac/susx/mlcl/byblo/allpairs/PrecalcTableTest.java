@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.measure.Cosine;
+import uk.ac.susx.mlcl.byblo.measure.Proximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PrecalcTableTest {
+
+    @Test(timeout = 1000)
+    public void testPutGet() {
+        PrecalcTable table = new PrecalcTable(2);
+        table.put(0, 1.5);
+        table.put(100, -2);
+        table.put(100, 3);
+        assertEquals(2, table.size());
+        assertEquals(1.5, table.get(0), 0);
+        assertEquals(3, table.get(100), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetUnfilled() {
+        PrecalcTable table = new PrecalcTable(2);
+        table.put(0, 1.5);
+        table.put(100, -2);
+        table.get(50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetOutOfRange() {
+        PrecalcTable table = new PrecalcTable(2);
+        table.put(0, 1.5);
+        table.get(1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetNegativeId() {
+        new PrecalcTable().get(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeId() {
+        new PrecalcTable().put(-1, 0);
+    }
+
+    @Test(timeout = 5000)
+    public void testLeftRight() throws Exception {
+        WeightedTokenPairSource source = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET);
+        Chunk<Indexed<SparseDoubleVector>> chunk =
+                new Chunk<Indexed<SparseDoubleVector>>("all",
+                IOUtil.readAll(source.getVectorSource()));
+        List<Indexed<SparseDoubleVector>> vectors = chunk;
+        Proximity measure = new Cosine();
+
+        PrecalcTable left = PrecalcTable.left(chunk, measure);
+        PrecalcTable right = PrecalcTable.right(chunk, measure);
+        assertEquals(0, (int) chunk.position());
+        assertEquals(vectors.size(), left.size());
+        assertEquals(vectors.size(), right.size());
+        for (Indexed<SparseDoubleVector> v : vectors) {
+            assertEquals(measure.left(v.value()), left.get(v.key()), 0);
+            assertEquals(measure.right(v.value()), right.get(v.key()), 0);
+        }
+    }
+}
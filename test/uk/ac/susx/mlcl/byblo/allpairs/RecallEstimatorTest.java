@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.measure.Cosine;
+import uk.ac.susx.mlcl.byblo.measure.Proximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+import uk.ac.susx.mlcl.lib.io.Lexer;
+import uk.ac.susx.mlcl.lib.io.SeekableSource;
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class RecallEstimatorTest {
+
+    @Test(timeout = 5000)
+    public void testSample() throws Exception {
+        final SeekableSource<Indexed<SparseDoubleVector>, Lexer.Tell> source =
+                new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET).getVectorSource();
+        final List<Indexed<SparseDoubleVector>> sample =
+                RecallEstimator.sample(source, 10, 1);
+        assertEquals(10, sample.size());
+
+        // The sample is in source order, and the source is left unread
+        for (int i = 1; i < sample.size(); i++) {
+            assertTrue(sample.get(i - 1).key() < sample.get(i).key());
+        }
+        assertTrue(source.hasNext());
+
+        final List<Indexed<SparseDoubleVector>> all = RecallEstimator.sample(
+                source, Integer.MAX_VALUE / 2, 1);
+        assertTrue(all.size() > sample.size());
+        assertEquals(all, RecallEstimator.sample(source, all.size(), 2));
+    }
+
+    @Test(timeout = 5000)
+    public void testRecall() throws Exception {
+        final WeightedTokenPairSource mdbs = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET);
+        final SeekableSource<Indexed<SparseDoubleVector>, Lexer.Tell> source =
+                mdbs.getVectorSource();
+        final List<Indexed<SparseDoubleVector>> sample =
+                RecallEstimator.sample(source, 10, 1);
+
+        // Run an exact search, dropping every other pair
+        final List<Weighted<TokenPair>> pairs =
+                new ArrayList<Weighted<TokenPair>>();
+        final NaiveApssTask<Lexer.Tell> task = new NaiveApssTask<Lexer.Tell>();
+        task.setSourceA(source);
+        task.setSourceB(new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET,
+                mdbs.getStringIndex1(), mdbs.getStringIndex2()).
+                getVectorSource());
+        task.setSink(IOUtil.asSink(pairs));
+        task.setMeasure(new Cosine());
+        task.setProducatePair(Weighted.<TokenPair>greaterThanOrEqualTo(0.1));
+        task.run();
+        while (task.isExceptionThrown()) {
+            task.throwException();
+        }
+
+        final List<Weighted<TokenPair>> copy =
+                new ArrayList<Weighted<TokenPair>>();
+        final RecallEstimator estimator =
+                new RecallEstimator(IOUtil.asSink(copy), sample);
+        for (int i = 0; i < pairs.size(); i += 2) {
+            estimator.write(pairs.get(i));
+        }
+        assertEquals((pairs.size() + 1) / 2, copy.size());
+
+        estimator.computeExact(
+                new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET,
+                mdbs.getStringIndex1(), mdbs.getStringIndex2()).
+                getVectorSource(),
+                new Cosine(), Weighted.<TokenPair>greaterThanOrEqualTo(0.1),
+                0.1, 7);
+        assertTrue(estimator.getExpectedCount() > 0);
+        assertTrue(estimator.getMatchedCount() > 0);
+        assertTrue(estimator.getMatchedCount() < estimator.getExpectedCount());
+        assertEquals(0.5, estimator.getRecall(), 0.15);
+    }
+
+    /**
+     * Cosine prepares vectors into probabilities, so the exact search only
+     * agrees with a naive search if the sample is prepared before its
+     * left-hand components are calculated.
+     */
+    @Test(timeout = 5000)
+    public void testComputeExactMatchesNaive() throws Exception {
+        final WeightedTokenPairSource mdbs = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET);
+        final SeekableSource<Indexed<SparseDoubleVector>, Lexer.Tell> source =
+                mdbs.getVectorSource();
+        final List<Indexed<SparseDoubleVector>> sample =
+                RecallEstimator.sample(source, 10, 1);
+        final Proximity measure = new Cosine();
+
+        final List<Weighted<TokenPair>> pairs =
+                new ArrayList<Weighted<TokenPair>>();
+        final NaiveApssTask<Lexer.Tell> task = new NaiveApssTask<Lexer.Tell>();
+        task.setSourceA(source);
+        task.setSourceB(new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET,
+                mdbs.getStringIndex1(), mdbs.getStringIndex2()).
+                getVectorSource());
+        task.setSink(IOUtil.asSink(pairs));
+        task.setMeasure(measure);
+        task.setProducatePair(Weighted.<TokenPair>greaterThanOrEqualTo(0.1));
+        task.run();
+        while (task.isExceptionThrown()) {
+            task.throwException();
+        }
+
+        final IntSet sampleIds = new IntOpenHashSet();
+        for (Indexed<SparseDoubleVector> v : sample) {
+            sampleIds.add(v.key());
+        }
+        int naiveCount = 0;
+        for (Weighted<TokenPair> pair : pairs) {
+            if (sampleIds.contains(pair.record().id1()))
+                ++naiveCount;
+        }
+        assertTrue(naiveCount > 0);
+
+        final RecallEstimator estimator = new RecallEstimator(
+                IOUtil.asSink(new ArrayList<Weighted<TokenPair>>()), sample);
+        for (Weighted<TokenPair> pair : pairs) {
+            estimator.write(pair);
+        }
+        estimator.computeExact(
+                new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET,
+                mdbs.getStringIndex1(), mdbs.getStringIndex2()).
+                getVectorSource(),
+                measure, Weighted.<TokenPair>greaterThanOrEqualTo(0.1),
+                0.1, 7);
+        assertEquals(naiveCount, estimator.getExpectedCount());
+        assertEquals(naiveCount, estimator.getMatchedCount());
+        assertEquals(1, estimator.getRecall(), 0);
+    }
+}
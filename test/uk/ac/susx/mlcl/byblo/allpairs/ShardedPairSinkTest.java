@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ShardedPairSinkTest {
+
+    private static final Comparator<Weighted<TokenPair>> PAIR_ORDER =
+            new Comparator<Weighted<TokenPair>>() {
+
+                @Override
+                public int compare(Weighted<TokenPair> a, Weighted<TokenPair> b) {
+                    int c = a.record().id1() - b.record().id1();
+                    if (c == 0)
+                        c = a.record().id2() - b.record().id2();
+                    return c;
+                }
+            };
+
+    @Test(timeout = 5000)
+    public void testConcurrentWriters() throws Exception {
+        final int nThreads = 4;
+        // Enough pairs per thread that every shard spills to disk
+        final int nPairs = 10000;
+        final ShardedPairSink sink = new ShardedPairSink(
+                new TempFileFactory(), 3);
+
+        final List<Weighted<TokenPair>> expected =
+                new ArrayList<Weighted<TokenPair>>();
+        final Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            final int offset = t * nPairs;
+            for (int i = 0; i < nPairs; i++) {
+                expected.add(new Weighted<TokenPair>(
+                        new TokenPair(offset + i, i), i / 2.0));
+            }
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < nPairs; i++) {
+                            sink.write(offset + i, i, i / 2.0);
+                        }
+                    } catch (Exception ex) {
+                        throw new AssertionError(ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        sink.close();
+        assertEquals(nThreads, sink.getShardCount());
+
+        final List<Weighted<TokenPair>> actual =
+                new ArrayList<Weighted<TokenPair>>();
+        assertEquals(expected.size(),
+                     sink.copyTo(IOUtil.asSink(actual)));
+        sink.delete();
+
+        Collections.sort(actual, PAIR_ORDER);
+        assertEquals(expected, actual);
+    }
+
+    @Test(timeout = 1000)
+    public void testPartitions() throws Exception {
+        final int nPartitions = 3;
+        final ShardedPairSink sink = new ShardedPairSink(
+                new TempFileFactory(), nPartitions);
+        for (int i = 0; i < 30; i++) {
+            sink.write(new Weighted<TokenPair>(new TokenPair(i, i + 1), 1));
+        }
+        sink.close();
+
+        int total = 0;
+        for (int p = 0; p < nPartitions; p++) {
+            final List<Weighted<TokenPair>> pairs =
+                    new ArrayList<Weighted<TokenPair>>();
+            total += sink.copyPartitionTo(p, IOUtil.asSink(pairs));
+            assertEquals(10, pairs.size());
+            for (Weighted<TokenPair> pair : pairs) {
+                assertEquals(p, pair.record().id1() % nPartitions);
+            }
+        }
+        assertEquals(30, total);
+        sink.delete();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWriteAfterClose() throws Exception {
+        final ShardedPairSink sink = new ShardedPairSink(new TempFileFactory());
+        sink.close();
+        sink.write(0, 1, 1);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import com.google.common.base.Predicate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.measure.Cosine;
+import uk.ac.susx.mlcl.byblo.measure.Jaccard;
+import uk.ac.susx.mlcl.byblo.measure.Proximity;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+import uk.ac.susx.mlcl.lib.io.Lexer;
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class SimHashApssTaskTest {
+
+    private static final Predicate<Weighted<TokenPair>> PAIR_FILTER =
+            Weighted.greaterThanOrEqualTo(0.1);
+
+    @Test
+    public void testCandidateProbability() {
+        assertEquals(1, SimHashApssTask.candidateProbability(1, 16, 12, 0), 1e-9);
+        assertEquals(0, SimHashApssTask.candidateProbability(-1, 16, 12, 0), 1e-9);
+        // More tables increase the probability, more bits decrease it
+        assertTrue(SimHashApssTask.candidateProbability(0.5, 32, 12, 0)
+                > SimHashApssTask.candidateProbability(0.5, 16, 12, 0));
+        assertTrue(SimHashApssTask.candidateProbability(0.5, 16, 16, 0)
+                < SimHashApssTask.candidateProbability(0.5, 16, 12, 0));
+        // Probing neighbouring buckets increases it
+        assertTrue(SimHashApssTask.candidateProbability(0.5, 16, 12, 1)
+                > SimHashApssTask.candidateProbability(0.5, 16, 12, 0));
+    }
+
+    @Test(timeout = 5000)
+    public void testRecall() throws Exception {
+        final List<Weighted<TokenPair>> expected =
+                run(new NaiveApssTask<Lexer.Tell>(), new Cosine());
+
+        final SimHashApssTask<Lexer.Tell> simHash =
+                new SimHashApssTask<Lexer.Tell>();
+        simHash.setTables(20);
+        simHash.setBits(4);
+        final List<Weighted<TokenPair>> actual = run(simHash, new Cosine());
+
+        // Candidates are scored exactly, so every pair found is correct
+        final Set<Weighted<TokenPair>> exact =
+                new HashSet<Weighted<TokenPair>>(expected);
+        for (Weighted<TokenPair> pair : actual) {
+            assertTrue(exact.contains(pair));
+        }
+
+        // Pairs of high similarity are almost certain to be found
+        final Set<Weighted<TokenPair>> found =
+                new HashSet<Weighted<TokenPair>>(actual);
+        int similar = 0;
+        int missed = 0;
+        for (Weighted<TokenPair> pair : expected) {
+            if (pair.weight() >= 0.5) {
+                ++similar;
+                if (!found.contains(pair))
+                    ++missed;
+            }
+        }
+        assertTrue(similar > 0);
+        assertTrue("missed " + missed + " of " + similar,
+                   missed <= similar / 20);
+    }
+
+    @Test(timeout = 5000)
+    public void testHammingRadius() throws Exception {
+        final SimHashApssTask<Lexer.Tell> exact =
+                new SimHashApssTask<Lexer.Tell>();
+        exact.setTables(2);
+        exact.setBits(10);
+        final SimHashApssTask<Lexer.Tell> probed =
+                new SimHashApssTask<Lexer.Tell>();
+        probed.setTables(2);
+        probed.setBits(10);
+        probed.setHammingRadius(1);
+
+        // Probing neighbouring buckets only ever adds candidates
+        final List<Weighted<TokenPair>> a = run(exact, new Cosine());
+        final List<Weighted<TokenPair>> b = run(probed, new Cosine());
+        assertTrue(new HashSet<Weighted<TokenPair>>(b).containsAll(a));
+        assertTrue(b.size() > a.size());
+    }
+
+    @Test(timeout = 5000)
+    public void testDeterministic() throws Exception {
+        final SimHashApssTask<Lexer.Tell> a = new SimHashApssTask<Lexer.Tell>();
+        a.setTables(4);
+        a.setBits(6);
+        final SimHashApssTask<Lexer.Tell> b = new SimHashApssTask<Lexer.Tell>();
+        b.setTables(4);
+        b.setBits(6);
+        assertEquals(run(a, new Cosine()), run(b, new Cosine()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNonAngularMeasure() throws Exception {
+        run(new SimHashApssTask<Lexer.Tell>(), new Jaccard());
+    }
+
+    private static List<Weighted<TokenPair>> run(
+            NaiveApssTask<Lexer.Tell> task, Proximity measure)
+            throws Exception {
+        final WeightedTokenPairSource mdbsa = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET);
+        final WeightedTokenPairSource mdbsb = new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET,
+                mdbsa.getStringIndex1(), mdbsa.getStringIndex2());
+
+        final List<Weighted<TokenPair>> result =
+                new ArrayList<Weighted<TokenPair>>();
+        task.setSourceA(mdbsa.getVectorSource());
+        task.setSourceB(mdbsb.getVectorSource());
+        task.setSink(IOUtil.asSink(result));
+        task.setMeasure(measure);
+        task.setProducatePair(PAIR_FILTER);
+        task.run();
+        while (task.isExceptionThrown()) {
+            task.throwException();
+        }
+        return result;
+    }
+}
@@ -32,6 +32,8 @@ package uk.ac.susx.mlcl.byblo.allpairs;
 
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
 import com.google.common.base.Predicate;
 import uk.ac.susx.mlcl.byblo.measure.Proximity;
@@ -39,6 +41,7 @@ import uk.ac.susx.mlcl.lib.io.Sink;
 import uk.ac.susx.mlcl.lib.ObjectIndex;
 import java.util.Collections;
 import uk.ac.susx.mlcl.lib.io.IOUtil;
+import uk.ac.susx.mlcl.lib.io.Files;
 import uk.ac.susx.mlcl.byblo.measure.Jaccard;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import java.util.ArrayList;
@@ -356,4 +359,414 @@ public class ThreadedApssTaskTest {
 
         assertEquals(threadedResults, nonThreadedResults);
     }
+
+    @Test(timeout = 5000)
+    public void compareHalfMatrix_vs_FullMatrix() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare half matrix vs full matrix");
+
+        List<Weighted<TokenPair>> halfResults =
+                new ChunkedRun().sourcesIdentical(true).run();
+        List<Weighted<TokenPair>> fullResults = new ChunkedRun().run();
+
+        assertTrue(!fullResults.isEmpty());
+        assertEquals(fullResults, halfResults);
+    }
+
+    @Test(timeout = 5000)
+    public void compareNonZeroChunking() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare chunking by non-zeros");
+
+        List<Weighted<TokenPair>> expected = new ChunkedRun().run();
+        for (long maxNonZeros : new long[]{1, 100, 1000}) {
+            assertEquals(expected, new ChunkedRun().
+                    maxChunkNonZeros(maxNonZeros).run());
+            assertEquals(expected, new ChunkedRun().sourcesIdentical(true).
+                    maxChunkNonZeros(maxNonZeros).run());
+        }
+    }
+
+    @Test
+    public void testEstimateMaxChunkNonZeros() {
+        final long mb = 1 << 20;
+        long oneThread = ThreadedApssTask.estimateMaxChunkNonZeros(
+                512 * mb, 1, 0);
+        long fourThreads = ThreadedApssTask.estimateMaxChunkNonZeros(
+                512 * mb, 4, 0);
+        assertTrue(oneThread > fourThreads);
+        assertTrue(fourThreads > 0);
+        assertTrue(ThreadedApssTask.estimateMaxChunkNonZeros(1024 * mb, 4, 0)
+                > fourThreads);
+        assertEquals(1, ThreadedApssTask.estimateMaxChunkNonZeros(1, 4, 0));
+    }
+
+    @Test
+    public void testEstimateMaxChunkNonZerosPrefetch() {
+        final long mb = 1 << 20;
+        long previous = ThreadedApssTask.estimateMaxChunkNonZeros(
+                512 * mb, 4, 0);
+        for (int depth : new int[]{1, 2, 4, 8}) {
+            long estimate = ThreadedApssTask.estimateMaxChunkNonZeros(
+                    512 * mb, 4, depth);
+            assertTrue(estimate < previous);
+            previous = estimate;
+        }
+
+        // Every chunk live at once, prepared copies and indices included,
+        // fits in the fraction of memory given to chunks
+        final int nThreads = 4;
+        final int depth = 2;
+        long nonZeros = ThreadedApssTask.estimateMaxChunkNonZeros(
+                512 * mb, nThreads, depth);
+        long liveChunks = (2L * nThreads + 1 + depth) + 2L * nThreads;
+        long bytes = nonZeros
+                * (liveChunks * ThreadedApssTask.BYTES_PER_NON_ZERO
+                   + nThreads * ThreadedApssTask.BYTES_PER_POSTING);
+        assertTrue(bytes <= 512 * mb * ThreadedApssTask.CHUNK_MEMORY_FRACTION);
+    }
+
+    @Test(timeout = 5000)
+    public void compareSplitPairs() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare split chunk pairs");
+
+        // A single chunk, which is only split when there are many threads
+        List<Weighted<TokenPair>> expected =
+                new ChunkedRun().maxChunkSize(1000).nThreads(1).run();
+        for (boolean sourcesIdentical : new boolean[]{false, true}) {
+            assertEquals(expected, new ChunkedRun().
+                    sourcesIdentical(sourcesIdentical).
+                    maxChunkSize(1000).nThreads(8).run());
+            assertEquals(expected, new ChunkedRun().
+                    sourcesIdentical(sourcesIdentical).
+                    maxChunkSize(20).nThreads(8).run());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void compareResumedJournal() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare resumed journal");
+
+        final File dir = new File(TEST_OUTPUT_DIR, "threaded-apss-journal");
+        List<Weighted<TokenPair>> expected =
+                new ChunkedRun().sourcesIdentical(true).run();
+
+        ChunkPairJournal journal = ChunkPairJournal.open(dir, "test", false);
+        assertEquals(expected, new ChunkedRun().sourcesIdentical(true).
+                journal(journal).run());
+        final int completed = journal.getCompletedCount();
+        journal.close();
+        assertTrue(completed > 2);
+
+        // Simulate a crash, losing the end of the journal part way through
+        // writing a line
+        final List<String> lines = new ArrayList<String>();
+        Files.readAllLines(journal.getJournalFile(),
+                           Files.DEFAULT_CHARSET, lines);
+        final StringBuilder truncated = new StringBuilder();
+        for (int i = 0; i <= completed / 2; i++) {
+            truncated.append(lines.get(i)).append('\n');
+        }
+        truncated.append(lines.get(completed / 2 + 1), 0, 3);
+        Files.writeAll(journal.getJournalFile(), Files.DEFAULT_CHARSET,
+                       truncated);
+
+        journal = ChunkPairJournal.open(dir, "test", true);
+        assertEquals(completed / 2, journal.getCompletedCount());
+        assertEquals(expected, new ChunkedRun().sourcesIdentical(true).
+                journal(journal).run());
+        assertEquals(completed, journal.getCompletedCount());
+        journal.delete();
+        assertFalse(dir.exists());
+    }
+
+    @Test(timeout = 10000)
+    public void compareResumedSplitJournal() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare resumed split journal");
+
+        // A single chunk pair, split between many threads
+        final File dir = new File(TEST_OUTPUT_DIR,
+                                  "threaded-apss-split-journal");
+        List<Weighted<TokenPair>> expected =
+                new ChunkedRun().maxChunkSize(1000).nThreads(1).run();
+
+        ChunkPairJournal journal = ChunkPairJournal.open(dir, "test", false);
+        assertEquals(expected, new ChunkedRun().maxChunkSize(1000).
+                nThreads(8).splitFactor(4).journal(journal).run());
+        final int completed = journal.getCompletedCount();
+        assertTrue(completed > 2);
+        assertTrue(journal.isCompleted("0-0"));
+        journal.close();
+
+        // Once every part is complete the whole pair is skipped
+        journal = ChunkPairJournal.open(dir, "test", true);
+        ApssStats stats = new ApssStats();
+        assertEquals(expected, new ChunkedRun().maxChunkSize(1000).
+                nThreads(8).splitFactor(4).journal(journal).stats(stats).
+                run());
+        assertEquals(0, stats.getTaskCount());
+        assertEquals(completed, journal.getCompletedCount());
+        journal.close();
+
+        // Losing the line for the whole pair, its parts are all skipped, and
+        // the pair is recorded again
+        final List<String> lines = new ArrayList<String>();
+        Files.readAllLines(journal.getJournalFile(),
+                           Files.DEFAULT_CHARSET, lines);
+        assertTrue(lines.get(lines.size() - 1).startsWith("0-0\t"));
+        final StringBuilder truncated = new StringBuilder();
+        for (int i = 0; i < lines.size() - 1; i++) {
+            truncated.append(lines.get(i)).append('\n');
+        }
+        Files.writeAll(journal.getJournalFile(), Files.DEFAULT_CHARSET,
+                       truncated);
+
+        journal = ChunkPairJournal.open(dir, "test", true);
+        assertFalse(journal.isCompleted("0-0"));
+        stats = new ApssStats();
+        assertEquals(expected, new ChunkedRun().maxChunkSize(1000).
+                nThreads(8).splitFactor(4).journal(journal).stats(stats).
+                run());
+        assertEquals(0, stats.getTaskCount());
+        assertTrue(journal.isCompleted("0-0"));
+        assertEquals(completed, journal.getCompletedCount());
+        journal.delete();
+        assertFalse(dir.exists());
+    }
+
+    @Test(timeout = 10000)
+    public void compareSizeBoundChunkSkipping() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare size bound chunk skipping");
+
+        final double minSim = 0.3;
+        final Predicate<Weighted<TokenPair>> filter =
+                Weighted.greaterThanOrEqualTo(minSim);
+        List<Weighted<TokenPair>> expected = new ChunkedRun().
+                maxChunkSize(1000).nThreads(1).pairFilter(filter).run();
+        assertTrue(!expected.isEmpty());
+
+        for (boolean sourcesIdentical : new boolean[]{false, true}) {
+            ApssStats stats = new ApssStats();
+            assertEquals(expected, new ChunkedRun().
+                    sourcesIdentical(sourcesIdentical).maxChunkSize(2).
+                    pairFilter(filter).minSimilarity(minSim).stats(stats).
+                    run());
+            assertTrue(stats.getChunkPairSkips() > 0);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void compareFeatureBitmapChunkSkipping() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare feature bitmap chunk skipping");
+
+        // Without a minimum similarity only the feature bitmaps can skip
+        List<Weighted<TokenPair>> expected =
+                new ChunkedRun().maxChunkSize(1000).nThreads(1).run();
+        assertTrue(!expected.isEmpty());
+
+        for (boolean sourcesIdentical : new boolean[]{false, true}) {
+            ApssStats stats = new ApssStats();
+            assertEquals(expected, new ChunkedRun().
+                    sourcesIdentical(sourcesIdentical).maxChunkSize(1).
+                    stats(stats).run());
+            assertTrue(stats.getChunkPairSkips() > 0);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStatsCollected() throws Exception {
+        System.out.println("Testing " + subject + " stats collection");
+
+        ApssStats stats = new ApssStats();
+        List<Weighted<TokenPair>> result = new ChunkedRun().
+                sourcesIdentical(true).stats(stats).statsMBean(true).run();
+
+        assertTrue(stats.getTaskCount() > 1);
+        assertEquals(result.size(), stats.getProductionCount());
+        assertTrue(stats.getComparisonCount() >= result.size());
+        assertEquals(stats.getTaskCount(),
+                     stats.getHistogram(ApssStats.Phase.SCORING).getCount());
+        assertTrue(stats.getTimeNanos(ApssStats.Phase.INDEX) > 0);
+
+        // The MBean is only registered while the task runs
+        assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName("uk.ac.susx.mlcl.byblo:type=ApssStats,*"),
+                null).isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void compareChunkCache() throws Exception {
+        System.out.println("Testing " + subject + " compare chunk cache");
+
+        List<Weighted<TokenPair>> expected =
+                new ChunkedRun().sourcesIdentical(true).run();
+        assertTrue(!expected.isEmpty());
+
+        // A budget large enough for every chunk, and one for only a few
+        for (long bytes : new long[]{1L << 30, 1L << 16}) {
+            for (boolean sourcesIdentical : new boolean[]{false, true}) {
+                ApssStats stats = new ApssStats();
+                assertEquals(expected, new ChunkedRun().
+                        sourcesIdentical(sourcesIdentical).stats(stats).
+                        chunkCacheBytes(bytes).run());
+                assertTrue(stats.getChunkCacheHits() > 0);
+                assertTrue(stats.getChunkCacheMisses() > 0);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void comparePrefetchDepth() throws Exception {
+        System.out.println("Testing " + subject + " compare prefetch depth");
+
+        List<Weighted<TokenPair>> expected = new ChunkedRun().
+                sourcesIdentical(true).prefetchDepth(0).run();
+        assertTrue(!expected.isEmpty());
+
+        for (int depth : new int[]{1, 2, 16}) {
+            for (long bytes : new long[]{0, 1L << 16}) {
+                for (boolean sourcesIdentical : new boolean[]{true, false}) {
+                    assertEquals(expected, new ChunkedRun().
+                            sourcesIdentical(sourcesIdentical).
+                            chunkCacheBytes(bytes).prefetchDepth(depth).
+                            run());
+                }
+            }
+        }
+    }
+
+    /**
+     * Settings for a chunked run of the threaded task over the fruit data,
+     * with defaults for everything a test does not set.
+     */
+    private static final class ChunkedRun {
+
+        private boolean sourcesIdentical = false;
+
+        private int maxChunkSize = 10;
+
+        private long maxChunkNonZeros = Long.MAX_VALUE;
+
+        private int nThreads = 2;
+
+        private int splitFactor = 4;
+
+        private ChunkPairJournal journal = null;
+
+        private Predicate<Weighted<TokenPair>> pairFilter = PAIR_FILTER;
+
+        private double minSimilarity = 0;
+
+        private ApssStats stats = new ApssStats();
+
+        private boolean statsMBean = false;
+
+        private long chunkCacheBytes = 0;
+
+        private int prefetchDepth = 2;
+
+        ChunkedRun sourcesIdentical(boolean sourcesIdentical) {
+            this.sourcesIdentical = sourcesIdentical;
+            return this;
+        }
+
+        ChunkedRun maxChunkSize(int maxChunkSize) {
+            this.maxChunkSize = maxChunkSize;
+            return this;
+        }
+
+        ChunkedRun maxChunkNonZeros(long maxChunkNonZeros) {
+            this.maxChunkNonZeros = maxChunkNonZeros;
+            return this;
+        }
+
+        ChunkedRun nThreads(int nThreads) {
+            this.nThreads = nThreads;
+            return this;
+        }
+
+        ChunkedRun splitFactor(int splitFactor) {
+            this.splitFactor = splitFactor;
+            return this;
+        }
+
+        ChunkedRun journal(ChunkPairJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        ChunkedRun pairFilter(Predicate<Weighted<TokenPair>> pairFilter) {
+            this.pairFilter = pairFilter;
+            return this;
+        }
+
+        ChunkedRun minSimilarity(double minSimilarity) {
+            this.minSimilarity = minSimilarity;
+            return this;
+        }
+
+        ChunkedRun stats(ApssStats stats) {
+            this.stats = stats;
+            return this;
+        }
+
+        ChunkedRun statsMBean(boolean statsMBean) {
+            this.statsMBean = statsMBean;
+            return this;
+        }
+
+        ChunkedRun chunkCacheBytes(long chunkCacheBytes) {
+            this.chunkCacheBytes = chunkCacheBytes;
+            return this;
+        }
+
+        ChunkedRun prefetchDepth(int prefetchDepth) {
+            this.prefetchDepth = prefetchDepth;
+            return this;
+        }
+
+        List<Weighted<TokenPair>> run() throws Exception {
+            ObjectIndex<String> stringIndex = new ObjectIndex<String>();
+
+            WeightedTokenPairVectorSource vsa =
+                    new WeightedTokenPairVectorSource(new WeightedTokenPairSource(
+                    TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET, stringIndex));
+
+            WeightedTokenPairVectorSource vsb =
+                    new WeightedTokenPairVectorSource(new WeightedTokenPairSource(
+                    TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET, stringIndex));
+
+            List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+            ThreadedApssTask<Lexer.Tell> instance = new ThreadedApssTask<Lexer.Tell>(
+                    vsa, vsb, IOUtil.asSink(result));
+
+            instance.setInnerAlgorithm(InvertedApssTask.class);
+            instance.setMeasure(MEASURE);
+            instance.setProducatePair(pairFilter);
+            instance.setMinSimilarity(minSimilarity);
+            instance.setStats(stats);
+            instance.setStatsMBeanEnabled(statsMBean);
+            instance.setMaxChunkSize(maxChunkSize);
+            instance.setNumThreads(nThreads);
+            instance.setSplitFactor(splitFactor);
+            instance.setSourcesIdentical(sourcesIdentical);
+            instance.setMaxChunkNonZeros(maxChunkNonZeros);
+            instance.setJournal(journal);
+            instance.setChunkCacheBytes(chunkCacheBytes);
+            instance.setPrefetchDepth(prefetchDepth);
+
+            instance.run();
+            while (instance.isExceptionThrown()) {
+                instance.throwException();
+            }
+
+            Collections.sort(result);
+            return result;
+        }
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.allpairs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class WorkerProcessesTest {
+
+    /**
+     * Worker that fails the first time it is run with a given marker file,
+     * and succeeds thereafter.
+     */
+    public static final class FailOnce {
+
+        public static void main(String[] args) throws IOException {
+            final File marker = new File(args[0]);
+            if (marker.createNewFile()) {
+                System.out.println("Failing " + marker);
+                System.exit(1);
+            }
+            System.out.println("Succeeding " + marker);
+        }
+    }
+
+    /**
+     * Worker that always fails.
+     */
+    public static final class AlwaysFail {
+
+        public static void main(String[] args) {
+            System.exit(2);
+        }
+    }
+
+    private static List<List<String>> markerArguments(File dir, int n) {
+        final List<List<String>> args = new ArrayList<List<String>>();
+        for (int i = 0; i < n; i++) {
+            final File marker = new File(dir, "marker-" + i);
+            marker.delete();
+            args.add(Arrays.asList(marker.getPath()));
+        }
+        return args;
+    }
+
+    @Test(timeout = 30000)
+    public void testRestartFailedWorkers() throws Exception {
+        final File dir = new File(TEST_OUTPUT_DIR, "worker-processes-restart");
+        final WorkerProcesses processes = new WorkerProcesses(
+                FailOnce.class.getName(), markerArguments(dir, 2), dir);
+        processes.run();
+        assertEquals(2, processes.getRestartCount());
+        assertTrue(processes.getLogFile(0).length() > 0);
+        assertTrue(processes.getLogFile(1).length() > 0);
+    }
+
+    @Test(timeout = 30000, expected = IOException.class)
+    public void testGiveUp() throws Exception {
+        final File dir = new File(TEST_OUTPUT_DIR, "worker-processes-fail");
+        final WorkerProcesses processes = new WorkerProcesses(
+                AlwaysFail.class.getName(), markerArguments(dir, 1), dir);
+        processes.setMaxRestarts(1);
+        processes.run();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.IOUtil;
+import uk.ac.susx.mlcl.lib.io.SeekableSource;
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MappedVectorStoreTest {
+
+    private static List<Indexed<SparseDoubleVector>> readFruit()
+            throws Exception {
+        return IOUtil.readAll(new WeightedTokenPairSource(
+                TEST_FRUIT_ENTRY_FEATURES, DEFAULT_CHARSET).getVectorSource());
+    }
+
+    private static void assertVectorEquals(Indexed<SparseDoubleVector> expected,
+                                           Indexed<SparseDoubleVector> actual) {
+        assertEquals(expected.key(), actual.key());
+        final SparseDoubleVector a = expected.value();
+        final SparseDoubleVector b = actual.value();
+        assertEquals(a.size, b.size);
+        assertEquals(a.cardinality, b.cardinality);
+        assertEquals(a.sum, b.sum, 0);
+        for (int i = 0; i < a.size; i++) {
+            assertEquals(a.keys[i], b.keys[i]);
+            assertEquals(a.values[i], b.values[i], 0);
+        }
+    }
+
+    private static void testReadWrite(int maxSegmentSize) throws Exception {
+        final List<Indexed<SparseDoubleVector>> expected = readFruit();
+        final File file = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".vectors");
+
+        final MappedVectorStore store = MappedVectorStore.write(
+                IOUtil.asSource(expected), file, maxSegmentSize);
+        try {
+            assertEquals(expected.size(), store.getCount());
+            assertEquals(file.length(), store.getLength());
+
+            // Read everything, recording the position of each vector
+            final SeekableSource<Indexed<SparseDoubleVector>, Long> src =
+                    store.newSource();
+            final List<Long> positions = new ArrayList<Long>();
+            for (Indexed<SparseDoubleVector> e : expected) {
+                assertTrue(src.hasNext());
+                positions.add(src.position());
+                assertVectorEquals(e, src.read());
+            }
+            assertFalse(src.hasNext());
+            assertEquals(store.getLength(), (long) src.position());
+
+            // Seek backwards through the store with a second source, while the
+            // first is unaffected
+            final SeekableSource<Indexed<SparseDoubleVector>, Long> src2 =
+                    store.newSource();
+            for (int i = expected.size() - 1; i >= 0; i -= 7) {
+                src2.position(positions.get(i));
+                assertVectorEquals(expected.get(i), src2.read());
+            }
+            assertFalse(src.hasNext());
+        } finally {
+            store.close();
+            file.delete();
+        }
+    }
+
+    @Test(timeout = 2000)
+    public void testReadWrite() throws Exception {
+        testReadWrite(MappedVectorStore.MAX_SEGMENT_SIZE);
+    }
+
+    @Test(timeout = 2000)
+    public void testReadWriteSegmented() throws Exception {
+        // Small enough that many segments hold a single record
+        testReadWrite(1024);
+    }
+
+    @Test(timeout = 1000)
+    public void testEmpty() throws Exception {
+        final File file = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".empty-vectors");
+        final MappedVectorStore store = MappedVectorStore.write(
+                IOUtil.asSource(new ArrayList<Indexed<SparseDoubleVector>>()),
+                file);
+        try {
+            assertEquals(0, store.getCount());
+            assertFalse(store.newSource().hasNext());
+        } finally {
+            store.close();
+            file.delete();
+        }
+    }
+}
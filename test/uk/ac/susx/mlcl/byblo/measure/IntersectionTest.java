@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measure;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class IntersectionTest {
+
+    @Test
+    public void testGallop() {
+        final Random random = new Random(1);
+        for (int t = 0; t < 1000; t++) {
+            final int[] keys = randomKeys(random, random.nextInt(50), 200);
+            final int from = keys.length == 0 ? 0 : random.nextInt(keys.length);
+            final int key = random.nextInt(220) - 10;
+            int expected = from;
+            while (expected < keys.length && keys[expected] < key) {
+                ++expected;
+            }
+            assertEquals(expected,
+                         Intersection.gallop(keys, from, keys.length, key));
+        }
+    }
+
+    @Test
+    public void testIsSkewed() {
+        assertFalse(Intersection.isSkewed(10, 10));
+        assertFalse(Intersection.isSkewed(0, 1000));
+        assertTrue(Intersection.isSkewed(10, 10 * Intersection.SKEW_RATIO));
+        assertTrue(Intersection.isSkewed(10 * Intersection.SKEW_RATIO, 10));
+    }
+
+    /**
+     * The shared component of fixed vectors, worked out by hand, whether they
+     * are merged or galloped through.
+     */
+    @Test
+    public void testSharedFixedVectors() {
+        final SparseDoubleVector A = vector(new int[]{1, 3, 5},
+                                            new double[]{2, 1, 4});
+        final SparseDoubleVector B = vector(new int[]{3, 5, 9},
+                                            new double[]{3, 2, 1});
+        final Cosine cosine = new Cosine();
+        final Jaccard jaccard = new Jaccard();
+        assertEquals(11, cosine.shared(A, B), 0);
+        assertEquals(11, cosine.shared(B, A), 0);
+        assertEquals(2, jaccard.shared(A, B), 0);
+        cosine.setFilteredFeatureId(5);
+        jaccard.setFilteredFeatureId(5);
+        assertEquals(3, cosine.shared(A, B), 0);
+        assertEquals(1, jaccard.shared(A, B), 0);
+
+        final int[] keys = new int[1000];
+        final double[] values = new double[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            values[i] = 1;
+        }
+        final SparseDoubleVector large = vector(keys, values);
+        final SparseDoubleVector small = vector(new int[]{10, 500, 2000},
+                                                new double[]{2, 3, 4});
+        assertTrue(Intersection.isSkewed(small.size, large.size));
+        assertEquals(5, new Cosine().shared(small, large), 0);
+        assertEquals(5, new Cosine().shared(large, small), 0);
+        assertEquals(2, new Jaccard().shared(small, large), 0);
+    }
+
+    /**
+     * Every measure built on the shared kernel must agree with a separately
+     * written reference, whether the vectors are merged or galloped through.
+     */
+    @Test(timeout = 5000)
+    public void testSharedMatchesReference() {
+        final Random random = new Random(2);
+        final AbstractProximity[] measures = new AbstractProximity[]{
+            new Cosine(), new Tanimoto(), new Jaccard(), new Dice(),
+            new Overlap(), new Jensen(), new Lee(), new Lp()};
+        for (AbstractProximity measure : measures) {
+            measure.setFilteredFeatureId(7);
+            for (int t = 0; t < 200; t++) {
+                final SparseDoubleVector A = randomVector(
+                        random, 1 + random.nextInt(20), 100000);
+                final SparseDoubleVector B = randomVector(
+                        random, 1 + random.nextInt(5000), 100000);
+                assertShared(measure, A, B);
+                assertShared(measure, B, A);
+            }
+        }
+    }
+
+    private static void assertShared(AbstractProximity measure,
+                                     SparseDoubleVector A,
+                                     SparseDoubleVector B) {
+        final double expected = referenceShared(measure, A, B);
+        assertEquals(measure.toString(), expected, measure.shared(A, B),
+                     1e-9 * Math.max(1, Math.abs(expected)));
+    }
+
+    /**
+     * Find the features of A in a map of B, and sum the terms of each
+     * measure as they are defined, independently of the measures themselves.
+     */
+    private static double referenceShared(AbstractProximity measure,
+                                          SparseDoubleVector A,
+                                          SparseDoubleVector B) {
+        final Map<Integer, Double> valuesB = new HashMap<Integer, Double>();
+        for (int j = 0; j < B.size; j++) {
+            valuesB.put(B.keys[j], B.values[j]);
+        }
+        double sum = 0;
+        for (int i = 0; i < A.size; i++) {
+            final Double b = valuesB.get(A.keys[i]);
+            if (b == null || A.keys[i] == 7) {
+                continue;
+            }
+            final double a = A.values[i];
+            if (measure instanceof Cosine) {
+                sum += a * b;
+            } else if (measure instanceof Jaccard) {
+                sum += 1;
+            } else if (measure instanceof Jensen) {
+                final double ln2 = Math.log(2);
+                final double mean = Math.log(a + b) - ln2;
+                sum += a * (2 * Math.log(a) - mean - ln2)
+                        + b * (2 * Math.log(b) - mean - ln2);
+            } else if (measure instanceof Lee) {
+                final double alpha = ((Lee) measure).getAlpha();
+                sum += a * (2 * Math.log(a)
+                            - Math.log(b * alpha + a * (1 - alpha))
+                            + Math.log(1 - alpha));
+            } else if (measure instanceof Lp) {
+                assertEquals(1, ((Lp) measure).getP(), 0);
+                sum += Math.abs(a - b) - a - b;
+            } else {
+                throw new AssertionError("No reference for " + measure);
+            }
+        }
+        return sum;
+    }
+
+    private static int[] randomKeys(Random random, int size, int cardinality) {
+        final int[] keys = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = random.nextInt(cardinality);
+        }
+        Arrays.sort(keys);
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (n == 0 || keys[n - 1] != keys[i]) {
+                keys[n++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, n);
+    }
+
+    private static SparseDoubleVector vector(int[] keys, double[] values) {
+        return new SparseDoubleVector(keys, values, 100000, keys.length);
+    }
+
+    private static SparseDoubleVector randomVector(Random random, int size,
+                                                   int cardinality) {
+        final int[] keys = randomKeys(random, size, cardinality);
+        final double[] values = new double[keys.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1 + random.nextInt(10);
+        }
+        return new SparseDoubleVector(keys, values, cardinality, keys.length);
+    }
+}
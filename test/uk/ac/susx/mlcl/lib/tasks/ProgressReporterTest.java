@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2010-2011, University of Sussex
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Sussex nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.tasks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.Files;
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ *
+ * @author Hamish Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ProgressReporterTest {
+
+    @Test(timeout = 1000)
+    public void testStage() throws Exception {
+        ProgressReporter progress = new ProgressReporter("test", null, 1000);
+        ProgressReporter.Stage stage = progress.stage("a");
+        assertSame(stage, progress.stage("a"));
+        assertEquals(1, progress.getStages().size());
+
+        assertFalse(stage.isStarted());
+        assertTrue(Double.isNaN(stage.getFraction()));
+        assertEquals(-1, stage.getEtaMillis(System.currentTimeMillis()));
+
+        stage.addTotal(10);
+        stage.addTotal(10);
+        assertEquals(20, stage.getTotal());
+        stage.addCompleted(5);
+        assertTrue(stage.isStarted());
+        assertEquals(0.25, stage.getFraction(), 0);
+
+        // Three quarters remain, so three times the elapsed time
+        Thread.sleep(20);
+        final long now = System.currentTimeMillis();
+        final long eta = stage.getEtaMillis(now);
+        assertTrue(eta >= 3 * 20);
+
+        stage.finish();
+        assertTrue(stage.isFinished());
+        assertEquals(1, stage.getFraction(), 0);
+        assertEquals(0, stage.getEtaMillis(now));
+
+        // A stage with nothing to do is complete
+        ProgressReporter.Stage empty = progress.stage("empty");
+        empty.setTotal(0);
+        assertEquals(1, empty.getFraction(), 0);
+    }
+
+    @Test(timeout = 5000)
+    public void testWrite() throws Exception {
+        final File file = new File(TEST_OUTPUT_DIR, "progress-test.json");
+        ProgressReporter progress = new ProgressReporter("te\"st", file, 10);
+        ProgressReporter.Stage stage = progress.stage("stage");
+        stage.setTotal(4);
+        stage.addCompleted(1);
+        stage.addItems(7);
+        stage.addBytes(100);
+        progress.start();
+        Thread.sleep(50);
+        progress.close();
+
+        assertTrue(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        final List<String> lines = new ArrayList<String>();
+        Files.readAllLines(file, Files.DEFAULT_CHARSET, lines);
+        assertEquals(1, lines.size());
+        final String json = lines.get(0);
+        assertTrue(json.startsWith("{\"command\":\"te\\\"st\""));
+        assertTrue(json.contains("\"name\":\"stage\""));
+        assertTrue(json.contains("\"completed\":1,\"total\":4"));
+        assertTrue(json.contains("\"fraction\":0.2500"));
+        assertTrue(json.contains("\"items\":7"));
+        assertTrue(json.contains("\"bytes\":100"));
+        assertTrue(json.contains("\"heap\":{\"used\":"));
+        file.delete();
+    }
+}